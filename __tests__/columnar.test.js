@@ -0,0 +1,103 @@
+jest.mock('react-native', () => ({
+  DeviceEventEmitter: { addListener: jest.fn() },
+  InteractionManager: { runAfterInteractions: task => task() },
+  NativeModules: {
+    RNGoogleFit: {
+      getMergedDailySteps: jest.fn(),
+      getAggregates: jest.fn(),
+    },
+  },
+}))
+
+import { NativeModules } from 'react-native'
+import GoogleFit from '../index.android'
+
+const googleFit = NativeModules.RNGoogleFit
+
+const JUNE_1 = new Date(2019, 5, 1).valueOf()
+const JUNE_2 = new Date(2019, 5, 2).valueOf()
+const JUNE_3 = new Date(2019, 5, 3).valueOf()
+
+function packFloat64(values) {
+  return Buffer.from(new Float64Array(values).buffer).toString('base64')
+}
+
+describe('columnar results', () => {
+  beforeEach(() => {
+    googleFit.getMergedDailySteps.mockReset()
+    googleFit.getAggregates.mockReset()
+  })
+
+  it('expands merged daily steps', async () => {
+    googleFit.getMergedDailySteps.mockImplementation((startDate, endDate, options, error, success) =>
+      success({
+        format: 'packed',
+        length: 2,
+        strings: ['estimated_steps', 'user_input'],
+        types: {
+          startDate: 'float64',
+          endDate: 'float64',
+          steps: 'float64',
+          isUserInput: 'boolean',
+          sources: 'array',
+        },
+        columns: {
+          startDate: packFloat64([JUNE_1, JUNE_2]),
+          endDate: packFloat64([JUNE_2, JUNE_3]),
+          steps: packFloat64([1200, 300]),
+          isUserInput: [false, true],
+          sources: [
+            {
+              length: 1,
+              types: { source: 'string', steps: 'float64' },
+              columns: { source: [0], steps: packFloat64([1200]) },
+            },
+            {
+              length: 1,
+              types: { source: 'string', steps: 'number' },
+              columns: { source: [1], steps: [300] },
+            },
+          ],
+        },
+      })
+    )
+
+    const days = await GoogleFit.getMergedDailySteps({
+      startDate: new Date(JUNE_1).toISOString(),
+      endDate: new Date(JUNE_3).toISOString(),
+      provenance: true,
+    })
+
+    expect(days).toEqual([
+      { date: '2019-06-01', value: 1200, isUserInput: false, sources: [{ source: 'estimated_steps', steps: 1200 }] },
+      { date: '2019-06-02', value: 300, isUserInput: true, sources: [{ source: 'user_input', steps: 300 }] },
+    ])
+  })
+
+  it('expands aggregates', async () => {
+    googleFit.getAggregates.mockImplementation((metric, granularity, startDate, endDate, calendar, error, success) =>
+      success({
+        format: 'columnar',
+        length: 2,
+        strings: [],
+        types: { startDate: 'number', endDate: 'number', value: 'number' },
+        columns: {
+          startDate: [JUNE_1, JUNE_2],
+          endDate: [JUNE_2, JUNE_3],
+          value: [10, 20],
+        },
+      })
+    )
+
+    const days = await GoogleFit.getAggregates({
+      metric: 'steps',
+      startDate: new Date(JUNE_1).toISOString(),
+      endDate: new Date(JUNE_3).toISOString(),
+    })
+
+    expect(days).toEqual([
+      { startDate: new Date(JUNE_1).toISOString(), endDate: new Date(JUNE_2).toISOString(), value: 10 },
+      { startDate: new Date(JUNE_2).toISOString(), endDate: new Date(JUNE_3).toISOString(), value: 20 },
+    ])
+  })
+})
@@ -13,23 +13,19 @@ package com.reactnative.googlefit;
 
 import android.util.Log;
 
-import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
-import com.facebook.react.bridge.WritableArray;
-import com.facebook.react.bridge.WritableMap;
-import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Device;
 import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.data.Value;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResponse;
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
 
-import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -43,8 +39,6 @@ public class ActivityHistory
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
 
-    private static final String STEPS_FIELD_NAME = "steps";
-    private static final String DISTANCE_FIELD_NAME = "distance";
     private static final String HIGH_LONGITUDE = "high_longitude";
     private static final String LOW_LONGITUDE = "low_longitude";
     private static final String HIGH_LATITUDE = "high_latitude";
@@ -53,7 +47,6 @@ public class ActivityHistory
 
     private static final int KCAL_MULTIPLIER = 1000;
     private static final int ONGOING_ACTIVITY_MIN_TIME_FROM_END = 10 * 60000;
-    private static final String CALORIES_FIELD_NAME = "calories";
 
     private static final String TAG = "RNGoogleFit";
 
@@ -63,74 +56,73 @@ public class ActivityHistory
     }
 
     public ReadableArray getActivitySamples(long startTime, long endTime) throws InterruptedException, TimeoutException, ExecutionException {
-        WritableArray results = Arguments.createArray();
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA)
-                .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
-                .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
-                .bucketByActivitySegment(1, TimeUnit.SECONDS)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                .build();
-
-        Task<DataReadResponse> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).readData(readRequest);
-        DataReadResponse dataReadResult = Tasks.await(task, 1, TimeUnit.MINUTES);
+        ResultStream result = ResultStream.collect();
+        getActivitySamples(startTime, endTime, result);
+        return (ReadableArray) result.result();
+    }
+
+    /**
+     * Writes one row per activity segment, read in one request. A stream instead reads one planner window
+     * at a time and sends its rows before the next read, so only a window of buckets is held; there, a
+     * segment crossing the edge of a window comes as one row per window.
+     */
+    public void getActivitySamples(long startTime, long endTime, ResultStream result) throws InterruptedException, TimeoutException, ExecutionException {
+        RangeQueryPlanner planner = googleFitManager.getRangeQueryPlanner();
+        RangeQueryPlanner.RequestFactory factory = new RangeQueryPlanner.RequestFactory()
+        {
+            @Override
+            public DataReadRequest create(long windowStart, long windowEnd) {
+                return new DataReadRequest.Builder()
+                        .aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA)
+                        .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
+                        .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
+                        .bucketByActivitySegment(1, TimeUnit.SECONDS)
+                        .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                        .build();
+            }
+        };
 
+        if (!result.isStreaming()) {
+            for (DataReadResponse response : planner.read(googleFitManager.getHistoryClient(), startTime, endTime,
+                    endTime - startTime, factory)) {
+                processResponse(response, result);
+            }
+            return;
+        }
+        for (long[] window : RangeQueryPlanner.split(startTime, endTime, RangeQueryPlanner.RAW_WINDOW_MILLIS)) {
+            for (DataReadResponse response : planner.read(googleFitManager.getHistoryClient(), window[0], window[1],
+                    RangeQueryPlanner.RAW_WINDOW_MILLIS, factory)) {
+                processResponse(response, result);
+            }
+        }
+    }
+
+    private void processResponse(DataReadResponse dataReadResult, ResultStream result) throws InterruptedException, TimeoutException {
         List<Bucket> buckets = dataReadResult.getBuckets();
         for (Bucket bucket : buckets) {
-            String activityName = bucket.getActivity();
-            int activityType = bucket.getBucketType();
             if (!bucket.getDataSets().isEmpty()) {
-                long start = bucket.getStartTime(TimeUnit.MILLISECONDS);
-                long end = bucket.getEndTime(TimeUnit.MILLISECONDS);
-                Date startDate = new Date(start);
-                Date endDate = new Date(end);
-                WritableMap map = Arguments.createMap();
-                map.putDouble("start", start);
-                map.putDouble("end", end);
-                map.putString("activityName", activityName);
-                String deviceName = "";
-                String sourceId = "";
-                boolean isTracked = true;
+                ActivitySegment segment = new ActivitySegment(bucket.getStartTime(TimeUnit.MILLISECONDS),
+                        bucket.getEndTime(TimeUnit.MILLISECONDS), bucket.getActivity());
                 for (DataSet dataSet : bucket.getDataSets()) {
                     for (DataPoint dataPoint : dataSet.getDataPoints()) {
-                        try {
-                            int deviceType = dataPoint.getOriginalDataSource().getDevice().getType();
-                            if (deviceType == TYPE_WATCH) {
-                                deviceName = "Android Wear";
-                            } else {
-                                deviceName = "Android";
-                            }
-                        } catch (Exception e) {
-                        }
-                        sourceId = dataPoint.getOriginalDataSource().getAppPackageName();
-                        if (startDate.getTime() % 1000 == 0 && endDate.getTime() % 1000 == 0) {
-                            isTracked = false;
-                        }
+                        DataSource source = dataPoint.getOriginalDataSource();
+                        Device device = source.getDevice();
+                        segment.addPoint(device == null ? null : device.getType() == TYPE_WATCH ? "Android Wear" : "Android",
+                                source.getAppPackageName());
                         for (Field field : dataPoint.getDataType().getFields()) {
-                            String fieldName = field.getName();
-                            switch (fieldName) {
-                                case STEPS_FIELD_NAME:
-                                    map.putInt("quantity", dataPoint.getValue(field).asInt());
-                                    break;
-                                case DISTANCE_FIELD_NAME:
-                                    map.putDouble(fieldName, dataPoint.getValue(field).asFloat());
-                                    break;
-                                case CALORIES_FIELD_NAME:
-                                    map.putDouble(fieldName, dataPoint.getValue(field).asFloat());
-                                default:
-                                    Log.w(TAG, "don't specified and handled: " + fieldName);
+                            Value value = dataPoint.getValue(field);
+                            boolean added = value.getFormat() == Field.FORMAT_INT32
+                                    ? segment.addField(field.getName(), value.asInt())
+                                    : segment.addField(field.getName(), value.asFloat());
+                            if (!added) {
+                                Log.w(TAG, "don't specified and handled: " + field.getName());
                             }
                         }
                     }
                 }
-                map.putString("device", deviceName);
-                map.putString("sourceName", deviceName);
-                map.putString("sourceId", sourceId);
-                map.putBoolean("tracked", isTracked);
-                results.pushMap(map);
+                segment.writeTo(result.rows());
+                result.checkpoint();
             }
         }
-
-        return results;
     }
 }
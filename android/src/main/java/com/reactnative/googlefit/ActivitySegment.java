@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+/**
+ * The totals of one activity segment bucket, collected from its data points in plain Java.
+ *
+ * ActivityHistory passes in the fields and sources of the points; {@link #writeTo(RowWriter)} writes
+ * the {start, end, activityName, quantity, distance, calories, device, sourceName, sourceId, tracked}
+ * row, leaving out the totals no point reported.
+ */
+public class ActivitySegment
+{
+    private static final String STEPS_FIELD_NAME = "steps";
+    private static final String DISTANCE_FIELD_NAME = "distance";
+    private static final String CALORIES_FIELD_NAME = "calories";
+
+    public final long start;
+    public final long end;
+    public final String activityName;
+
+    private float steps = Float.NaN;
+    private float distance = Float.NaN;
+    private float calories = Float.NaN;
+    private String device = "";
+    private String sourceId = "";
+    private boolean tracked = true;
+
+    public ActivitySegment(long start, long end, String activityName) {
+        this.start = start;
+        this.end = end;
+        this.activityName = activityName;
+    }
+
+    /**
+     * Takes the source of one data point of the segment; deviceName is null when the point has no device.
+     * Segments whose bounds are whole seconds were entered by hand, not tracked.
+     */
+    public void addPoint(String deviceName, String sourceId) {
+        if (deviceName != null) {
+            this.device = deviceName;
+        }
+        this.sourceId = sourceId;
+        if (start % 1000 == 0 && end % 1000 == 0) {
+            tracked = false;
+        }
+    }
+
+    /**
+     * Takes one field of a data point of the segment.
+     *
+     * @return false for a field the segment does not report
+     */
+    public boolean addField(String fieldName, float value) {
+        switch (fieldName) {
+            case STEPS_FIELD_NAME:
+                steps = value;
+                return true;
+            case DISTANCE_FIELD_NAME:
+                distance = value;
+                return true;
+            case CALORIES_FIELD_NAME:
+                calories = value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public void writeTo(RowWriter row) {
+        row.putDouble("start", start);
+        row.putDouble("end", end);
+        row.putString("activityName", activityName);
+        if (!Float.isNaN(steps)) {
+            row.putDouble("quantity", (int) steps);
+        }
+        if (!Float.isNaN(distance)) {
+            row.putDouble(DISTANCE_FIELD_NAME, distance);
+        }
+        if (!Float.isNaN(calories)) {
+            row.putDouble(CALORIES_FIELD_NAME, calories);
+        }
+        row.putString("device", device);
+        row.putString("sourceName", device);
+        row.putString("sourceId", sourceId);
+        row.putBoolean("tracked", tracked);
+        row.endRow();
+    }
+}
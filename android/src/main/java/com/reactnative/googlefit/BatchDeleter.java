@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.fitness.HistoryClient;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.HealthDataTypes;
+import com.google.android.gms.fitness.request.DataDeleteRequest;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Deletes many (type, interval) ranges with as few deleteData calls as possible.
+ *
+ * The ranges of each type are sorted and overlapping or adjacent ones merged. A DataDeleteRequest has
+ * one interval but any number of types, so merged intervals that are the same for several types share a
+ * request. Up to {@code parallelism} requests run at the same time. The result has one
+ * {success, error} entry per range, in input order.
+ */
+public class BatchDeleter
+{
+    private static final String TAG = "BatchDeleter";
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    private static final long DELETE_TIMEOUT_MINUTES = 1;
+
+    public static final String HEART_RATE = "heartRate";
+
+    private final int parallelism;
+
+    public BatchDeleter() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    public BatchDeleter(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * The data type of a range type name, e.g. {@link WriteJournal#WEIGHT}.
+     *
+     * @throws IllegalArgumentException for an unknown name
+     */
+    public static DataType dataType(String type) {
+        switch (type) {
+            case WriteJournal.WEIGHT:
+                return DataType.TYPE_WEIGHT;
+            case WriteJournal.HEIGHT:
+                return DataType.TYPE_HEIGHT;
+            case WriteJournal.FOOD:
+                return DataType.TYPE_NUTRITION;
+            case WriteJournal.BLOOD_PRESSURE:
+                return HealthDataTypes.TYPE_BLOOD_PRESSURE;
+            case HEART_RATE:
+                return DataType.TYPE_HEART_RATE_BPM;
+            default:
+                throw new IllegalArgumentException("Unknown data type: " + type);
+        }
+    }
+
+    /**
+     * @param ranges {type, startDate, endDate} maps, dates in ms
+     */
+    public WritableArray delete(HistoryClient client, ReadableArray ranges, DailyBucketCache cache,
+                                RollupStore rollups)
+            throws InterruptedException {
+        String[] errors = new String[ranges.size()];
+        List<Range> valid = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++) {
+            try {
+                ReadableMap range = ranges.getMap(i);
+                String type = range.getString("type");
+                dataType(type);
+                long startTime = (long) range.getDouble("startDate");
+                long endTime = (long) range.getDouble("endDate");
+                if (endTime < startTime) {
+                    throw new IllegalArgumentException("endDate is before startDate");
+                }
+                valid.add(new Range(i, type, startTime, endTime));
+            } catch (RuntimeException e) {
+                errors[i] = e.getMessage() != null ? e.getMessage() : e.toString();
+            }
+        }
+
+        List<Group> groups = plan(valid);
+        ArrayDeque<Group> inFlight = new ArrayDeque<>();
+        for (Group group : groups) {
+            if (inFlight.size() >= parallelism) {
+                await(inFlight.poll(), errors, cache, rollups);
+            }
+            DataDeleteRequest.Builder request = new DataDeleteRequest.Builder()
+                    .setTimeInterval(group.start, group.end, TimeUnit.MILLISECONDS);
+            for (String type : group.types) {
+                request.addDataType(dataType(type));
+            }
+            group.task = client.deleteData(request.build());
+            inFlight.add(group);
+        }
+        while (!inFlight.isEmpty()) {
+            await(inFlight.poll(), errors, cache, rollups);
+        }
+
+        WritableArray results = Arguments.createArray();
+        int failed = 0;
+        for (String error : errors) {
+            WritableMap result = Arguments.createMap();
+            result.putBoolean("success", error == null);
+            if (error != null) {
+                result.putString("error", error);
+                failed++;
+            }
+            results.pushMap(result);
+        }
+        Log.i(TAG, "Deleted " + (ranges.size() - failed) + " of " + ranges.size() + " ranges with " + groups.size() + " requests");
+        return results;
+    }
+
+    /**
+     * Merges the ranges per type and groups the merged intervals that several types share.
+     */
+    static List<Group> plan(List<Range> ranges) {
+        Map<String, List<Range>> byType = new LinkedHashMap<>();
+        for (Range range : ranges) {
+            List<Range> list = byType.get(range.type);
+            if (list == null) {
+                list = new ArrayList<>();
+                byType.put(range.type, list);
+            }
+            list.add(range);
+        }
+
+        Map<String, Group> byInterval = new HashMap<>();
+        List<Group> groups = new ArrayList<>();
+        for (Map.Entry<String, List<Range>> entry : byType.entrySet()) {
+            List<Range> list = entry.getValue();
+            Collections.sort(list, new Comparator<Range>()
+            {
+                @Override
+                public int compare(Range a, Range b) {
+                    return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+                }
+            });
+
+            int i = 0;
+            while (i < list.size()) {
+                long start = list.get(i).start;
+                long end = list.get(i).end;
+                List<Integer> indexes = new ArrayList<>();
+                while (i < list.size() && list.get(i).start <= end) {
+                    end = Math.max(end, list.get(i).end);
+                    indexes.add(list.get(i).index);
+                    i++;
+                }
+
+                String key = start + ":" + end;
+                Group group = byInterval.get(key);
+                if (group == null) {
+                    group = new Group(start, end);
+                    byInterval.put(key, group);
+                    groups.add(group);
+                }
+                group.types.add(entry.getKey());
+                group.indexes.addAll(indexes);
+            }
+        }
+        return groups;
+    }
+
+    private static void await(Group group, String[] errors, DailyBucketCache cache, RollupStore rollups) throws InterruptedException {
+        String error = null;
+        try {
+            Tasks.await(group.task, DELETE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } catch (ExecutionException e) {
+            error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+        } catch (TimeoutException e) {
+            error = "Delete timed out";
+        }
+        if (error != null) {
+            for (int index : group.indexes) {
+                errors[index] = error;
+            }
+        } else if (group.types.contains(WriteJournal.FOOD)) {
+            if (cache != null) {
+                cache.invalidate(DataType.AGGREGATE_NUTRITION_SUMMARY.getName(), group.start, group.end);
+            }
+            if (rollups != null) {
+                rollups.invalidate(RollupStore.NUTRITION, group.start, group.end);
+            }
+        }
+    }
+
+    static class Range
+    {
+        final int index;
+        final String type;
+        final long start;
+        final long end;
+
+        Range(int index, String type, long start, long end) {
+            this.index = index;
+            this.type = type;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    static class Group
+    {
+        final long start;
+        final long end;
+        final Set<String> types = new LinkedHashSet<>();
+        final List<Integer> indexes = new ArrayList<>();
+        Task<Void> task;
+
+        Group(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
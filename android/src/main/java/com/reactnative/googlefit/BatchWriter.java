@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.fitness.HistoryClient;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataSource;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Inserts many samples of one data type with as few insertData calls as possible.
+ *
+ * Samples are turned into points of a single app data source and packed into data sets of at most
+ * {@link #MAX_POINTS_PER_DATA_SET} points; up to {@code parallelism} data sets are inserted at the same
+ * time. The result has one {success, error} entry per sample, in input order, so a bad sample or a
+ * failed data set never hides what happened to the rest. A sample that could not be turned into a point
+ * also gets {@code invalid: true}; writing it again cannot succeed.
+ */
+public class BatchWriter
+{
+    private static final String TAG = "BatchWriter";
+
+    // Google Fit rejects insert requests above roughly 1000 points per data set
+    public static final int MAX_POINTS_PER_DATA_SET = 1000;
+    public static final int DEFAULT_PARALLELISM = 2;
+    private static final long INSERT_TIMEOUT_MINUTES = 1;
+
+    public interface PointFactory
+    {
+        /**
+         * @throws IllegalArgumentException or any RuntimeException for a sample that cannot be written
+         */
+        DataPoint create(DataSource dataSource, ReadableMap sample);
+    }
+
+    private final int parallelism;
+
+    public BatchWriter() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    public BatchWriter(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * The raw data source samples written by this library belong to.
+     */
+    public static DataSource appDataSource(DataType dataType) {
+        return new DataSource.Builder()
+                .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
+                .setDataType(dataType)
+                .setType(DataSource.TYPE_RAW)
+                .build();
+    }
+
+    public WritableArray insert(HistoryClient client, DataType dataType, ReadableArray samples, PointFactory factory)
+            throws InterruptedException {
+        DataSource dataSource = appDataSource(dataType);
+        String[] errors = new String[samples.size()];
+        boolean[] invalid = new boolean[samples.size()];
+
+        List<Chunk> chunks = new ArrayList<>();
+        Chunk chunk = null;
+        for (int i = 0; i < samples.size(); i++) {
+            if (chunk == null || chunk.indexes.size() >= MAX_POINTS_PER_DATA_SET) {
+                chunk = new Chunk(DataSet.builder(dataSource));
+                chunks.add(chunk);
+            }
+            try {
+                chunk.builder.add(factory.create(dataSource, samples.getMap(i)));
+                chunk.indexes.add(i);
+            } catch (RuntimeException e) {
+                errors[i] = e.getMessage() != null ? e.getMessage() : e.toString();
+                invalid[i] = true;
+            }
+        }
+
+        ArrayDeque<Chunk> inFlight = new ArrayDeque<>();
+        for (Chunk next : chunks) {
+            if (next.indexes.isEmpty()) {
+                continue;
+            }
+            if (inFlight.size() >= parallelism) {
+                await(inFlight.poll(), errors);
+            }
+            next.task = client.insertData(next.builder.build());
+            inFlight.add(next);
+        }
+        while (!inFlight.isEmpty()) {
+            await(inFlight.poll(), errors);
+        }
+
+        WritableArray results = Arguments.createArray();
+        int failed = 0;
+        for (int i = 0; i < errors.length; i++) {
+            WritableMap result = Arguments.createMap();
+            result.putBoolean("success", errors[i] == null);
+            if (errors[i] != null) {
+                result.putString("error", errors[i]);
+                failed++;
+            }
+            if (invalid[i]) {
+                result.putBoolean("invalid", true);
+            }
+            results.pushMap(result);
+        }
+        Log.i(TAG, "Inserted " + (samples.size() - failed) + " of " + samples.size() + " samples in " + chunks.size() + " data sets");
+        return results;
+    }
+
+    private static void await(Chunk chunk, String[] errors) throws InterruptedException {
+        String error = null;
+        try {
+            Tasks.await(chunk.task, INSERT_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } catch (ExecutionException e) {
+            error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+        } catch (TimeoutException e) {
+            error = "Insert timed out";
+        }
+        if (error != null) {
+            for (int index : chunk.indexes) {
+                errors[index] = error;
+            }
+        }
+    }
+
+    private static class Chunk
+    {
+        final DataSet.Builder builder;
+        final List<Integer> indexes = new ArrayList<>();
+        Task<Void> task;
+
+        Chunk(DataSet.Builder builder) {
+            this.builder = builder;
+        }
+    }
+}
@@ -9,35 +9,31 @@
 
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
-import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
-import com.facebook.react.bridge.WritableMap;
-import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSet;
 import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
-import com.google.android.gms.fitness.request.DataDeleteRequest;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResponse;
 import com.google.android.gms.fitness.result.DataReadResult;
 import com.google.android.gms.fitness.data.HealthDataTypes;
 import com.google.android.gms.fitness.data.HealthFields;
 import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
+
+import org.json.JSONException;
 
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -48,10 +44,25 @@ public class BodyHistory {
 
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
-    private DataSet Dataset;
     private DataType dataType;
 
     private static final String TAG = "Body History";
+    private static final int MAX_WEIGHT_BUCKETS = 2000;
+
+    /**
+     * Points of {value, date} weight or height samples.
+     */
+    static final BatchWriter.PointFactory POINT_FACTORY = new BatchWriter.PointFactory()
+    {
+        @Override
+        public DataPoint create(DataSource dataSource, ReadableMap sample) {
+            long date = (long) sample.getDouble("date");
+            return DataPoint.builder(dataSource)
+                    .setTimeInterval(date, date, TimeUnit.MILLISECONDS)
+                    .setFloatValues((float) sample.getDouble("value"))
+                    .build();
+        }
+    };
 
     public BodyHistory(ReactContext reactContext, GoogleFitManager googleFitManager, DataType dataType){
         this.mReactContext = reactContext;
@@ -68,13 +79,22 @@ public class BodyHistory {
     }
 
     public ReadableArray getHistory(long startTime, long endTime) throws InterruptedException, TimeoutException, ExecutionException {
+        return getHistory(startTime, endTime, this.dataType);
+    }
+
+    public ReadableArray getHistory(long startTime, long endTime, DataType dataType) throws InterruptedException, TimeoutException, ExecutionException {
+        ResultStream result = ResultStream.collect();
+        getHistory(startTime, endTime, dataType, result);
+        return (ReadableArray) result.result();
+    }
+
+    public void getHistory(long startTime, long endTime, DataType dataType, ResultStream result) throws InterruptedException, TimeoutException, ExecutionException {
         DateFormat dateFormat = DateFormat.getDateInstance();
         // for height we need to take time, since GoogleFit foundation - https://stackoverflow.com/questions/28482176/read-the-height-in-googlefit-in-android
-        startTime = this.dataType == DataType.TYPE_WEIGHT ? startTime : 1401926400;
-        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
+        startTime = dataType == DataType.TYPE_WEIGHT ? startTime : 1401926400;
 
-        if (this.dataType == DataType.TYPE_WEIGHT) {
+        List<DataReadResponse> responses;
+        if (dataType == DataType.TYPE_WEIGHT) {
             // In general here we want to set the bucket size to the smallest possible allowed, in case the 
             // user weighs themselves in a short interval (e.g. before and after a meal)
             //
@@ -82,203 +102,111 @@ public class BodyHistory {
             // can be returned in an aggregated query - anything more than this and the fitness API takes 
             // ages to respond and/or no response at all on both Galaxy S5 (6.0.1) and Huawei P9 Lite (7.0)
             //
-            // So, divide the time range by 2,000 to be on the safe side
-            long bucketSizeMillis = (endTime - startTime) / 2000;
+            // So, divide the time range by 2,000 to be on the safe side. That fits one request, the range
+            // query planner only splits the read if the 1 minute floor below ever yields more buckets
+            long bucketSizeMillis = (endTime - startTime) / MAX_WEIGHT_BUCKETS;
 
             // We don't need any finer granularity than 1 minute, so make buckets at least this size to keep 
             // the number of buckets low if not much time has elapsed since the last query
-            bucketSizeMillis = Math.max(bucketSizeMillis, 60 * 1000);
-
-            readRequestBuilder
-                .aggregate(DataType.TYPE_WEIGHT, DataType.AGGREGATE_WEIGHT_SUMMARY)
-                .bucketByTime((int)bucketSizeMillis, TimeUnit.MILLISECONDS);
+            final int bucketSize = (int) Math.max(bucketSizeMillis, 60 * 1000);
+
+            responses = googleFitManager.getRangeQueryPlanner().read(
+                    googleFitManager.getHistoryClient(), startTime, endTime,
+                    RangeQueryPlanner.windowForBuckets(bucketSize, MAX_WEIGHT_BUCKETS),
+                    new RangeQueryPlanner.RequestFactory() {
+                        @Override
+                        public DataReadRequest create(long windowStart, long windowEnd) {
+                            return new DataReadRequest.Builder()
+                                    .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                    .aggregate(DataType.TYPE_WEIGHT, DataType.AGGREGATE_WEIGHT_SUMMARY)
+                                    .bucketByTime(bucketSize, TimeUnit.MILLISECONDS)
+                                    .build();
+                        }
+                    });
         } else {
-            readRequestBuilder.read(this.dataType);
-            readRequestBuilder.setLimit(1); // need only one height, since it's unchangable
+            DataReadRequest readRequest = new DataReadRequest.Builder()
+                    .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
+                    .read(dataType)
+                    .setLimit(1) // need only one height, since it's unchangable
+                    .build();
+
+            Task<DataReadResponse> task = googleFitManager.getHistoryClient().readData(readRequest);
+            responses = Collections.singletonList(QueryMetrics.await(task));
         }
 
-        DataReadRequest readRequest = readRequestBuilder.build();
-
-        Task<DataReadResponse> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).readData(readRequest);
-        DataReadResponse dataReadResult = Tasks.await(task, 1, TimeUnit.MINUTES);
-
-        WritableArray map = Arguments.createArray();
+        RowWriter map = result.rows();
+        Format formatter = new SimpleDateFormat("EEE");
 
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
+        for (DataReadResponse dataReadResult : responses) {
+            //Used for aggregated data
+            if (dataReadResult.getBuckets().size() > 0) {
+                for (Bucket bucket : dataReadResult.getBuckets()) {
+                    List<DataSet> dataSets = bucket.getDataSets();
+                    for (DataSet dataSet : dataSets) {
+                        processDataSet(dataSet, map, dataType, formatter);
+                    }
                 }
             }
-        }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
+            //Used for non-aggregated data
+            else if (dataReadResult.getDataSets().size() > 0) {
+                for (DataSet dataSet : dataReadResult.getDataSets()) {
+                    processDataSet(dataSet, map, dataType, formatter);
+                }
             }
         }
-        return map;
     }
 
-    public boolean save(ReadableMap sample) {
-        this.Dataset = createDataForRequest(
-                this.dataType,    // for height, it would be DataType.TYPE_HEIGHT
-                DataSource.TYPE_RAW,
-                sample.getDouble("value"),                  // weight in kgs, height in metrs
-                (long)sample.getDouble("date"),              // start time
-                (long)sample.getDouble("date"),                // end time
-                TimeUnit.MILLISECONDS                // Time Unit, for example, TimeUnit.MILLISECONDS
-        );
-        new InsertAndVerifyDataTask(this.Dataset).execute();
+    /**
+     * Queues the sample in the write journal; it reaches Google Fit with the journal's next flush.
+     */
+    public boolean save(ReadableMap sample) throws JSONException {
+        return googleFitManager.getWriteJournal().appendInsert(journalTarget(), sample);
+    }
 
-        return true;
+    /**
+     * Inserts {value, date} samples of the given type (kg for weight, meters for height) in batches.
+     */
+    public WritableArray saveAll(ReadableArray samples, DataType dataType) throws InterruptedException {
+        return googleFitManager.getBatchWriter().insert(
+                googleFitManager.getHistoryClient(), dataType, samples, POINT_FACTORY);
     }
 
     public boolean delete(ReadableMap sample) {
         long endTime = (long) sample.getDouble("endTime");
         long startTime = (long) sample.getDouble("startTime");
-        new DeleteDataTask(startTime, endTime, this.dataType).execute();
-        return true;
-    }
-
-    //Async fit data delete
-    private class DeleteDataTask extends AsyncTask<Void, Void, Void> {
-
-        long startTime;
-        long endTime;
-        DataType dataType;
-
-        DeleteDataTask(long startTime, long endTime, DataType dataType) {
-            this.startTime = startTime;
-            this.endTime = endTime;
-        }
-
-        @Override
-        protected Void doInBackground(Void... params) {
-            try {
-                DataDeleteRequest request = new DataDeleteRequest.Builder()
-                        .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
-                        .addDataType(this.dataType)
-                        .build();
-
-
-                Task<Void> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).deleteData(request);
-                Tasks.await(task, 1, TimeUnit.MINUTES);
-
-                if (task.isSuccessful()) {
-                    Log.w("myLog", "+Successfully deleted data.");
-                } else {
-                    Log.w("myLog", "+Failed to delete data.");
-                }
-
-            } catch (Exception e) {
-                Log.w(TAG, "Error occurred: "+e.getMessage());
-                e.printStackTrace();
-            }
-            return null;
-        }
-    }
-
-
-    //Async fit data insert
-    private class InsertAndVerifyDataTask extends AsyncTask<Void, Void, Void> {
-
-        private DataSet Dataset;
-
-        InsertAndVerifyDataTask(DataSet dataset) {
-            this.Dataset = dataset;
-        }
-
-        protected Void doInBackground(Void... params) {
-            try {
-                // Create a new dataset and insertion request.
-                DataSet dataSet = this.Dataset;
-
-                // [START insert_dataset]
-                // Then, invoke the History API to insert the data and await the result, which is
-                // possible here because of the {@link AsyncTask}. Always include a timeout when calling
-                // await() to prevent hanging that can occur from the service being shutdown because
-                // of low memory or other conditions.
-                //Log.i(TAG, "Inserting the dataset in the History API.");
-
-                Task<Void> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).insertData(dataSet);
-                Tasks.await(task, 1, TimeUnit.MINUTES);
-
-                // Before querying the data, check to see if the insertion succeeded.
-                if (!task.isSuccessful()) {
-                    //Log.i(TAG, "There was a problem inserting the dataset.");
-                    return null;
-                }
-
-                //Log.i(TAG, "Data insert was successful!");
-
-
-            } catch (Exception e) {
-                Log.w(TAG, "Error occurred: "+e.getMessage());
-                e.printStackTrace();
-            }
-            return null;
-        }
+        return googleFitManager.getWriteJournal().appendDelete(journalTarget(), startTime, endTime);
     }
 
-    /**
-     * This method creates a dataset object to be able to insert data in google fit
-     * @param dataType DataType Fitness Data Type object
-     * @param dataSourceType int Data Source Id. For example, DataSource.TYPE_RAW
-     * @param value Object Values for the fitness data. They must be int or float
-     * @param startTime long Time when the fitness activity started
-     * @param endTime long Time when the fitness activity finished
-     * @param timeUnit TimeUnit Time unit in which period is expressed
-     * @return
-     */
-    private DataSet createDataForRequest(DataType dataType, int dataSourceType, Double value,
-                                         long startTime, long endTime, TimeUnit timeUnit) {
-        DataSource dataSource = new DataSource.Builder()
-                .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
-                .setDataType(dataType)
-                .setType(dataSourceType)
-                .build();
-
-        DataPoint.Builder builder = DataPoint.builder(dataSource).setTimeInterval(startTime, endTime, timeUnit);
-
-        float f1 = Float.valueOf(value.toString());
-        builder.setFloatValues(f1);
-
-        DataSet dataSet = DataSet.builder(dataSource).add(builder.build()).build();
-
-        return dataSet;
+    private String journalTarget() {
+        return this.dataType == DataType.TYPE_WEIGHT ? WriteJournal.WEIGHT : WriteJournal.HEIGHT;
     }
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
+    private void processDataSet(DataSet dataSet, RowWriter rows, DataType dataType, Format formatter) {
         //Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        Format formatter = new SimpleDateFormat("EEE");
-
-        WritableMap stepMap = Arguments.createMap();
 
+        // When there is a short interval between weight readings (< 1 hour or so), some phones e.g.
+        // Galaxy S5 use the average of the readings, whereas other phones e.g. Huawei P9 Lite use the
+        // most recent of the bunch (this might be related to Android versions - 6.0.1 vs 7.0 in this
+        // example for former and latter)
+        //
+        // For aggregated weight summary, only the min, max and average values are available (i.e. the
+        // most recent sample is not an option), so use average value to maximise the match between values
+        // returned here and values as reported by Google Fit app
+        Field field = dataType == DataType.TYPE_WEIGHT ? Field.FIELD_AVERAGE : Field.FIELD_HEIGHT;
+
+        Sample last = null;
         for (DataPoint dp : dataSet.getDataPoints()) {
-            String day = formatter.format(new Date(dp.getStartTime(TimeUnit.MILLISECONDS)));
-
-            stepMap.putString("day", day);
-            stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-            stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
+            long start = dp.getStartTime(TimeUnit.MILLISECONDS);
+            last = new Sample(start, start, dp.getEndTime(TimeUnit.MILLISECONDS), null,
+                    new float[]{dp.getValue(field).asFloat()});
+        }
 
-            // When there is a short interval between weight readings (< 1 hour or so), some phones e.g.
-            // Galaxy S5 use the average of the readings, whereas other phones e.g. Huawei P9 Lite use the
-            // most recent of the bunch (this might be related to Android versions - 6.0.1 vs 7.0 in this
-            // example for former and latter)
-            //
-            // For aggregated weight summary, only the min, max and average values are available (i.e. the
-            // most recent sample is not an option), so use average value to maximise the match between values
-            // returned here and values as reported by Google Fit app
-            if (this.dataType == DataType.TYPE_WEIGHT) {
-                stepMap.putDouble("value", dp.getValue(Field.FIELD_AVERAGE).asFloat());
-            } else {
-                stepMap.putDouble("value", dp.getValue(Field.FIELD_HEIGHT).asFloat());
-            }
+        // Every bucket gets a row, an empty one has no fields
+        if (last != null) {
+            SampleRows.writeValue(last, rows, formatter);
+        } else {
+            rows.endRow();
         }
-        map.pushMap(stepMap);
     }
 
 }
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rows as an array of bridge maps, the default "rows" response format.
+ */
+public class BridgeRows extends RowWriter
+{
+    private WritableArray rows = Arguments.createArray();
+    private WritableMap row;
+    private int length = 0;
+    private final Map<String, BridgeRows> maps = new LinkedHashMap<>();
+    private final Map<String, BridgeRows> arrays = new LinkedHashMap<>();
+
+    public BridgeRows() {
+    }
+
+    private BridgeRows(BridgeRows parent) {
+        super(parent);
+    }
+
+    @Override
+    protected void writeDouble(String key, double value) {
+        row().putDouble(key, value);
+    }
+
+    @Override
+    protected void writeString(String key, String value) {
+        if (value != null) {
+            row().putString(key, value);
+        } else {
+            row().putNull(key);
+        }
+    }
+
+    @Override
+    protected void writeBoolean(String key, boolean value) {
+        row().putBoolean(key, value);
+    }
+
+    @Override
+    protected RowWriter writeMap(String key) {
+        BridgeRows map = maps.get(key);
+        if (map == null) {
+            map = new BridgeRows(this);
+            maps.put(key, map);
+        }
+        return map;
+    }
+
+    @Override
+    protected RowWriter writeArray(String key) {
+        BridgeRows array = new BridgeRows(this);
+        arrays.put(key, array);
+        return array;
+    }
+
+    @Override
+    protected void writeRowEnd() {
+        rows.pushMap(finishRow());
+        length++;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    /**
+     * The completed rows.
+     */
+    public WritableArray array() {
+        return rows;
+    }
+
+    /**
+     * Hands out the completed rows and starts a new array, e.g. for the next chunk of a stream.
+     */
+    public WritableArray drain() {
+        WritableArray drained = rows;
+        rows = Arguments.createArray();
+        length = 0;
+        return drained;
+    }
+
+    /**
+     * Completes the current row and returns it instead of adding it, for results that are one object.
+     */
+    public WritableMap takeRow() {
+        return finishRow();
+    }
+
+    private WritableMap finishRow() {
+        WritableMap finished = row();
+        for (Map.Entry<String, BridgeRows> map : maps.entrySet()) {
+            finished.putMap(map.getKey(), map.getValue().finishRow());
+        }
+        for (Map.Entry<String, BridgeRows> array : arrays.entrySet()) {
+            finished.putArray(array.getKey(), array.getValue().rows);
+        }
+        maps.clear();
+        arrays.clear();
+        row = null;
+        return finished;
+    }
+
+    private WritableMap row() {
+        if (row == null) {
+            row = Arguments.createMap();
+        }
+        return row;
+    }
+}
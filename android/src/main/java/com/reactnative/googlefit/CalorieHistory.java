@@ -10,36 +10,28 @@
 
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
-import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
-import com.facebook.react.bridge.WritableMap;
-import com.google.android.gms.fitness.Fitness;
-import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
-import com.google.android.gms.fitness.data.DataSet;
 import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResponse;
-import com.google.android.gms.tasks.Task;
-import com.google.android.gms.tasks.Tasks;
 
-import org.json.JSONObject;
+import org.json.JSONException;
 
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -49,9 +41,9 @@ public class CalorieHistory
 {
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
-    private DataSet FoodDataSet;
 
     private static final String TAG = "CalorieHistory";
+    private static final int BASAL_AVERAGE_DAYS = 7;
 
     public CalorieHistory(ReactContext reactContext, GoogleFitManager googleFitManager) {
         this.mReactContext = reactContext;
@@ -59,213 +51,178 @@ public class CalorieHistory
     }
 
     public ReadableArray aggregateDataByDate(long startTime, long endTime, boolean basalCalculation) throws InterruptedException, TimeoutException, ExecutionException {
+        ResultStream result = ResultStream.collect();
+        aggregateDataByDate(startTime, endTime, basalCalculation, result);
+        return (ReadableArray) result.result();
+    }
+
+    public void aggregateDataByDate(long startTime, long endTime, boolean basalCalculation, ResultStream result) throws InterruptedException, TimeoutException, ExecutionException {
         DateFormat dateFormat = DateFormat.getDateInstance();
         Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
         Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
-        //Check how much calories were expended in specific days.
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
-                .bucketByTime(1, TimeUnit.DAYS)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                .build();
-
-        Task<DataReadResponse> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).readData(readRequest);
-        DataReadResponse dataReadResult = Tasks.await(task, 1, TimeUnit.MINUTES);
-
-        WritableArray map = Arguments.createArray();
+        List<Sample> entries = googleFitManager.getDailyBucketCache().load(
+                googleFitManager.getAccountKey(), DataType.AGGREGATE_CALORIES_EXPENDED.getName(), "", startTime, endTime,
+                new DailyBucketCache.BucketReader()
+                {
+                    @Override
+                    public List<DataReadResponse> read(long start, long end) throws InterruptedException, TimeoutException, ExecutionException {
+                        return googleFitManager.getRangeQueryPlanner().read(
+                                googleFitManager.getHistoryClient(), start, end,
+                                RangeQueryPlanner.windowForBuckets(DailyBucketCache.DAY_MILLIS),
+                                new RangeQueryPlanner.RequestFactory()
+                                {
+                                    @Override
+                                    public DataReadRequest create(long windowStart, long windowEnd) {
+                                        //Check how much calories were expended in specific days.
+                                        return new DataReadRequest.Builder()
+                                                .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
+                                                .bucketByTime(1, TimeUnit.DAYS)
+                                                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                                .build();
+                                    }
+                                });
+                    }
+                },
+                new DailyBucketCache.PointConverter()
+                {
+                    @Override
+                    public float[] toValues(DataPoint dp) {
+                        return new float[]{dp.getValue(Field.FIELD_CALORIES).asFloat()};
+                    }
+                });
 
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map, basalCalculation);
-                }
-            }
-        }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            Log.i(TAG, "Number of returned DataSets: " + dataReadResult.getDataSets().size());
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map, basalCalculation);
+        float[] basal = null;
+        if (basalCalculation) {
+            try {
+                basal = getBasalAVGs(startTime, endTime);
+            } catch (Exception e) {
+                Log.w(TAG, "Could not read basal metabolic rate: " + e.getMessage());
             }
         }
 
-        return map;
+        RowWriter map = result.rows();
+        Format formatter = new SimpleDateFormat("EEE");
+        Log.i(TAG, "Number of entries: " + entries.size());
+        for (Sample entry : entries) {
+            int day = Samples.bucketIndex(entry, startTime, DailyBucketCache.DAY_MILLIS);
+            processEntry(entry, map, formatter, basal != null && day >= 0 && day < basal.length ? basal[day] : 0);
+        }
     }
 
 
-    // utility function that gets the basal metabolic rate averaged over a week
-    private float getBasalAVG(long _et) throws Exception {
-        float basalAVG = 0;
-        Calendar cal = java.util.Calendar.getInstance();
-        cal.setTime(new Date(_et));
-        //set start time to a week before end time
-        cal.add(Calendar.WEEK_OF_YEAR, -1);
-        long nst = cal.getTimeInMillis();
-
-        DataReadRequest.Builder builder = new DataReadRequest.Builder();
-        builder.aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
-        builder.bucketByTime(1, TimeUnit.DAYS);
-        builder.setTimeRange(nst, _et, TimeUnit.MILLISECONDS);
-        DataReadRequest readRequest = builder.build();
+    // utility function that gets the basal metabolic rate averaged over the week ending with each day of
+    // the range. The daily BMR summaries of the range and the six days before it are read once, closed days
+    // come from the daily cache.
+    private float[] getBasalAVGs(long startTime, long endTime) throws InterruptedException, TimeoutException, ExecutionException {
+        long lookbackStart = startTime - (BASAL_AVERAGE_DAYS - 1) * DailyBucketCache.DAY_MILLIS;
+
+        List<Sample> entries = googleFitManager.getDailyBucketCache().load(
+                googleFitManager.getAccountKey(), DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY.getName(), "",
+                lookbackStart, endTime,
+                new DailyBucketCache.BucketReader()
+                {
+                    @Override
+                    public List<DataReadResponse> read(long start, long end) throws InterruptedException, TimeoutException, ExecutionException {
+                        return googleFitManager.getRangeQueryPlanner().read(
+                                googleFitManager.getHistoryClient(), start, end,
+                                RangeQueryPlanner.windowForBuckets(DailyBucketCache.DAY_MILLIS),
+                                new RangeQueryPlanner.RequestFactory()
+                                {
+                                    @Override
+                                    public DataReadRequest create(long windowStart, long windowEnd) {
+                                        return new DataReadRequest.Builder()
+                                                .aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY)
+                                                .bucketByTime(1, TimeUnit.DAYS)
+                                                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                                .build();
+                                    }
+                                });
+                    }
+                },
+                new DailyBucketCache.PointConverter()
+                {
+                    @Override
+                    public float[] toValues(DataPoint dp) {
+                        // in the com.google.bmr.summary data type, each data point represents
+                        // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
+                        return new float[]{dp.getValue(Field.FIELD_AVERAGE).asFloat()};
+                    }
+                });
 
-        Task<DataReadResponse> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).readData(readRequest);
-        DataReadResponse dataReadResult = Tasks.await(task);
+        int days = Samples.bucketCount(lookbackStart, endTime, DailyBucketCache.DAY_MILLIS);
+        int[] counts = new int[days];
+        float[] sums = Samples.sumByBucket(entries, 0, lookbackStart, DailyBucketCache.DAY_MILLIS, days, counts);
 
-        if (dataReadResult.getStatus().isSuccess()) {
-            JSONObject obj = new JSONObject();
-            int avgsN = 0;
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                // in the com.google.bmr.summary data type, each data point represents
-                // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
-                DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
-                for (DataPoint dp : ds.getDataPoints()) {
-                    float avg = dp.getValue(Field.FIELD_AVERAGE).asFloat();
-                    basalAVG += avg;
-                    avgsN++;
-                }
-            }
-            // do the average of the averages
-            if (avgsN != 0) basalAVG /= avgsN; // this a daily average
-            return basalAVG;
-        } else throw new Exception(dataReadResult.getStatus().getStatusMessage());
+        // do the average of the averages over a sliding week, this a daily average
+        return Samples.trailingAverages(sums, counts, BASAL_AVERAGE_DAYS);
     }
 
 
-    private void processDataSet(DataSet dataSet, WritableArray map, boolean basalCalculation) {
-        Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        DateFormat timeFormat = DateFormat.getTimeInstance();
-        Format formatter = new SimpleDateFormat("EEE");
-        WritableMap stepMap = Arguments.createMap();
+    private void processEntry(Sample entry, RowWriter stepMap, Format formatter, float basal) {
+        String day = formatter.format(new Date(entry.start));
 
-
-        for (DataPoint dp : dataSet.getDataPoints()) {
-            Log.i(TAG, "Data point:");
-            Log.i(TAG, "\tType: " + dp.getDataType().getName());
-            Log.i(TAG, "\tStart: " + dateFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)) + " " + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "\tEnd: " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)) + " " + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-
-            String day = formatter.format(new Date(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "Day: " + day);
-
-            for (Field field : dp.getDataType().getFields()) {
-                Log.i("History", "\tField: " + field.getName() +
-                        " Value: " + dp.getValue(field));
-
-                stepMap.putString("day", day);
-                stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                float basal = 0;
-                if (basalCalculation) {
-                    try {
-                        basal = getBasalAVG(dp.getEndTime(TimeUnit.MILLISECONDS));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-                stepMap.putDouble("calorie", dp.getValue(field).asFloat() - basal);
-                map.pushMap(stepMap);
-            }
-        }
+        stepMap.putString("day", day);
+        stepMap.putDouble("startDate", entry.start);
+        stepMap.putDouble("endDate", entry.end);
+        stepMap.putDouble("calorie", entry.values[0] - basal);
+        stepMap.endRow();
     }
 
-    public boolean saveFood(ReadableMap foodSample) {
-        this.FoodDataSet = createDataForRequest(
-                DataType.TYPE_NUTRITION,    // for height, it would be DataType.TYPE_HEIGHT
-                DataSource.TYPE_RAW,
-                foodSample.getMap("nutrients").toHashMap(),
-                foodSample.getInt("mealType"),                  // meal type
-                foodSample.getString("foodName"),               // food name
-                (long) foodSample.getDouble("date"),             // start time
-                (long) foodSample.getDouble("date"),             // end time
-                TimeUnit.MILLISECONDS                // Time Unit, for example, TimeUnit.MILLISECONDS
-        );
-        new CalorieHistory.InsertAndVerifyDataTask(this.FoodDataSet).execute();
-
-        return true;
+    /**
+     * Queues the food sample in the write journal; the nutrition cache is invalidated once it is written.
+     */
+    public boolean saveFood(ReadableMap foodSample) throws JSONException {
+        return googleFitManager.getWriteJournal().appendInsert(WriteJournal.FOOD, foodSample);
     }
 
-    //Async fit data insert
-    private class InsertAndVerifyDataTask extends AsyncTask<Void, Void, Void>
-    {
-
-        private DataSet FoodDataset;
-
-        InsertAndVerifyDataTask(DataSet dataset) {
-            this.FoodDataset = dataset;
-        }
-
-        protected Void doInBackground(Void... params) {
-            try {
-                // Create a new dataset and insertion request.
-                DataSet dataSet = this.FoodDataset;
-
-                // [START insert_dataset]
-                // Then, invoke the History API to insert the data and await the result, which is
-                // possible here because of the {@link AsyncTask}. Always include a timeout when calling
-                // await() to prevent hanging that can occur from the service being shutdown because
-                // of low memory or other conditions.
-                //Log.i(TAG, "Inserting the dataset in the History API.");
-
-                Task<Void> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).insertData(dataSet);
-                Tasks.await(task, 1, TimeUnit.MINUTES);
-
-                // Before querying the data, check to see if the insertion succeeded.
-                if (!task.isSuccessful()) {
-                    //Log.i(TAG, "There was a problem inserting the dataset.");
-                    return null;
-                }
-
-                //Log.i(TAG, "Data insert was successful!");
-            } catch (Exception e) {
-
+    /**
+     * Inserts food samples, shaped like the one of {@link #saveFood(ReadableMap)}, in batches.
+     */
+    public WritableArray saveFoods(ReadableArray foodSamples) throws InterruptedException {
+        WritableArray results = googleFitManager.getBatchWriter().insert(
+                googleFitManager.getHistoryClient(), DataType.TYPE_NUTRITION, foodSamples, FOOD_POINT_FACTORY);
+        for (int i = 0; i < foodSamples.size(); i++) {
+            if (results.getMap(i).getBoolean("success")) {
+                long date = (long) foodSamples.getMap(i).getDouble("date");
+                googleFitManager.getDailyBucketCache().invalidate(DataType.AGGREGATE_NUTRITION_SUMMARY.getName(), date);
+                googleFitManager.getRollupStore().invalidate(RollupStore.NUTRITION, date, date);
             }
-            return null;
         }
+        return results;
     }
 
     /**
-     * This method creates a dataset object to be able to insert data in google fit
-     *
-     * @param dataType       DataType Fitness Data Type object
-     * @param dataSourceType int Data Source Id. For example, DataSource.TYPE_RAW
-     * @param values         Object Values for the fitness data. They must be HashMap
-     * @param mealType       int Value of enum. For example Field.MEAL_TYPE_SNACK
-     * @param name           String Dish name. For example "banana"
-     * @param startTime      long Time when the fitness activity started
-     * @param endTime        long Time when the fitness activity finished
-     * @param timeUnit       TimeUnit Time unit in which period is expressed
-     * @return
+     * Points of food samples, shaped like the one of {@link #saveFood(ReadableMap)}.
      */
-    private DataSet createDataForRequest(DataType dataType, int dataSourceType,
-                                         HashMap<String, Object> values, int mealType, String name,
-                                         long startTime, long endTime, TimeUnit timeUnit) {
-
-        DataSource dataSource = new DataSource.Builder()
-                .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
-                .setDataType(dataType)
-                .setType(dataSourceType)
-                .build();
+    static final BatchWriter.PointFactory FOOD_POINT_FACTORY = new BatchWriter.PointFactory()
+    {
+        @Override
+        public DataPoint create(DataSource dataSource, ReadableMap foodSample) {
+            long date = (long) foodSample.getDouble("date");
+            return createFoodPoint(dataSource, foodSample.getMap("nutrients").toHashMap(),
+                    foodSample.getInt("mealType"), foodSample.getString("foodName"),
+                    date, date, TimeUnit.MILLISECONDS);
+        }
+    };
 
+    private static DataPoint createFoodPoint(DataSource dataSource, HashMap<String, Object> values, int mealType,
+                                             String name, long startTime, long endTime, TimeUnit timeUnit) {
         DataPoint.Builder builder = DataPoint.builder(dataSource);
         builder.setTimeInterval(startTime, endTime, timeUnit);
 
         builder.setField(Field.FIELD_FOOD_ITEM, name);
         builder.setField(Field.FIELD_MEAL_TYPE, mealType);
+        Map<String, Float> nutrients = new HashMap<>();
         for (String key : values.keySet()) {
             Float value = Float.valueOf(values.get(key).toString());
 
             if (value > 0) {
-                builder.setField(Field.FIELD_NUTRIENTS, value);
+                nutrients.put(key, value);
             }
         }
+        builder.setField(Field.FIELD_NUTRIENTS, nutrients);
 
-        DataSet dataSet = DataSet.builder(dataSource).add(builder.build()).build();
-
-        return dataSet;
+        return builder.build();
     }
 }
@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rows written straight into parallel, typed column buffers.
+ *
+ * Every key becomes one {@link Column} of {@link #length()} values, typed by the first value written
+ * under it; later values of another type are dropped. Numbers are kept as doubles with NaN for missing
+ * ones, strings as indexes into the dictionary shared with every nested table, nested objects as one
+ * nested table and nested arrays as one table per row. {@link ColumnarEncoder} sends the buffers over
+ * the bridge once the query is done.
+ */
+public class ColumnTable extends RowWriter
+{
+    public static final int NUMBER = 0;
+    public static final int STRING = 1;
+    public static final int BOOLEAN = 2;
+    public static final int MAP = 3;
+    public static final int ARRAY = 4;
+
+    static final byte MISSING = 0;
+    static final byte FALSE = 1;
+    static final byte TRUE = 2;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final List<String> strings;
+    private final Map<String, Integer> stringIndexes;
+    private final Map<String, Column> columns = new LinkedHashMap<>();
+    private int length = 0;
+    private int capacity = 0;
+
+    public ColumnTable() {
+        this.strings = new ArrayList<>();
+        this.stringIndexes = new HashMap<>();
+    }
+
+    private ColumnTable(ColumnTable parent) {
+        super(parent);
+        this.strings = parent.strings;
+        this.stringIndexes = parent.stringIndexes;
+    }
+
+    /**
+     * One column; only the first {@link #length()} entries of its buffer are rows.
+     */
+    public static class Column
+    {
+        public final int type;
+        double[] numbers;
+        int[] indexes;
+        byte[] flags;
+        ColumnTable table;
+        ColumnTable[] tables;
+
+        private Column(int type, int capacity, ColumnTable parent) {
+            this.type = type;
+            switch (type) {
+                case NUMBER:
+                    numbers = new double[0];
+                    break;
+                case STRING:
+                    indexes = new int[0];
+                    break;
+                case BOOLEAN:
+                    flags = new byte[0];
+                    break;
+                case MAP:
+                    table = new ColumnTable(parent);
+                    break;
+                default:
+                    tables = new ColumnTable[0];
+            }
+            grow(capacity);
+        }
+
+        private void grow(int capacity) {
+            if (numbers != null) {
+                int from = numbers.length;
+                numbers = Arrays.copyOf(numbers, capacity);
+                Arrays.fill(numbers, from, capacity, Double.NaN);
+            } else if (indexes != null) {
+                int from = indexes.length;
+                indexes = Arrays.copyOf(indexes, capacity);
+                Arrays.fill(indexes, from, capacity, -1);
+            } else if (flags != null) {
+                flags = Arrays.copyOf(flags, capacity);
+            } else if (tables != null) {
+                tables = Arrays.copyOf(tables, capacity);
+            }
+        }
+
+        /**
+         * The value of a number column at row, NaN when it is missing.
+         */
+        public double number(int row) {
+            return numbers[row];
+        }
+
+        /**
+         * The dictionary index of a string column at row, -1 when it is missing.
+         */
+        public int stringIndex(int row) {
+            return indexes[row];
+        }
+
+        /**
+         * {@link ColumnTable#TRUE}, {@link ColumnTable#FALSE} or {@link ColumnTable#MISSING}.
+         */
+        public byte flag(int row) {
+            return flags[row];
+        }
+
+        /**
+         * The nested table of a map column, one row per row of the parent.
+         */
+        public ColumnTable table() {
+            return table;
+        }
+
+        /**
+         * The nested table of an array column at row, null when it is missing.
+         */
+        public ColumnTable table(int row) {
+            return tables[row];
+        }
+    }
+
+    @Override
+    protected void writeDouble(String key, double value) {
+        Column column = column(key, NUMBER);
+        if (column != null) {
+            column.numbers[length] = value;
+        }
+    }
+
+    @Override
+    protected void writeString(String key, String value) {
+        if (value == null) {
+            return;
+        }
+        Column column = column(key, STRING);
+        if (column != null) {
+            column.indexes[length] = indexOf(value);
+        }
+    }
+
+    @Override
+    protected void writeBoolean(String key, boolean value) {
+        Column column = column(key, BOOLEAN);
+        if (column != null) {
+            column.flags[length] = value ? TRUE : FALSE;
+        }
+    }
+
+    @Override
+    protected RowWriter writeMap(String key) {
+        Column column = column(key, MAP);
+        if (column == null) {
+            return new ColumnTable(this);
+        }
+        column.table.padTo(length);
+        return column.table;
+    }
+
+    @Override
+    protected RowWriter writeArray(String key) {
+        ColumnTable table = new ColumnTable(this);
+        Column column = column(key, ARRAY);
+        if (column != null) {
+            column.tables[length] = table;
+        }
+        return table;
+    }
+
+    @Override
+    protected void writeRowEnd() {
+        ensureCapacity(length + 1);
+        for (Column column : columns.values()) {
+            if (column.type == MAP) {
+                column.table.padTo(length + 1);
+            }
+        }
+        length++;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    public Map<String, Column> columns() {
+        return columns;
+    }
+
+    /**
+     * The string dictionary, shared by this table and all of its nested tables.
+     */
+    public List<String> strings() {
+        return strings;
+    }
+
+    /**
+     * A number column as little-endian float64 values, NaN for the missing ones.
+     */
+    public byte[] packFloat64(Column column) {
+        ByteBuffer buffer = ByteBuffer.allocate(length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asDoubleBuffer().put(column.numbers, 0, length);
+        return buffer.array();
+    }
+
+    private Column column(String key, int type) {
+        ensureCapacity(length + 1);
+        Column column = columns.get(key);
+        if (column == null) {
+            column = new Column(type, capacity, this);
+            if (type == MAP) {
+                column.table.padTo(length);
+            }
+            columns.put(key, column);
+        }
+        return column.type == type ? column : null;
+    }
+
+    private void padTo(int rows) {
+        while (length < rows) {
+            writeRowEnd();
+        }
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows <= capacity) {
+            return;
+        }
+        capacity = Math.max(rows, Math.max(INITIAL_CAPACITY, capacity * 2));
+        for (Column column : columns.values()) {
+            column.grow(capacity);
+        }
+    }
+
+    private int indexOf(String value) {
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.add(value);
+            stringIndexes.put(value, index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Base64;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Map;
+
+/**
+ * Sends a {@link ColumnTable} over the bridge as parallel column arrays.
+ *
+ * A table looks like {length, types, columns}: every key of the rows becomes one column array of
+ * {@code length} values and {@code types} names its kind. Numbers and booleans are sent as they are,
+ * strings as indexes into the {@code strings} dictionary of the outermost table, nested objects as a
+ * nested table and nested arrays of objects as one nested table per row. Missing values are null.
+ *
+ * The packed variant sends number columns as one base64 string of little-endian float64 values (NaN
+ * for missing ones), so a long series crosses the bridge as a single value and JS can view it as a
+ * Float64Array without converting element by element.
+ */
+public class ColumnarEncoder
+{
+    public static final String FORMAT = "columnar";
+    public static final String PACKED_FORMAT = "packed";
+
+    private static final String NUMBER = "number";
+    private static final String FLOAT64 = "float64";
+    private static final String STRING = "string";
+    private static final String BOOLEAN = "boolean";
+    private static final String MAP = "map";
+    private static final String ARRAY = "array";
+
+    private final boolean packed;
+
+    private ColumnarEncoder(boolean packed) {
+        this.packed = packed;
+    }
+
+    public static boolean isColumnar(String format) {
+        return FORMAT.equals(format) || PACKED_FORMAT.equals(format);
+    }
+
+    public static WritableMap encode(ColumnTable table, boolean packed) {
+        WritableMap encoded = new ColumnarEncoder(packed).encodeTable(table);
+
+        WritableArray strings = Arguments.createArray();
+        for (String value : table.strings()) {
+            strings.pushString(value);
+        }
+        encoded.putString("format", packed ? PACKED_FORMAT : FORMAT);
+        encoded.putArray("strings", strings);
+        return encoded;
+    }
+
+    private WritableMap encodeTable(ColumnTable table) {
+        WritableMap columnTypes = Arguments.createMap();
+        WritableMap columns = Arguments.createMap();
+        for (Map.Entry<String, ColumnTable.Column> entry : table.columns().entrySet()) {
+            encodeColumn(table, entry.getKey(), entry.getValue(), columnTypes, columns);
+        }
+
+        WritableMap encoded = Arguments.createMap();
+        encoded.putInt("length", table.length());
+        encoded.putMap("types", columnTypes);
+        encoded.putMap("columns", columns);
+        return encoded;
+    }
+
+    private void encodeColumn(ColumnTable table, String key, ColumnTable.Column column,
+                              WritableMap columnTypes, WritableMap columns) {
+        int length = table.length();
+        if (column.type == ColumnTable.MAP) {
+            columnTypes.putString(key, MAP);
+            columns.putMap(key, encodeTable(column.table()));
+            return;
+        }
+
+        if (column.type == ColumnTable.NUMBER && packed) {
+            columnTypes.putString(key, FLOAT64);
+            columns.putString(key, Base64.encodeToString(table.packFloat64(column), Base64.NO_WRAP));
+            return;
+        }
+
+        WritableArray values = Arguments.createArray();
+        for (int row = 0; row < length; row++) {
+            switch (column.type) {
+                case ColumnTable.NUMBER:
+                    double number = column.number(row);
+                    if (Double.isNaN(number)) {
+                        values.pushNull();
+                    } else {
+                        values.pushDouble(number);
+                    }
+                    break;
+                case ColumnTable.STRING:
+                    int index = column.stringIndex(row);
+                    if (index < 0) {
+                        values.pushNull();
+                    } else {
+                        values.pushInt(index);
+                    }
+                    break;
+                case ColumnTable.BOOLEAN:
+                    byte flag = column.flag(row);
+                    if (flag == ColumnTable.MISSING) {
+                        values.pushNull();
+                    } else {
+                        values.pushBoolean(flag == ColumnTable.TRUE);
+                    }
+                    break;
+                default:
+                    ColumnTable nested = column.table(row);
+                    if (nested == null) {
+                        values.pushNull();
+                    } else {
+                        values.pushMap(encodeTable(nested));
+                    }
+            }
+        }
+
+        switch (column.type) {
+            case ColumnTable.NUMBER:
+                columnTypes.putString(key, NUMBER);
+                break;
+            case ColumnTable.STRING:
+                columnTypes.putString(key, STRING);
+                break;
+            case ColumnTable.BOOLEAN:
+                columnTypes.putString(key, BOOLEAN);
+                break;
+            default:
+                columnTypes.putString(key, ARRAY);
+        }
+        columns.putArray(key, values);
+    }
+}
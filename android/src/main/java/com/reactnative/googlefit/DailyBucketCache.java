@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.google.android.gms.fitness.data.Bucket;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.result.DataReadResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * On-device store of closed daily aggregate buckets.
+ *
+ * Rows are keyed by (account, data type, stream, bucket start). A bucket is only stored once it is a full
+ * day long and has been closed for at least {@link #SETTLE_MILLIS}. Days without data are stored as a
+ * marker row so they are not read again either. Buckets are read from Google Fit again as long as
+ * {@link RefreshPolicy} says late data can still change them.
+ */
+public class DailyBucketCache extends SQLiteOpenHelper
+{
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "RNGoogleFit.db";
+    private static final int DATABASE_VERSION = 2;
+    private static final String TABLE = "daily_buckets";
+
+    public static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    public static final long SETTLE_MILLIS = RefreshPolicy.SETTLE_MILLIS;
+
+    /**
+     * Reads the buckets of a Google Fit aggregate query, possibly as several windows in time order.
+     */
+    public interface BucketReader
+    {
+        List<DataReadResponse> read(long startTime, long endTime) throws InterruptedException, TimeoutException, ExecutionException;
+    }
+
+    /**
+     * Flattens one aggregated data point into the values stored for it.
+     */
+    public interface PointConverter
+    {
+        float[] toValues(DataPoint dp);
+    }
+
+    public DailyBucketCache(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "account TEXT NOT NULL, "
+                + "data_type TEXT NOT NULL, "
+                + "stream TEXT NOT NULL, "
+                + "bucket_start INTEGER NOT NULL, "
+                + "start INTEGER NOT NULL, "
+                + "end INTEGER NOT NULL, "
+                + "origin TEXT, "
+                + "vals BLOB, "
+                + "fetched_at INTEGER NOT NULL, "
+                + "PRIMARY KEY (account, data_type, stream, bucket_start, start))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Returns the daily entries for [startTime, endTime), reading from Google Fit only the days that are
+     * not cached yet. Buckets are anchored to startTime the same way bucketByTime(1, DAYS) does it.
+     */
+    public List<Sample> load(String account, String dataType, String stream, long startTime, long endTime,
+                            BucketReader reader, PointConverter converter)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        Map<Long, List<Sample>> cached = read(account, dataType, stream, startTime, endTime);
+
+        List<Sample> cachedSamples = new ArrayList<>();
+        for (List<Sample> bucket : cached.values()) {
+            cachedSamples.addAll(bucket);
+        }
+        List<Sample> samples = new ArrayList<>();
+
+        for (long[] range : missingRanges(startTime, endTime, cached.keySet())) {
+            for (DataReadResponse response : reader.read(range[0], range[1])) {
+                if (response.getBuckets().size() > 0) {
+                    Map<Long, List<Sample>> closed = new HashMap<>();
+                    for (Bucket bucket : response.getBuckets()) {
+                        long bucketStart = bucket.getStartTime(TimeUnit.MILLISECONDS);
+                        List<Sample> points = new ArrayList<>();
+                        for (DataSet dataSet : bucket.getDataSets()) {
+                            for (DataPoint dp : dataSet.getDataPoints()) {
+                                points.add(toSample(bucketStart, dp, converter));
+                            }
+                        }
+                        samples.addAll(points);
+
+                        // The last bucket of a range may be shorter than a day and is never cached
+                        if (bucket.getEndTime(TimeUnit.MILLISECONDS) - bucketStart == DAY_MILLIS) {
+                            if (points.isEmpty()) {
+                                points.add(new Sample(bucketStart, bucketStart, bucketStart, null, null));
+                            }
+                            closed.put(bucketStart, points);
+                        }
+                    }
+                    write(account, dataType, stream, closed);
+                } else {
+                    for (DataSet dataSet : response.getDataSets()) {
+                        for (DataPoint dp : dataSet.getDataPoints()) {
+                            samples.add(toSample(dp.getStartTime(TimeUnit.MILLISECONDS), dp, converter));
+                        }
+                    }
+                }
+            }
+        }
+
+        // Cached buckets come sorted from the database, only the fetched ones need sorting
+        Samples.sortByStart(samples);
+        return Samples.merge(Arrays.asList(cachedSamples, samples));
+    }
+
+    /**
+     * Drops the cached bucket containing the given time, e.g. after a sample was written into the past.
+     */
+    public void invalidate(String dataType, long time) {
+        invalidate(dataType, time, time);
+    }
+
+    /**
+     * Drops every cached bucket overlapping [startTime, endTime], e.g. after a delete.
+     */
+    public synchronized void invalidate(String dataType, long startTime, long endTime) {
+        try {
+            getWritableDatabase().delete(TABLE, "data_type = ? AND bucket_start > ? AND bucket_start <= ?",
+                    new String[]{dataType, String.valueOf(startTime - DAY_MILLIS), String.valueOf(endTime)});
+        } catch (Exception e) {
+            Log.w(TAG, "Could not invalidate daily cache: " + e.getMessage());
+        }
+    }
+
+    public synchronized void clear() {
+        try {
+            getWritableDatabase().delete(TABLE, null, null);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not clear daily cache: " + e.getMessage());
+        }
+    }
+
+    static List<long[]> missingRanges(long startTime, long endTime, Set<Long> covered) {
+        List<long[]> ranges = new ArrayList<>();
+        long runStart = -1;
+        for (long bucketStart = startTime; bucketStart < endTime; bucketStart += DAY_MILLIS) {
+            if (covered.contains(bucketStart)) {
+                if (runStart >= 0) {
+                    ranges.add(new long[]{runStart, bucketStart});
+                    runStart = -1;
+                }
+            } else if (runStart < 0) {
+                runStart = bucketStart;
+            }
+        }
+        if (runStart >= 0) {
+            ranges.add(new long[]{runStart, endTime});
+        }
+        return ranges;
+    }
+
+    private synchronized Map<Long, List<Sample>> read(String account, String dataType, String stream,
+                                                     long startTime, long endTime) {
+        Map<Long, List<Sample>> buckets = new TreeMap<>();
+        long now = System.currentTimeMillis();
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().rawQuery(
+                    "SELECT bucket_start, start, end, origin, vals, fetched_at FROM " + TABLE
+                            + " WHERE account = ? AND data_type = ? AND stream = ?"
+                            + " AND bucket_start >= ? AND bucket_start <= ? ORDER BY start",
+                    new String[]{account, dataType, stream,
+                            String.valueOf(startTime), String.valueOf(endTime - DAY_MILLIS)});
+            while (cursor.moveToNext()) {
+                long bucketStart = cursor.getLong(0);
+                if ((bucketStart - startTime) % DAY_MILLIS != 0) {
+                    // Bucket of a query anchored at a different time of day
+                    continue;
+                }
+                if (!RefreshPolicy.isFresh(bucketStart + DAY_MILLIS, cursor.getLong(5), now)) {
+                    // Read again; all rows of a bucket are written together, so the whole bucket is skipped
+                    continue;
+                }
+                List<Sample> bucket = buckets.get(bucketStart);
+                if (bucket == null) {
+                    bucket = new ArrayList<>();
+                    buckets.put(bucketStart, bucket);
+                }
+                float[] values = cursor.isNull(4) ? null : Samples.unpack(cursor.getBlob(4));
+                if (values != null) {
+                    bucket.add(new Sample(bucketStart, cursor.getLong(1), cursor.getLong(2), cursor.getString(3), values));
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read daily cache: " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return buckets;
+    }
+
+    private synchronized void write(String account, String dataType, String stream, Map<Long, List<Sample>> buckets) {
+        long now = System.currentTimeMillis();
+        SQLiteDatabase db;
+        try {
+            db = getWritableDatabase();
+        } catch (Exception e) {
+            Log.w(TAG, "Could not open daily cache: " + e.getMessage());
+            return;
+        }
+
+        db.beginTransaction();
+        try {
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE
+                    + " WHERE account = ? AND data_type = ? AND stream = ? AND bucket_start = ?");
+            SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+                    + " (account, data_type, stream, bucket_start, start, end, origin, vals, fetched_at)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            for (Map.Entry<Long, List<Sample>> bucket : buckets.entrySet()) {
+                long bucketStart = bucket.getKey();
+                if (!RefreshPolicy.isSettled(bucketStart + DAY_MILLIS, now)) {
+                    continue;
+                }
+                // A re-read bucket replaces every row of the previous read, not only those with the same start
+                delete.bindString(1, account);
+                delete.bindString(2, dataType);
+                delete.bindString(3, stream);
+                delete.bindLong(4, bucketStart);
+                delete.executeUpdateDelete();
+                for (Sample entry : bucket.getValue()) {
+                    insert.clearBindings();
+                    insert.bindString(1, account);
+                    insert.bindString(2, dataType);
+                    insert.bindString(3, stream);
+                    insert.bindLong(4, bucketStart);
+                    insert.bindLong(5, entry.start);
+                    insert.bindLong(6, entry.end);
+                    if (entry.origin != null) {
+                        insert.bindString(7, entry.origin);
+                    }
+                    if (entry.values != null) {
+                        insert.bindBlob(8, Samples.pack(entry.values));
+                    }
+                    insert.bindLong(9, now);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.w(TAG, "Could not write daily cache: " + e.getMessage());
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static Sample toSample(long bucketStart, DataPoint dp, PointConverter converter) {
+        String origin = dp.getOriginalDataSource() != null ? dp.getOriginalDataSource().getStreamName() : null;
+        return new Sample(bucketStart, dp.getStartTime(TimeUnit.MILLISECONDS), dp.getEndTime(TimeUnit.MILLISECONDS),
+                origin, converter.toValues(dp));
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableArray;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResponse;
+
+import java.text.DateFormat;
+import java.text.Format;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Daily steps, distance, calories and nutrition read with a single multi-aggregate request.
+ *
+ * Every day of the range is returned, in order, with one field per requested metric. Cached entries
+ * carry the metric index as their first value, followed by the values of that metric.
+ */
+public class DailySummaryHistory
+{
+    private ReactContext mReactContext;
+    private GoogleFitManager googleFitManager;
+
+    private static final String TAG = "DailySummaryHistory";
+
+    private static final String[] METRICS = new String[]{"steps", "distance", "calories", "nutrition"};
+    private static final DataType[] INPUT_TYPES = new DataType[]{
+            DataType.TYPE_STEP_COUNT_DELTA,
+            DataType.TYPE_DISTANCE_DELTA,
+            DataType.TYPE_CALORIES_EXPENDED,
+            DataType.TYPE_NUTRITION
+    };
+    private static final DataType[] AGGREGATE_TYPES = new DataType[]{
+            DataType.AGGREGATE_STEP_COUNT_DELTA,
+            DataType.AGGREGATE_DISTANCE_DELTA,
+            DataType.AGGREGATE_CALORIES_EXPENDED,
+            DataType.AGGREGATE_NUTRITION_SUMMARY
+    };
+    private static final int STEPS = 0;
+    private static final int DISTANCE = 1;
+    private static final int CALORIES = 2;
+    private static final int NUTRITION = 3;
+
+    public DailySummaryHistory(ReactContext reactContext, GoogleFitManager googleFitManager) {
+        this.mReactContext = reactContext;
+        this.googleFitManager = googleFitManager;
+    }
+
+    public ReadableArray getDailySummary(long startTime, long endTime, ReadableArray metrics) throws InterruptedException, TimeoutException, ExecutionException {
+        ResultStream result = ResultStream.collect();
+        getDailySummary(startTime, endTime, metrics, result);
+        return (ReadableArray) result.result();
+    }
+
+    public void getDailySummary(long startTime, long endTime, ReadableArray metrics, ResultStream result) throws InterruptedException, TimeoutException, ExecutionException {
+        DateFormat dateFormat = DateFormat.getDateInstance();
+        Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
+        Log.i(TAG, "Range End: " + dateFormat.format(endTime));
+
+        final boolean[] requested = parseMetrics(metrics);
+        StringBuilder key = new StringBuilder("summary");
+        for (int i = 0; i < METRICS.length; i++) {
+            if (requested[i]) {
+                key.append(':').append(METRICS[i]);
+            }
+        }
+
+        List<Sample> entries = googleFitManager.getDailyBucketCache().load(
+                googleFitManager.getAccountKey(), key.toString(), "", startTime, endTime,
+                new DailyBucketCache.BucketReader()
+                {
+                    @Override
+                    public List<DataReadResponse> read(long start, long end) throws InterruptedException, TimeoutException, ExecutionException {
+                        return googleFitManager.getRangeQueryPlanner().read(
+                                googleFitManager.getHistoryClient(), start, end,
+                                RangeQueryPlanner.windowForBuckets(DailyBucketCache.DAY_MILLIS),
+                                new RangeQueryPlanner.RequestFactory()
+                                {
+                                    @Override
+                                    public DataReadRequest create(long windowStart, long windowEnd) {
+                                        DataReadRequest.Builder builder = new DataReadRequest.Builder();
+                                        for (int i = 0; i < METRICS.length; i++) {
+                                            if (requested[i]) {
+                                                builder.aggregate(INPUT_TYPES[i], AGGREGATE_TYPES[i]);
+                                            }
+                                        }
+                                        return builder
+                                                .bucketByTime(1, TimeUnit.DAYS)
+                                                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                                .build();
+                                    }
+                                });
+                    }
+                },
+                new DailyBucketCache.PointConverter()
+                {
+                    @Override
+                    public float[] toValues(DataPoint dp) {
+                        return toMetricValues(dp);
+                    }
+                });
+
+        float[][] totals = new float[Samples.bucketCount(startTime, endTime, DailyBucketCache.DAY_MILLIS)][];
+        float[][] nutrients = new float[totals.length][];
+        for (Sample entry : entries) {
+            int day = Samples.bucketIndex(entry, startTime, DailyBucketCache.DAY_MILLIS);
+            if (day < 0 || day >= totals.length || entry.values.length < 1) {
+                continue;
+            }
+            int metric = (int) entry.values[0];
+            if (metric == NUTRITION) {
+                nutrients[day] = new float[entry.values.length - 1];
+                System.arraycopy(entry.values, 1, nutrients[day], 0, nutrients[day].length);
+            } else if (metric >= 0 && metric < NUTRITION && entry.values.length > 1) {
+                if (totals[day] == null) {
+                    totals[day] = new float[NUTRITION];
+                }
+                totals[day][metric] += entry.values[1];
+            }
+        }
+
+        RowWriter summaryMap = result.rows();
+        Format formatter = new SimpleDateFormat("EEE");
+        for (int day = 0; day < totals.length; day++) {
+            long start = startTime + day * DailyBucketCache.DAY_MILLIS;
+            float[] total = totals[day] != null ? totals[day] : new float[NUTRITION];
+
+            summaryMap.putString("day", formatter.format(new Date(start)));
+            summaryMap.putDouble("startDate", start);
+            summaryMap.putDouble("endDate", Math.min(start + DailyBucketCache.DAY_MILLIS, endTime));
+            if (requested[STEPS]) {
+                summaryMap.putDouble("steps", (int) total[STEPS]);
+            }
+            if (requested[DISTANCE]) {
+                summaryMap.putDouble("distance", total[DISTANCE]);
+            }
+            if (requested[CALORIES]) {
+                summaryMap.putDouble("calorie", total[CALORIES]);
+            }
+            if (requested[NUTRITION]) {
+                RowWriter nutrientsMap = summaryMap.putMap("nutrients");
+                if (nutrients[day] != null) {
+                    NutritionHistory.putNutrients(nutrients[day], nutrientsMap);
+                }
+            }
+            summaryMap.endRow();
+        }
+    }
+
+    private static boolean[] parseMetrics(ReadableArray metrics) {
+        boolean[] requested = new boolean[METRICS.length];
+        boolean any = false;
+        for (int i = 0; metrics != null && i < metrics.size(); i++) {
+            String metric = metrics.getString(i);
+            int index = indexOf(metric);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown daily summary metric: " + metric);
+            }
+            requested[index] = true;
+            any = true;
+        }
+        if (!any) {
+            throw new IllegalArgumentException("At least one daily summary metric is required");
+        }
+        return requested;
+    }
+
+    private static int indexOf(String metric) {
+        for (int i = 0; i < METRICS.length; i++) {
+            if (METRICS[i].equals(metric)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static float[] toMetricValues(DataPoint dp) {
+        String type = dp.getDataType().getName();
+        if (type.equals(DataType.AGGREGATE_NUTRITION_SUMMARY.getName())) {
+            float[] nutrients = NutritionHistory.getNutrientValues(dp.getValue(Field.FIELD_NUTRIENTS));
+            float[] values = new float[nutrients.length + 1];
+            values[0] = NUTRITION;
+            System.arraycopy(nutrients, 0, values, 1, nutrients.length);
+            return values;
+        }
+        if (type.equals(DataType.AGGREGATE_STEP_COUNT_DELTA.getName())) {
+            return new float[]{STEPS, dp.getValue(Field.FIELD_STEPS).asInt()};
+        }
+        if (type.equals(DataType.AGGREGATE_DISTANCE_DELTA.getName())) {
+            return new float[]{DISTANCE, dp.getValue(Field.FIELD_DISTANCE).asFloat()};
+        }
+        if (type.equals(DataType.AGGREGATE_CALORIES_EXPENDED.getName())) {
+            return new float[]{CALORIES, dp.getValue(Field.FIELD_CALORIES).asFloat()};
+        }
+        Log.w(TAG, "don't specified and handled: " + type);
+        return new float[]{-1};
+    }
+}
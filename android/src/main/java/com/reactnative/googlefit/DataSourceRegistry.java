@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.ReactContext;
+import com.google.android.gms.fitness.data.DataSource;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.request.DataSourcesRequest;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The data sources available on this device, per data type and account.
+ *
+ * Sources are discovered with SensorsClient.findDataSources and kept for {@link #TTL_MILLIS}. Concurrent
+ * lookups of a type share one discovery, and a failed discovery is retried by the next lookup. The
+ * manager clears the registry whenever the authorization changes.
+ */
+public class DataSourceRegistry
+{
+    private static final String TAG = "RNGoogleFit";
+
+    public static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long DISCOVERY_TIMEOUT_MINUTES = 1;
+
+    private final ReactContext mReactContext;
+    private final GoogleFitManager googleFitManager;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public DataSourceRegistry(ReactContext reactContext, GoogleFitManager googleFitManager) {
+        this.mReactContext = reactContext;
+        this.googleFitManager = googleFitManager;
+    }
+
+    /**
+     * The sources of the data type; completes right away when they are cached.
+     */
+    public synchronized Task<List<DataSource>> find(DataType dataType) {
+        String key = googleFitManager.getAccountKey() + "|" + dataType.getName();
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && (!entry.task.isComplete() || (entry.task.isSuccessful() && now - entry.fetchedAt < TTL_MILLIS))) {
+            return entry.task;
+        }
+
+        DataSourcesRequest request = new DataSourcesRequest.Builder()
+                .setDataTypes(dataType)
+                .build();
+        Task<List<DataSource>> task = googleFitManager.getSensorsClient()
+                .findDataSources(request);
+        entries.put(key, new Entry(task, now));
+        Log.i(TAG, "Discovering data sources of " + dataType.getName());
+        return task;
+    }
+
+    /**
+     * Blocking {@link #find(DataType)}, for query threads.
+     */
+    public List<DataSource> await(DataType dataType) throws InterruptedException, ExecutionException, TimeoutException {
+        return Tasks.await(find(dataType), DISCOVERY_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public synchronized void invalidate() {
+        entries.clear();
+    }
+
+    private static class Entry
+    {
+        final Task<List<DataSource>> task;
+        final long fetchedAt;
+
+        Entry(Task<List<DataSource>> task, long fetchedAt) {
+            this.task = task;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
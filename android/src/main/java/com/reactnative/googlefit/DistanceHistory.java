@@ -13,15 +13,9 @@ package com.reactnative.googlefit;
 
 import android.util.Log;
 
-import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
-import com.facebook.react.bridge.WritableArray;
-import com.facebook.react.bridge.WritableMap;
-import com.google.android.gms.fitness.Fitness;
-import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
-import com.google.android.gms.fitness.data.DataSet;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
 import com.google.android.gms.fitness.request.DataReadRequest;
@@ -53,74 +47,65 @@ public class DistanceHistory
     }
 
     public ReadableArray aggregateDataByDate(long startTime, long endTime) throws ExecutionException, InterruptedException, TimeoutException {
+        ResultStream result = ResultStream.collect();
+        aggregateDataByDate(startTime, endTime, result);
+        return (ReadableArray) result.result();
+    }
+
+    public void aggregateDataByDate(long startTime, long endTime, ResultStream result) throws ExecutionException, InterruptedException, TimeoutException {
 
         DateFormat dateFormat = DateFormat.getDateInstance();
         Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
         Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
-        //Check how much distance were walked and recorded in specified days
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
-                .bucketByTime(1, TimeUnit.DAYS)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                .build();
-
-        Task<DataReadResponse> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).readData(readRequest);
-        DataReadResponse dataReadResult = Tasks.await(task, 1, TimeUnit.MINUTES);
-
-        WritableArray map = Arguments.createArray();
-
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
-                }
-            }
-        }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            Log.i(TAG, "Number of returned DataSets: " + dataReadResult.getDataSets().size());
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
-            }
+        List<Sample> entries = googleFitManager.getDailyBucketCache().load(
+                googleFitManager.getAccountKey(), DataType.AGGREGATE_DISTANCE_DELTA.getName(), "", startTime, endTime,
+                new DailyBucketCache.BucketReader()
+                {
+                    @Override
+                    public List<DataReadResponse> read(long start, long end) throws InterruptedException, TimeoutException, ExecutionException {
+                        return googleFitManager.getRangeQueryPlanner().read(
+                                googleFitManager.getHistoryClient(), start, end,
+                                RangeQueryPlanner.windowForBuckets(DailyBucketCache.DAY_MILLIS),
+                                new RangeQueryPlanner.RequestFactory()
+                                {
+                                    @Override
+                                    public DataReadRequest create(long windowStart, long windowEnd) {
+                                        //Check how much distance were walked and recorded in specified days
+                                        return new DataReadRequest.Builder()
+                                                .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
+                                                .bucketByTime(1, TimeUnit.DAYS)
+                                                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                                .build();
+                                    }
+                                });
+                    }
+                },
+                new DailyBucketCache.PointConverter()
+                {
+                    @Override
+                    public float[] toValues(DataPoint dp) {
+                        return new float[]{dp.getValue(Field.FIELD_DISTANCE).asFloat()};
+                    }
+                });
+
+        RowWriter map = result.rows();
+        Format formatter = new SimpleDateFormat("EEE");
+        Log.i(TAG, "Number of entries: " + entries.size());
+        for (Sample entry : entries) {
+            processEntry(entry, map, formatter);
         }
-
-        return map;
     }
 
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
-        Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        DateFormat timeFormat = DateFormat.getTimeInstance();
-        Format formatter = new SimpleDateFormat("EEE");
+    private void processEntry(Sample entry, RowWriter stepMap, Format formatter) {
+        String day = formatter.format(new Date(entry.start));
 
-        WritableMap stepMap = Arguments.createMap();
-
-
-        for (DataPoint dp : dataSet.getDataPoints()) {
-            Log.i(TAG, "Data point:");
-            Log.i(TAG, "\tType: " + dp.getDataType().getName());
-            Log.i(TAG, "\tStart: " + dateFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)) + " " + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "\tEnd: " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)) + " " + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-
-            String day = formatter.format(new Date(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "Day: " + day);
-
-            for (Field field : dp.getDataType().getFields()) {
-                Log.i("History", "\tField: " + field.getName() +
-                        " Value: " + dp.getValue(field));
-
-                stepMap.putString("day", day);
-                stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("distance", dp.getValue(field).asFloat());
-                map.pushMap(stepMap);
-            }
-        }
+        stepMap.putString("day", day);
+        stepMap.putDouble("startDate", entry.start);
+        stepMap.putDouble("endDate", entry.end);
+        stepMap.putDouble("distance", entry.values[0]);
+        stepMap.endRow();
     }
 
 }
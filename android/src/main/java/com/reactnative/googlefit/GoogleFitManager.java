@@ -34,8 +34,22 @@ import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.Scopes;
 import com.google.android.gms.common.api.Scope;
 import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.HistoryClient;
+import com.google.android.gms.fitness.RecordingClient;
+import com.google.android.gms.fitness.SensorsClient;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -45,7 +59,11 @@ public class GoogleFitManager implements ActivityEventListener
 {
 
     private ReactContext mReactContext;
-    private GoogleSignInAccount mApiAccount;
+    private volatile GoogleSignInAccount mApiAccount;
+    private volatile Clients mClients;
+    private volatile Boolean mAuthorized;
+    private volatile long mAuthorizedCheckedAt;
+    private boolean mInBackground;
     private Scope[] scopes;
     private static final int REQUEST_OAUTH = 1001;
     private static final String AUTH_PENDING = "auth_state_pending";
@@ -58,13 +76,36 @@ public class GoogleFitManager implements ActivityEventListener
     private HeartrateHistory heartrateHistory;
     private CalorieHistory calorieHistory;
     private NutritionHistory nutritionHistory;
+    private DailySummaryHistory dailySummaryHistory;
     private StepCounter mStepCounter;
     private StepSensor stepSensor;
     private RecordingApi recordingApi;
     private ActivityHistory activityHistory;
+    private QueryExecutor queryExecutor;
+    private QueryExecutor streamExecutor;
+    private DailyBucketCache dailyBucketCache;
+    private RangeQueryPlanner rangeQueryPlanner;
+    private BatchWriter batchWriter;
+    private BatchDeleter batchDeleter;
+    private WriteJournal writeJournal;
+    private SyncTracker syncTracker;
+    private DataSourceRegistry dataSourceRegistry;
+    private RollupStore rollupStore;
 
     private static final String TAG = "RNGoogleFit";
 
+    /**
+     * How long isAuthorized trusts its last Play services permission check.
+     */
+    private static final long AUTHORIZATION_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long PREWARM_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Streams wait for JS to acknowledge their chunks, so they get workers of their own.
+     */
+    private static final int STREAM_WORKERS = 2;
+    private static final int STREAM_MAX_QUEUED = 8;
+
     public GoogleFitManager(ReactContext reactContext, Activity activity) {
 
         //Log.i(TAG, "Initializing GoogleFitManager" + mAuthInProgress);
@@ -72,18 +113,8 @@ public class GoogleFitManager implements ActivityEventListener
         this.mActivity = activity;
         this.scopes = new Scope[]{new Scope(Scopes.EMAIL), new Scope(Scopes.FITNESS_ACTIVITY_READ)};
 
+        // Needed for the sign-in result; everything else is built on first use
         mReactContext.addActivityEventListener(this);
-
-        this.mStepCounter = new StepCounter(mReactContext, this, activity);
-        this.stepHistory = new StepHistory(mReactContext, this);
-        this.bodyHistory = new BodyHistory(mReactContext, this);
-        this.heartrateHistory = new HeartrateHistory(mReactContext, this);
-        this.distanceHistory = new DistanceHistory(mReactContext, this);
-        this.calorieHistory = new CalorieHistory(mReactContext, this);
-        this.nutritionHistory = new NutritionHistory(mReactContext, this);
-        this.recordingApi = new RecordingApi(mReactContext, this);
-        this.activityHistory = new ActivityHistory(mReactContext, this);
-        //        this.stepSensor = new StepSensor(mReactContext, activity);
     }
 
     public Activity getCurrentActivity() {
@@ -100,33 +131,204 @@ public class GoogleFitManager implements ActivityEventListener
     }
 
     public GoogleSignInAccount getGoogleAccount() {
-        if (this.mApiAccount == null) {
-            this.mApiAccount = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ));
+        GoogleSignInAccount account = this.mApiAccount;
+        if (account == null) {
+            account = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ));
+            this.mApiAccount = account;
+        }
+        return account;
+    }
+
+    /**
+     * The history client of the current account, built once per account.
+     */
+    public HistoryClient getHistoryClient() {
+        return clients().history;
+    }
+
+    public SensorsClient getSensorsClient() {
+        return clients().sensors;
+    }
+
+    public RecordingClient getRecordingClient() {
+        return clients().recording;
+    }
+
+    private Clients clients() {
+        GoogleSignInAccount account = getGoogleAccount();
+        Clients clients = this.mClients;
+        if (clients == null || clients.account != account) {
+            clients = new Clients(account,
+                    Fitness.getHistoryClient(mReactContext, account),
+                    Fitness.getSensorsClient(mReactContext, account),
+                    Fitness.getRecordingClient(mReactContext, account));
+            this.mClients = clients;
         }
-        return this.mApiAccount;
+        return clients;
     }
 
-    public RecordingApi getRecordingApi() {
+    /**
+     * Replaces the cached account, the clients built for it and everything discovered with them.
+     * Null drops the account; it is looked up again on next use.
+     */
+    private void setAccount(@Nullable GoogleSignInAccount account, @Nullable Boolean authorized) {
+        this.mApiAccount = account;
+        this.mClients = null;
+        this.mAuthorized = authorized;
+        this.mAuthorizedCheckedAt = System.currentTimeMillis();
+        DataSourceRegistry registry;
+        synchronized (this) {
+            registry = dataSourceRegistry;
+        }
+        // Nothing was discovered yet if the registry was never built
+        if (registry != null) {
+            registry.invalidate();
+        }
+    }
+
+    public synchronized QueryExecutor getQueryExecutor() {
+        if (queryExecutor == null) {
+            queryExecutor = new QueryExecutor();
+        }
+        return queryExecutor;
+    }
+
+    /**
+     * Runs streaming reads, which may block waiting for acknowledgements, apart from the query workers.
+     */
+    public synchronized QueryExecutor getStreamExecutor() {
+        if (streamExecutor == null) {
+            streamExecutor = new QueryExecutor(STREAM_WORKERS, 1, STREAM_MAX_QUEUED);
+        }
+        return streamExecutor;
+    }
+
+    public synchronized DailyBucketCache getDailyBucketCache() {
+        if (dailyBucketCache == null) {
+            dailyBucketCache = new DailyBucketCache(mReactContext);
+        }
+        return dailyBucketCache;
+    }
+
+    public synchronized RangeQueryPlanner getRangeQueryPlanner() {
+        if (rangeQueryPlanner == null) {
+            rangeQueryPlanner = new RangeQueryPlanner();
+        }
+        return rangeQueryPlanner;
+    }
+
+    public synchronized BatchWriter getBatchWriter() {
+        if (batchWriter == null) {
+            batchWriter = new BatchWriter();
+        }
+        return batchWriter;
+    }
+
+    public synchronized BatchDeleter getBatchDeleter() {
+        if (batchDeleter == null) {
+            batchDeleter = new BatchDeleter();
+        }
+        return batchDeleter;
+    }
+
+    /**
+     * Builds the journal on the first write or {@link #prewarm}; starting it replays the writes a previous
+     * run left pending.
+     */
+    public synchronized WriteJournal getWriteJournal() {
+        if (writeJournal == null) {
+            writeJournal = new WriteJournal(mReactContext, this);
+            writeJournal.start();
+        }
+        return writeJournal;
+    }
+
+    public synchronized SyncTracker getSyncTracker() {
+        if (syncTracker == null) {
+            syncTracker = new SyncTracker(mReactContext, this);
+        }
+        return syncTracker;
+    }
+
+    public synchronized DataSourceRegistry getDataSourceRegistry() {
+        if (dataSourceRegistry == null) {
+            dataSourceRegistry = new DataSourceRegistry(mReactContext, this);
+        }
+        return dataSourceRegistry;
+    }
+
+    public synchronized RollupStore getRollupStore() {
+        if (rollupStore == null) {
+            rollupStore = new RollupStore(mReactContext, this);
+        }
+        return rollupStore;
+    }
+
+    /**
+     * Key under which per-account data is cached on the device.
+     */
+    public String getAccountKey() {
+        GoogleSignInAccount account = getGoogleAccount();
+        return account != null && account.getId() != null ? account.getId() : "";
+    }
+
+    public synchronized RecordingApi getRecordingApi() {
+        if (recordingApi == null) {
+            recordingApi = new RecordingApi(mReactContext, this);
+        }
         return recordingApi;
     }
 
-    public StepCounter getStepCounter() {
+    public synchronized StepSensor getStepSensor() {
+        if (stepSensor == null) {
+            stepSensor = new StepSensor(mReactContext);
+            stepSensor.setBackground(mInBackground);
+        }
+        return stepSensor;
+    }
+
+    /**
+     * Forwards the app's foreground state to the step sensor without building it.
+     */
+    public synchronized void setInBackground(boolean background) {
+        this.mInBackground = background;
+        if (stepSensor != null) {
+            stepSensor.setBackground(background);
+        }
+    }
+
+    public synchronized StepCounter getStepCounter() {
+        if (mStepCounter == null) {
+            mStepCounter = new StepCounter(mReactContext, this, mActivity);
+        }
         return mStepCounter;
     }
 
-    public StepHistory getStepHistory() {
+    public synchronized StepHistory getStepHistory() {
+        if (stepHistory == null) {
+            stepHistory = new StepHistory(mReactContext, this);
+        }
         return stepHistory;
     }
 
-    public BodyHistory getBodyHistory() {
+    public synchronized BodyHistory getBodyHistory() {
+        if (bodyHistory == null) {
+            bodyHistory = new BodyHistory(mReactContext, this);
+        }
         return bodyHistory;
     }
 
-    public HeartrateHistory getHeartrateHistory() {
+    public synchronized HeartrateHistory getHeartrateHistory() {
+        if (heartrateHistory == null) {
+            heartrateHistory = new HeartrateHistory(mReactContext, this);
+        }
         return heartrateHistory;
     }
 
-    public DistanceHistory getDistanceHistory() {
+    public synchronized DistanceHistory getDistanceHistory() {
+        if (distanceHistory == null) {
+            distanceHistory = new DistanceHistory(mReactContext, this);
+        }
         return distanceHistory;
     }
 
@@ -136,25 +338,46 @@ public class GoogleFitManager implements ActivityEventListener
         }
     }
 
-    public CalorieHistory getCalorieHistory() {
+    public synchronized CalorieHistory getCalorieHistory() {
+        if (calorieHistory == null) {
+            calorieHistory = new CalorieHistory(mReactContext, this);
+        }
         return calorieHistory;
     }
 
-    public NutritionHistory getNutritionHistory() {
+    public synchronized NutritionHistory getNutritionHistory() {
+        if (nutritionHistory == null) {
+            nutritionHistory = new NutritionHistory(mReactContext, this);
+        }
         return nutritionHistory;
     }
 
+    public synchronized DailySummaryHistory getDailySummaryHistory() {
+        if (dailySummaryHistory == null) {
+            dailySummaryHistory = new DailySummaryHistory(mReactContext, this);
+        }
+        return dailySummaryHistory;
+    }
+
     public void authorize(ArrayList<String> userScopes) {
+        Scope[] requested;
         if (userScopes.size() > 0) {
-            this.scopes = new Scope[userScopes.size()];
+            requested = new Scope[userScopes.size()];
             for (int i = 0; i < userScopes.size(); i++) {
-                this.scopes[i] = new Scope(userScopes.get(i));
+                requested[i] = new Scope(userScopes.get(i));
             }
         } else {
-            this.scopes = new Scope[]{new Scope(Scopes.EMAIL), new Scope(Scopes.FITNESS_ACTIVITY_READ)};
+            requested = new Scope[]{new Scope(Scopes.EMAIL), new Scope(Scopes.FITNESS_ACTIVITY_READ)};
+        }
+        if (!Arrays.equals(requested, this.scopes)) {
+            this.scopes = requested;
+            this.mAuthorized = null;
         }
 
-        if (!GoogleSignIn.hasPermissions(GoogleSignIn.getLastSignedInAccount(this.mReactContext), this.scopes)) {
+        GoogleSignInAccount lastSignedIn = GoogleSignIn.getLastSignedInAccount(this.mReactContext);
+        if (!GoogleSignIn.hasPermissions(lastSignedIn, this.scopes)) {
+            this.mAuthorized = false;
+            this.mAuthorizedCheckedAt = System.currentTimeMillis();
             if (mAuthInProgress) {
                 Log.i(TAG, "Authorization - Already attempting to resolve an error.");
             } else if (getCurrentActivity() == null) {
@@ -167,13 +390,14 @@ public class GoogleFitManager implements ActivityEventListener
                 GoogleSignIn.requestPermissions(
                         mActivity,
                         REQUEST_OAUTH,
-                        GoogleSignIn.getLastSignedInAccount(this.mReactContext),
+                        lastSignedIn,
                         this.scopes
                 );
             }
         } else {
-            this.mApiAccount = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ));
-            sendEvent(mReactContext, "GoogleFitAuthorizeSuccess", getUserProperties(GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ))));
+            GoogleSignInAccount account = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ));
+            setAccount(account, true);
+            sendEvent(mReactContext, "GoogleFitAuthorizeSuccess", getUserProperties(account));
         }
     }
 
@@ -182,27 +406,137 @@ public class GoogleFitManager implements ActivityEventListener
                 .requestEmail()
                 .build();
         GoogleSignInClient googleSignInClient = GoogleSignIn.getClient(context, options);
-        GoogleSignInAccount gsa = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ));
+        GoogleSignInAccount gsa = getGoogleAccount();
         if (gsa.getIdToken() != null && !gsa.isExpired()) {
             Fitness.getConfigClient(mReactContext, gsa).disableFit();
 
             googleSignInClient.signOut();
         }
+        setAccount(null, false);
+        clearCaches();
+    }
+
+    /**
+     * Empties the on-device caches on a query thread, they may still hold data of a previous run even
+     * if this one never opened them.
+     */
+    private void clearCaches() {
+        Runnable clear = new Runnable()
+        {
+            @Override
+            public void run() {
+                getDailyBucketCache().clear();
+                getRollupStore().clear();
+            }
+        };
+        try {
+            getQueryExecutor().submit("clearCaches", clear);
+        } catch (RejectedExecutionException e) {
+            new Thread(clear, "RNGoogleFit-clear").start();
+        }
     }
 
+    /**
+     * Answers from the cached account or the last permission check while it is fresh; asks Play services
+     * only after {@link #AUTHORIZATION_TTL_MILLIS} or an authorization change.
+     */
     public boolean isAuthorized() {
-        if (this.mApiAccount != null && this.mApiAccount.getAccount() != null && !this.mApiAccount.isExpired()) {
+        GoogleSignInAccount account = this.mApiAccount;
+        if (account != null && account.getAccount() != null && !account.isExpired()) {
             return true;
-        } else if (GoogleSignIn.hasPermissions(GoogleSignIn.getLastSignedInAccount(this.mReactContext), this.scopes)) {
-            return true;
-        } else {
-            return false;
         }
+        Boolean authorized = this.mAuthorized;
+        long now = System.currentTimeMillis();
+        if (authorized == null || now - mAuthorizedCheckedAt >= AUTHORIZATION_TTL_MILLIS) {
+            authorized = GoogleSignIn.hasPermissions(GoogleSignIn.getLastSignedInAccount(this.mReactContext), this.scopes);
+            this.mAuthorized = authorized;
+            this.mAuthorizedCheckedAt = now;
+        }
+        return authorized;
     }
 
-    protected void stop() {
-        if (this.mApiAccount != null && this.mApiAccount.getIdToken() != null && !this.mApiAccount.isExpired()) {
-            Fitness.getSensorsClient(mActivity, this.mApiAccount).remove(mStepCounter);
+    protected synchronized void stop() {
+        if (queryExecutor != null) {
+            queryExecutor.shutdown();
+        }
+        if (streamExecutor != null) {
+            streamExecutor.shutdown();
+        }
+        if (writeJournal != null) {
+            writeJournal.stop();
+        }
+        if (mStepCounter != null) {
+            GoogleSignInAccount account = this.mApiAccount;
+            if (account != null && account.getIdToken() != null && !account.isExpired()) {
+                getSensorsClient().remove(mStepCounter);
+            }
+            mStepCounter.reset();
+        }
+        if (stepSensor != null) {
+            stepSensor.stop();
+        }
+    }
+
+    /**
+     * Does the first-use work of the read path ahead of the first query: resolves the account and the
+     * authorization, builds the clients and the history readers, starts the step source discovery and
+     * the write journal, and opens the on-device caches. Blocks; run it on a query thread.
+     *
+     * @param prefetchToday also read today's step, distance and calorie totals
+     * @return {authorized, elapsedMs, today?: {steps, distance, calories}}
+     */
+    public WritableMap prewarm(boolean prefetchToday) throws InterruptedException {
+        long started = System.nanoTime();
+        getGoogleAccount();
+        boolean authorized = isAuthorized();
+
+        getStepHistory();
+        getDistanceHistory();
+        getCalorieHistory();
+        getNutritionHistory();
+        getDailySummaryHistory();
+        getWriteJournal();
+        try {
+            getDailyBucketCache().getReadableDatabase();
+            getRollupStore().getReadableDatabase();
+        } catch (Exception e) {
+            Log.w(TAG, "Prewarm could not open the caches: " + e.getMessage());
+        }
+
+        WritableMap result = Arguments.createMap();
+        if (authorized) {
+            HistoryClient client = getHistoryClient();
+            getDataSourceRegistry().find(DataType.TYPE_STEP_COUNT_DELTA);
+            if (prefetchToday) {
+                Task<DataSet> steps = client.readDailyTotal(DataType.AGGREGATE_STEP_COUNT_DELTA);
+                Task<DataSet> distance = client.readDailyTotal(DataType.AGGREGATE_DISTANCE_DELTA);
+                Task<DataSet> calories = client.readDailyTotal(DataType.AGGREGATE_CALORIES_EXPENDED);
+
+                WritableMap today = Arguments.createMap();
+                putDailyTotal(today, "steps", steps, Field.FIELD_STEPS);
+                putDailyTotal(today, "distance", distance, Field.FIELD_DISTANCE);
+                putDailyTotal(today, "calories", calories, Field.FIELD_CALORIES);
+                result.putMap("today", today);
+            }
+        }
+        result.putBoolean("authorized", authorized);
+        result.putDouble("elapsedMs", (System.nanoTime() - started) / 1e6);
+        return result;
+    }
+
+    private static void putDailyTotal(WritableMap today, String key, Task<DataSet> task, Field field)
+            throws InterruptedException {
+        try {
+            DataSet set = Tasks.await(task, PREWARM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            double total = 0;
+            for (DataPoint dp : set.getDataPoints()) {
+                total += field.getFormat() == Field.FORMAT_INT32 ? dp.getValue(field).asInt() : dp.getValue(field).asFloat();
+            }
+            today.putDouble(key, total);
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Prewarm could not read today's " + key + ": " + e.getMessage());
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Prewarm timed out reading today's " + key);
         }
     }
 
@@ -222,9 +556,11 @@ public class GoogleFitManager implements ActivityEventListener
             mAuthInProgress = false;
             if (resultCode == Activity.RESULT_OK) {
                 // Make sure the app is not already connected or attempting to connect
-                this.mApiAccount = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ));
-                sendEvent(mReactContext, "GoogleFitAuthorizeSuccess", getUserProperties(GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ))));
+                GoogleSignInAccount account = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ));
+                setAccount(account, true);
+                sendEvent(mReactContext, "GoogleFitAuthorizeSuccess", getUserProperties(account));
             } else if (resultCode == Activity.RESULT_CANCELED) {
+                this.mAuthorized = null;
                 Log.e(TAG, "Authorization - Cancel");
                 WritableMap map = Arguments.createMap();
                 map.putString("message", "" + "Authorization cancelled");
@@ -237,11 +573,14 @@ public class GoogleFitManager implements ActivityEventListener
     public void onNewIntent(Intent intent) {
     }
 
-    public ActivityHistory getActivityHistory() {
+    public synchronized ActivityHistory getActivityHistory() {
+        if (activityHistory == null) {
+            activityHistory = new ActivityHistory(mReactContext, this);
+        }
         return activityHistory;
     }
 
-    public void setActivityHistory(ActivityHistory activityHistory) {
+    public synchronized void setActivityHistory(ActivityHistory activityHistory) {
         this.activityHistory = activityHistory;
     }
 
@@ -261,6 +600,24 @@ public class GoogleFitManager implements ActivityEventListener
         }
     }
 
+    /**
+     * The account a set of clients was built for, so a changed account is noticed by identity.
+     */
+    private static class Clients
+    {
+        final GoogleSignInAccount account;
+        final HistoryClient history;
+        final SensorsClient sensors;
+        final RecordingClient recording;
+
+        Clients(GoogleSignInAccount account, HistoryClient history, SensorsClient sensors, RecordingClient recording) {
+            this.account = account;
+            this.history = history;
+            this.sensors = sensors;
+            this.recording = recording;
+        }
+    }
+
     /* Creates a dialog for an error message */
     private void showErrorDialog(int errorCode) {
         if (getCurrentActivity() != null) {
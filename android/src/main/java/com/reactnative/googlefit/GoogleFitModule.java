@@ -14,6 +14,15 @@ import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import android.content.Intent;
 
 import com.facebook.react.bridge.Arguments;
@@ -39,6 +48,10 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     private static final String REACT_MODULE = "RNGoogleFit";
     private ReactContext mReactContext;
     private GoogleFitManager mGoogleFitManager = null;
+    private final QueryCoalescer mQueryCoalescer = new QueryCoalescer();
+    private volatile String mResponseFormat = null;
+    private final QueryMetrics mQueryMetrics = new QueryMetrics();
+    private final Map<Integer, ResultStream> mStreams = new ConcurrentHashMap<>();
     private String GOOGLE_FIT_APP_URI = "com.google.android.apps.fitness";
 
     public GoogleFitModule(ReactApplicationContext reactContext) {
@@ -63,11 +76,15 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     public void onHostResume() {
         if (mGoogleFitManager != null) {
             mGoogleFitManager.resetAuthInProgress();
+            mGoogleFitManager.setInBackground(false);
         }
     }
 
     @Override
     public void onHostPause() {
+        if (mGoogleFitManager != null) {
+            mGoogleFitManager.setInBackground(true);
+        }
     }
 
     @Override
@@ -75,6 +92,17 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
         // todo disconnect from Google Fit
     }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        for (ResultStream stream : mStreams.values()) {
+            stream.cancel();
+        }
+        mStreams.clear();
+        if (mGoogleFitManager != null) {
+            mGoogleFitManager.stop();
+        }
+    }
+
     @ReactMethod
     public void authorize(ReadableMap options) {
         final Activity activity = getCurrentActivity();
@@ -117,116 +145,328 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
         }
     }
 
+    /**
+     * Selects how read methods return arrays of samples: "rows" (default), one object per sample,
+     * "columnar", parallel column arrays as produced by {@link ColumnarEncoder}, or "packed", the same
+     * with number columns sent as binary float64 buffers.
+     */
+    @ReactMethod
+    public void setResponseFormat(String format) {
+        mResponseFormat = ColumnarEncoder.isColumnar(format) ? format : null;
+    }
+
+    /**
+     * How many windows of one long range read run in parallel, see {@link RangeQueryPlanner}.
+     */
+    @ReactMethod
+    public void setReadFanOut(int fanOut) {
+        if (mGoogleFitManager == null) {
+            mGoogleFitManager = new GoogleFitManager(mReactContext, getCurrentActivity());
+        }
+        mGoogleFitManager.getRangeQueryPlanner().setFanOut(fanOut);
+    }
+
+    /**
+     * Resolves with the query histograms of every read method, see {@link QueryMetrics}.
+     */
+    @ReactMethod
+    public void getPerformanceMetrics(boolean reset, Promise promise) {
+        promise.resolve(mQueryMetrics.snapshot(reset));
+    }
+
     @ReactMethod
     public void startFitnessRecording(ReadableArray dataTypes) {
         mGoogleFitManager.getRecordingApi().subscribe(dataTypes);
     }
 
     @ReactMethod
-    public void observeSteps() {
-        mGoogleFitManager.getStepCounter().findFitnessDataSources();
+    public void observeSteps(ReadableMap options) {
+        StepCounter stepCounter = mGoogleFitManager.getStepCounter();
+        if (options != null && options.hasKey("interval")) {
+            stepCounter.setInterval((long) options.getDouble("interval"));
+        }
+        stepCounter.findFitnessDataSources();
+    }
+
+    @ReactMethod
+    public void ackStepEvent() {
+        mGoogleFitManager.getStepCounter().ack();
+    }
+
+    /**
+     * Starts counting today's steps from the hardware step counter; resolves false without one.
+     */
+    @ReactMethod
+    public void startStepSensor(ReadableMap options, Promise promise) {
+        long interval = options != null && options.hasKey("interval") ? (long) options.getDouble("interval") : StepSensor.DEFAULT_INTERVAL_MILLIS;
+        if (mGoogleFitManager == null) {
+            mGoogleFitManager = new GoogleFitManager(mReactContext, getCurrentActivity());
+        }
+        try {
+            promise.resolve(mGoogleFitManager.getStepSensor().start(interval));
+        } catch (Exception e) {
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void stopStepSensor() {
+        if (mGoogleFitManager != null) {
+            mGoogleFitManager.getStepSensor().stop();
+        }
+    }
+
+    /**
+     * Today's steps as last counted by the step sensor; never reads Google Fit.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public double getLocalStepCount() {
+        return mGoogleFitManager != null ? mGoogleFitManager.getStepSensor().getTodaySteps() : 0;
+    }
+
+    /**
+     * Resolves with the number of saves and deletes still waiting in the write journal.
+     */
+    @ReactMethod
+    public void getPendingWriteCount(Promise promise) {
+        if (mGoogleFitManager == null) {
+            mGoogleFitManager = new GoogleFitManager(mReactContext, getCurrentActivity());
+        }
+        try {
+            promise.resolve((double) mGoogleFitManager.getWriteJournal().getPendingCount());
+        } catch (Exception e) {
+            promise.reject(e);
+        }
+    }
+
+    @ReactMethod
+    public void flushPendingWrites() {
+        if (mGoogleFitManager != null) {
+            mGoogleFitManager.getWriteJournal().flushNow();
+        }
+    }
+
+    /**
+     * Runs {@link GoogleFitManager#prewarm(boolean)} on a query thread and resolves with its result.
+     */
+    @ReactMethod
+    public void prewarm(ReadableMap options, final Promise promise) {
+        if (mGoogleFitManager == null) {
+            mGoogleFitManager = new GoogleFitManager(mReactContext, getCurrentActivity());
+        }
+        final boolean prefetchToday = options != null && options.hasKey("prefetchToday") && options.getBoolean("prefetchToday");
+        try {
+            mGoogleFitManager.getQueryExecutor().submit("prewarm", new Runnable()
+            {
+                @Override
+                public void run() {
+                    try {
+                        promise.resolve(mGoogleFitManager.prewarm(prefetchToday));
+                    } catch (Exception e) {
+                        promise.reject(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            promise.reject(e);
+        }
     }
 
     @ReactMethod
-    public void getDailySteps(double startDay, double endDay) {
-        mGoogleFitManager.getStepHistory().displayLastWeeksData((long) startDay, (long) endDay);
+    public void getDailySteps(final double startDay, final double endDay) {
+        try {
+            mGoogleFitManager.getQueryExecutor().submit("steps", new Runnable()
+            {
+                @Override
+                public void run() {
+                    mGoogleFitManager.getStepHistory().displayLastWeeksData((long) startDay, (long) endDay);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(REACT_MODULE, e.getMessage());
+        }
     }
 
     @ReactMethod
-    public void getWeeklySteps(double startDate, double endDate) {
-        mGoogleFitManager.getStepHistory().displayLastWeeksData((long) startDate, (long) endDate);
+    public void getWeeklySteps(final double startDate, final double endDate) {
+        try {
+            mGoogleFitManager.getQueryExecutor().submit("steps", new Runnable()
+            {
+                @Override
+                public void run() {
+                    mGoogleFitManager.getStepHistory().displayLastWeeksData((long) startDate, (long) endDate);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(REACT_MODULE, e.getMessage());
+        }
     }
 
     @ReactMethod
-    public void getDailyStepCountSamples(double startDate,
-                                         double endDate,
+    public void getDailyStepCountSamples(final double startDate,
+                                         final double endDate,
                                          Callback errorCallback,
                                          Callback successCallback) {
 
+        runQuery("steps", "dailySteps:" + startDate + ":" + endDate, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getStepHistory().aggregateDataByDate((long) startDate, (long) endDate, result);
+            }
+        });
+    }
+
+    /**
+     * One deduplicated daily step series merged from every source, see {@link StepMerger}. Options:
+     * priority, an array of source patterns best first, userInput, "include" or "exclude", and provenance.
+     */
+    @ReactMethod
+    public void getMergedDailySteps(final double startDate,
+                                    final double endDate,
+                                    ReadableMap options,
+                                    Callback errorCallback,
+                                    Callback successCallback) {
+        List<String> priority = new ArrayList<>(StepMerger.DEFAULT_PRIORITY);
+        if (options != null && options.hasKey("priority")) {
+            priority.clear();
+            ReadableArray patterns = options.getArray("priority");
+            for (int i = 0; i < patterns.size(); i++) {
+                priority.add(patterns.getString(i));
+            }
+        }
+        boolean includeUserInput = options == null || !options.hasKey("userInput") || !"exclude".equals(options.getString("userInput"));
+        final boolean provenance = options != null && options.hasKey("provenance") && options.getBoolean("provenance");
+        final StepMerger merger = new StepMerger(priority, includeUserInput);
+
+        String key = "mergedSteps:" + startDate + ":" + endDate + ":" + priority + ":" + includeUserInput + ":" + provenance;
+        runQuery("steps", key, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getStepHistory().getMergedDailySteps((long) startDate, (long) endDate, merger, provenance, result);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getAggregates(final String metric,
+                              final String granularity,
+                              final double startDate,
+                              final double endDate,
+                              ReadableMap options,
+                              Callback errorCallback,
+                              Callback successCallback) {
+        final PeriodCalendar calendar;
         try {
-            mGoogleFitManager.getStepHistory().aggregateDataByDate((long) startDate, (long) endDate, errorCallback, successCallback);
-        } catch (Exception e) {
-            handleException(e, errorCallback);
+            TimeZone timeZone = options != null && options.hasKey("timeZone")
+                    ? TimeZone.getTimeZone(options.getString("timeZone")) : TimeZone.getDefault();
+            int dayStartHour = options != null && options.hasKey("dayStartHour") ? options.getInt("dayStartHour") : 0;
+            int firstDayOfWeek = options != null && options.hasKey("firstDayOfWeek")
+                    ? options.getInt("firstDayOfWeek") : Calendar.getInstance().getFirstDayOfWeek();
+            calendar = new PeriodCalendar(timeZone, dayStartHour, firstDayOfWeek);
+        } catch (IllegalArgumentException e) {
+            errorCallback.invoke(e.getMessage());
+            return;
         }
+
+        String key = "aggregates:" + metric + ":" + granularity + ":" + calendar.key() + ":" + startDate + ":" + endDate;
+        runQuery("rollup", key, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getRollupStore().query(
+                        mGoogleFitManager.getHistoryClient(),
+                        metric, granularity, calendar, (long) startDate, (long) endDate, result.rows());
+            }
+        });
     }
 
     @ReactMethod
     public void getDailyStepTotal(Callback errorCallback,
                                   Callback successCallback) {
-        try {
-            successCallback.invoke(mGoogleFitManager.getStepHistory().getDailyTotal());
-        } catch (Exception e) {
-            handleException(e, errorCallback);
-        }
+        runQuery("steps", "dailyStepTotal", errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                return mGoogleFitManager.getStepHistory().getDailyTotal();
+            }
+        });
     }
 
     @ReactMethod
-    public void getActivitySamples(double startDate,
-                                   double endDate,
+    public void getActivitySamples(final double startDate,
+                                   final double endDate,
                                    Callback errorCallback,
                                    Callback successCallback) {
 
-        try {
-            successCallback.invoke(mGoogleFitManager.getActivityHistory().getActivitySamples((long)startDate, (long)endDate));
-        } catch (Exception e) {
-            handleException(e, errorCallback);
-        }
+        runQuery("activity", "activity:" + startDate + ":" + endDate, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getActivityHistory().getActivitySamples((long)startDate, (long)endDate, result);
+            }
+        });
     }
 
     @ReactMethod
-    public void getUserInputSteps(double startDate,
-                                double endDate,
+    public void getUserInputSteps(final double startDate,
+                                final double endDate,
                                 Callback errorCallback,
                                 Callback successCallback) {
 
-        try {
-            mGoogleFitManager.getStepHistory().getUserInputSteps((long) startDate, (long) endDate, successCallback);
-        } catch (Exception e) {
-            handleException(e, errorCallback);
-        }
+        runQuery("steps", "userInputSteps:" + startDate + ":" + endDate, errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                return mGoogleFitManager.getStepHistory().getUserInputSteps((long) startDate, (long) endDate);
+            }
+        });
     }
 
     @ReactMethod
-    public void getDailyDistanceSamples(double startDate,
-                                        double endDate,
+    public void getDailyDistanceSamples(final double startDate,
+                                        final double endDate,
                                         Callback errorCallback,
                                         Callback successCallback) {
 
-        try {
-            successCallback.invoke(mGoogleFitManager.getDistanceHistory().aggregateDataByDate((long) startDate, (long) endDate));
-        } catch (Exception e) {
-            handleException(e, errorCallback);
-        }
+        runQuery("distance", "distance:" + startDate + ":" + endDate, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getDistanceHistory().aggregateDataByDate((long) startDate, (long) endDate, result);
+            }
+        });
     }
 
     @ReactMethod
-    public void getWeightSamples(double startDate,
-                                 double endDate,
+    public void getWeightSamples(final double startDate,
+                                 final double endDate,
                                  Callback errorCallback,
                                  Callback successCallback) {
 
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_WEIGHT);
-            successCallback.invoke(bodyHistory.getHistory((long)startDate, (long)endDate));
-        } catch (Exception e) {
-            handleException(e, errorCallback);
-        }
+        runQuery("body", "weight:" + startDate + ":" + endDate, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getBodyHistory().getHistory((long)startDate, (long)endDate, DataType.TYPE_WEIGHT, result);
+            }
+        });
     }
 
     @ReactMethod
-    public void getHeightSamples(double startDate,
-                                 double endDate,
+    public void getHeightSamples(final double startDate,
+                                 final double endDate,
                                  Callback errorCallback,
                                  Callback successCallback) {
 
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_HEIGHT);
-            successCallback.invoke(bodyHistory.getHistory((long)startDate, (long)endDate));
-        } catch (Exception e) {
-            handleException(e, errorCallback);
-        }
+        runQuery("body", "height:" + startDate + ":" + endDate, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getBodyHistory().getHistory((long)startDate, (long)endDate, DataType.TYPE_HEIGHT, result);
+            }
+        });
     }
 
     @ReactMethod
@@ -245,17 +485,19 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
 
 
     @ReactMethod
-    public void getDailyCalorieSamples(double startDate,
-                                       double endDate,
-                                       boolean basalCalculation,
+    public void getDailyCalorieSamples(final double startDate,
+                                       final double endDate,
+                                       final boolean basalCalculation,
                                        Callback errorCallback,
                                        Callback successCallback) {
 
-        try {
-            successCallback.invoke(mGoogleFitManager.getCalorieHistory().aggregateDataByDate((long) startDate, (long) endDate, basalCalculation));
-        } catch (Exception e) {
-            handleException(e, errorCallback);
-        }
+        runQuery("calories", "calories:" + startDate + ":" + endDate + ":" + basalCalculation, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getCalorieHistory().aggregateDataByDate((long) startDate, (long) endDate, basalCalculation, result);
+            }
+        });
     }
 
     @ReactMethod
@@ -270,15 +512,60 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void getDailyNutritionSamples(double startDate,
-                                         double endDate,
+    public void getDailyNutritionSamples(final double startDate,
+                                         final double endDate,
                                          Callback errorCallback,
                                          Callback successCallback) {
-        try {
-            successCallback.invoke(mGoogleFitManager.getNutritionHistory().aggregateDataByDate((long) startDate, (long) endDate));
-        } catch (Exception e) {
-            handleException(e, errorCallback);
-        }
+        runQuery("nutrition", "nutrition:" + startDate + ":" + endDate, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getNutritionHistory().aggregateDataByDate((long) startDate, (long) endDate, result);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getDailySummary(final double startDate,
+                                final double endDate,
+                                final ReadableArray metrics,
+                                Callback errorCallback,
+                                Callback successCallback) {
+
+        runQuery("summary", "summary:" + startDate + ":" + endDate + ":" + metrics.toArrayList(), errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getDailySummaryHistory().getDailySummary((long) startDate, (long) endDate, metrics, result);
+            }
+        });
+    }
+
+    /**
+     * Reads the raw points of the given types that are new or changed since the sync that returned token;
+     * see {@link SyncTracker}. Options: overlap and initialLookback, in ms.
+     */
+    @ReactMethod
+    public void syncSince(final ReadableArray dataTypes,
+                          final String token,
+                          ReadableMap options,
+                          Callback errorCallback,
+                          Callback successCallback) {
+        final long overlap = options != null && options.hasKey("overlap")
+                ? (long) options.getDouble("overlap") : SyncTracker.DEFAULT_OVERLAP_MILLIS;
+        final long initialLookback = options != null && options.hasKey("initialLookback")
+                ? (long) options.getDouble("initialLookback") : SyncTracker.DEFAULT_INITIAL_LOOKBACK_MILLIS;
+
+        String key = "syncSince:" + dataTypes.toArrayList() + ":" + token + ":" + overlap + ":" + initialLookback;
+        runQuery("sync", key, errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                return mGoogleFitManager.getSyncTracker().syncSince(
+                        mGoogleFitManager.getHistoryClient(), dataTypes,
+                        token, overlap, initialLookback);
+            }
+        });
     }
 
     @ReactMethod
@@ -295,6 +582,58 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
         }
     }
 
+    @ReactMethod
+    public void saveWeights(final ReadableArray weightSamples,
+                            Callback errorCallback,
+                            Callback successCallback) {
+        runWrite("saveWeights", errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                return mGoogleFitManager.getBodyHistory().saveAll(weightSamples, DataType.TYPE_WEIGHT);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void saveHeights(final ReadableArray heightSamples,
+                            Callback errorCallback,
+                            Callback successCallback) {
+        runWrite("saveHeights", errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                return mGoogleFitManager.getBodyHistory().saveAll(heightSamples, DataType.TYPE_HEIGHT);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void saveFoods(final ReadableArray foodSamples,
+                          Callback errorCallback,
+                          Callback successCallback) {
+        runWrite("saveFoods", errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                return mGoogleFitManager.getCalorieHistory().saveFoods(foodSamples);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void saveBloodPressures(final ReadableArray bloodPressureSamples,
+                                   Callback errorCallback,
+                                   Callback successCallback) {
+        runWrite("saveBloodPressures", errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                return mGoogleFitManager.getHeartrateHistory().saveBloodPressures(bloodPressureSamples);
+            }
+        });
+    }
+
     @ReactMethod
     public void deleteWeight(ReadableMap options, Callback errorCallback, Callback successCallback) {
         try {
@@ -317,6 +656,24 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
         }
     }
 
+    /**
+     * Deletes many {type, startDate, endDate} ranges; calls back with one {success, error} per range.
+     */
+    @ReactMethod
+    public void deleteData(final ReadableArray ranges,
+                           Callback errorCallback,
+                           Callback successCallback) {
+        runWrite("deleteData", errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                return mGoogleFitManager.getBatchDeleter().delete(
+                        mGoogleFitManager.getHistoryClient(), ranges,
+                        mGoogleFitManager.getDailyBucketCache(), mGoogleFitManager.getRollupStore());
+            }
+        });
+    }
+
     @ReactMethod
     public void isAvailable(Callback errorCallback, Callback successCallback) { // true if GoogleFit installed
         try {
@@ -365,39 +722,304 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void getBloodPressureSamples(double startDate,
-                                        double endDate,
+    public void getBloodPressureSamples(final double startDate,
+                                        final double endDate,
                                         Callback errorCallback,
                                         Callback successCallback) {
+        runQuery("heart", "bloodPressure:" + startDate + ":" + endDate, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                mGoogleFitManager.getHeartrateHistory().getHistory((long)startDate, (long)endDate, HealthDataTypes.TYPE_BLOOD_PRESSURE, result);
+            }
+        });
+    }
+
+    /**
+     * Raw heart rate samples by default. With a bucketInterval in options, min/avg/max per bucket of
+     * bucketInterval bucketUnit (MINUTE, HOUR or DAY); with maxPoints, raw samples downsampled natively
+     * with the given downsample method (lttb or minmax).
+     */
+    @ReactMethod
+    public void getHeartRateSamples(final double startDate,
+                                    final double endDate,
+                                    ReadableMap options,
+                                    Callback errorCallback,
+                                    Callback successCallback) {
+        final long bucketMillis;
         try {
-            HeartrateHistory heartrateHistory = mGoogleFitManager.getHeartrateHistory();
-            heartrateHistory.setDataType(HealthDataTypes.TYPE_BLOOD_PRESSURE);
-            successCallback.invoke(heartrateHistory.getHistory((long)startDate, (long)endDate));
+            bucketMillis = options != null && options.hasKey("bucketInterval")
+                    ? bucketMillis(options.getDouble("bucketInterval"), options.hasKey("bucketUnit") ? options.getString("bucketUnit") : "MINUTE")
+                    : 0;
         } catch (Exception e) {
             handleException(e, errorCallback);
+            return;
         }
+        final int maxPoints = options != null && options.hasKey("maxPoints") ? options.getInt("maxPoints") : 0;
+        final String downsample = options != null && options.hasKey("downsample") ? options.getString("downsample") : HeartrateHistory.DOWNSAMPLE_LTTB;
+
+        String key = "heartRate:" + startDate + ":" + endDate + ":" + bucketMillis + ":" + maxPoints + ":" + downsample;
+        runQuery("heart", key, errorCallback, successCallback, new TableQuery()
+        {
+            @Override
+            public void read(ResultStream result) throws Exception {
+                HeartrateHistory heartrateHistory = mGoogleFitManager.getHeartrateHistory();
+                if (bucketMillis > 0) {
+                    heartrateHistory.getHeartRateSummary((long) startDate, (long) endDate, bucketMillis, result);
+                } else if (maxPoints > 0) {
+                    heartrateHistory.getDownsampledHeartRate((long) startDate, (long) endDate, maxPoints, downsample, result);
+                } else {
+                    heartrateHistory.getHistory((long)startDate, (long)endDate, DataType.TYPE_HEART_RATE_BPM, result);
+                }
+            }
+        });
     }
 
+    /**
+     * The length of a bucket of interval units, rejecting buckets shorter than a second or not made of
+     * whole seconds, which Google Fit cannot bucket by.
+     */
+    private static long bucketMillis(double interval, String unit) {
+        double millis = interval * unitMillis(unit);
+        if (Double.isNaN(millis) || millis < TimeUnit.SECONDS.toMillis(1) || millis > Long.MAX_VALUE
+                || millis % TimeUnit.SECONDS.toMillis(1) != 0) {
+            throw new IllegalArgumentException("bucketInterval must be a whole number of seconds, at least one: "
+                    + interval + " " + unit);
+        }
+        return (long) millis;
+    }
+
+    private static long unitMillis(String unit) {
+        switch (unit) {
+            case "SECOND":
+                return TimeUnit.SECONDS.toMillis(1);
+            case "MINUTE":
+                return TimeUnit.MINUTES.toMillis(1);
+            case "HOUR":
+                return TimeUnit.HOURS.toMillis(1);
+            case "DAY":
+                return TimeUnit.DAYS.toMillis(1);
+            default:
+                throw new IllegalArgumentException("Unknown bucket unit: " + unit);
+        }
+    }
+
+    /**
+     * Runs a history read whose rows are sent as {@link ResultStream#CHUNK_EVENT} events instead of one
+     * callback. The handle is chosen by JS so it can subscribe before the first chunk is emitted.
+     */
     @ReactMethod
-    public void getHeartRateSamples(double startDate,
-                                    double endDate,
-                                    Callback errorCallback,
-                                    Callback successCallback) {
+    public void startStream(final int handle,
+                            final String method,
+                            final double startDate,
+                            final double endDate,
+                            ReadableMap options) {
+        int chunkSize = options != null && options.hasKey("chunkSize") ? options.getInt("chunkSize") : ResultStream.DEFAULT_CHUNK_SIZE;
+        int window = options != null && options.hasKey("window") ? options.getInt("window") : ResultStream.DEFAULT_WINDOW;
+        final ResultStream stream = ResultStream.open(mReactContext, handle, chunkSize, window);
+        final long submittedAt = System.nanoTime();
+        mStreams.put(handle, stream);
+        try {
+            mGoogleFitManager.getStreamExecutor().submit(streamType(method), new Runnable()
+            {
+                @Override
+                public void run() {
+                    QueryMetrics.Scope scope = mQueryMetrics.begin(method + "Stream", submittedAt);
+                    try {
+                        readStream(method, (long) startDate, (long) endDate, stream);
+                        stream.finish();
+                        scope.recordPayload(stream.rows().payloadSize());
+                        scope.end(null, false);
+                    } catch (Exception e) {
+                        scope.end(null, true);
+                        stream.fail(e.getMessage() != null ? e.getMessage() : e.toString());
+                    } finally {
+                        mStreams.remove(handle);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            mStreams.remove(handle);
+            mQueryMetrics.recordRejected(method + "Stream");
+            stream.fail(e.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void ackStreamChunk(int handle, int sequence) {
+        ResultStream stream = mStreams.get(handle);
+        if (stream != null) {
+            stream.ack(sequence);
+        }
+    }
+
+    @ReactMethod
+    public void closeStream(int handle) {
+        ResultStream stream = mStreams.remove(handle);
+        if (stream != null) {
+            stream.cancel();
+        }
+    }
+
+    private static String streamType(String method) {
+        if ("dailySteps".equals(method)) {
+            return "steps";
+        }
+        if ("activity".equals(method)) {
+            return "activity";
+        }
+        return "heart";
+    }
 
+    private void readStream(String method, long startDate, long endDate, ResultStream stream) throws Exception {
+        switch (method) {
+            case "heartRate":
+                mGoogleFitManager.getHeartrateHistory().getHistory(startDate, endDate, DataType.TYPE_HEART_RATE_BPM, stream);
+                break;
+            case "bloodPressure":
+                mGoogleFitManager.getHeartrateHistory().getHistory(startDate, endDate, HealthDataTypes.TYPE_BLOOD_PRESSURE, stream);
+                break;
+            case "activity":
+                mGoogleFitManager.getActivityHistory().getActivitySamples(startDate, endDate, stream);
+                break;
+            case "dailySteps":
+                mGoogleFitManager.getStepHistory().aggregateDataByDate(startDate, endDate, stream);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown stream method: " + method);
+        }
+    }
+
+    /**
+     * A read that writes its rows into a {@link ResultStream} collecting them in the response format.
+     */
+    private interface TableQuery
+    {
+        void read(ResultStream result) throws Exception;
+    }
+
+    /**
+     * Like {@link #runQuery(String, String, Callback, Callback, Callable)} for a read that returns rows;
+     * the rows are written in the selected response format directly, see {@link #setResponseFormat(String)}.
+     */
+    private void runQuery(String type,
+                          String queryKey,
+                          Callback errorCallback,
+                          Callback successCallback,
+                          final TableQuery query) {
+        final String format = mResponseFormat;
+        runQuery(type, queryKey, format, errorCallback, successCallback, new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception {
+                ResultStream result = ResultStream.collect(format);
+                query.read(result);
+                QueryMetrics.Scope scope = QueryMetrics.currentScope();
+                if (scope != null) {
+                    scope.recordPayload(result.rows().payloadSize());
+                }
+                return result.result();
+            }
+        });
+    }
+
+    private void runQuery(String type,
+                          String queryKey,
+                          Callback errorCallback,
+                          Callback successCallback,
+                          Callable<Object> query) {
+        runQuery(type, queryKey, null, errorCallback, successCallback, query);
+    }
+
+    /**
+     * Runs a Google Fit read on the shared query executor so the native modules thread is never
+     * blocked by Play services. Either callback is invoked exactly once from the worker thread.
+     *
+     * Calls with the same key while the read is still running are attached to it instead of starting
+     * another one, so the key has to capture everything the result depends on, including the response
+     * format. The part of the key before the first ':' names the method in the performance metrics.
+     */
+    private void runQuery(String type,
+                          String queryKey,
+                          String format,
+                          Callback errorCallback,
+                          Callback successCallback,
+                          final Callable<Object> query) {
+        final String method = queryKey.split(":", 2)[0];
+        final long submittedAt = System.nanoTime();
+        final String key = (format != null ? format + ":" : "") + queryKey;
+        if (mQueryCoalescer.attach(key, errorCallback, successCallback)) {
+            mQueryMetrics.recordCoalesced(method);
+            return;
+        }
         try {
-            HeartrateHistory heartrateHistory = mGoogleFitManager.getHeartrateHistory();
-            heartrateHistory.setDataType(DataType.TYPE_HEART_RATE_BPM);
-            successCallback.invoke(heartrateHistory.getHistory((long)startDate, (long)endDate));
+            mGoogleFitManager.getQueryExecutor().submit(type, new Runnable()
+            {
+                @Override
+                public void run() {
+                    QueryMetrics.Scope scope = mQueryMetrics.begin(method, submittedAt);
+                    Object result;
+                    try {
+                        result = query.call();
+                    } catch (Exception e) {
+                        scope.end(null, true);
+                        handleException(e, mQueryCoalescer.fail(key));
+                        return;
+                    }
+                    scope.end(result, false);
+                    mQueryCoalescer.succeed(key, result);
+                }
+            });
         } catch (Exception e) {
+            mQueryMetrics.recordRejected(method);
+            handleException(e, mQueryCoalescer.fail(key));
+        }
+    }
+
+    /**
+     * Runs a batch write on the query executor; writes are never coalesced and at most
+     * {@link QueryExecutor#DEFAULT_MAX_PER_TYPE} of them run at the same time.
+     */
+    private void runWrite(final String method,
+                          final Callback errorCallback,
+                          final Callback successCallback,
+                          final Callable<Object> write) {
+        final long submittedAt = System.nanoTime();
+        try {
+            mGoogleFitManager.getQueryExecutor().submit("write", new Runnable()
+            {
+                @Override
+                public void run() {
+                    QueryMetrics.Scope scope = mQueryMetrics.begin(method, submittedAt);
+                    Object result;
+                    try {
+                        result = write.call();
+                    } catch (Exception e) {
+                        scope.end(null, true);
+                        handleException(e, errorCallback);
+                        return;
+                    }
+                    scope.end(result, false);
+                    successCallback.invoke(result);
+                }
+            });
+        } catch (Exception e) {
+            mQueryMetrics.recordRejected(method);
             handleException(e, errorCallback);
         }
     }
 
     private void handleException(Exception e, Callback errorCallback) {
+        handleException(e, Collections.singletonList(errorCallback));
+    }
+
+    private void handleException(Exception e, List<Callback> errorCallbacks) {
         boolean isRecoverable = e instanceof UserRecoverableAuthException;
         if (mGoogleFitManager != null && isRecoverable) {
             mGoogleFitManager.authorize(new ArrayList<String>());
         }
-        errorCallback.invoke(e.getMessage());
+        for (Callback errorCallback : errorCallbacks) {
+            errorCallback.invoke(e.getMessage());
+        }
     }
 }
@@ -12,13 +12,10 @@ package com.reactnative.googlefit;
 import android.os.AsyncTask;
 import android.util.Log;
 
-import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
-import com.facebook.react.bridge.WritableMap;
-import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSet;
@@ -37,9 +34,11 @@ import com.google.android.gms.tasks.Tasks;
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 public class HeartrateHistory {
@@ -51,6 +50,9 @@ public class HeartrateHistory {
 
     private static final String TAG = "Weights History";
 
+    public static final String DOWNSAMPLE_LTTB = "lttb";
+    public static final String DOWNSAMPLE_MIN_MAX = "minmax";
+
     public HeartrateHistory(ReactContext reactContext, GoogleFitManager googleFitManager, DataType dataType){
         this.mReactContext = reactContext;
         this.googleFitManager = googleFitManager;
@@ -66,41 +68,150 @@ public class HeartrateHistory {
     }
 
     public ReadableArray getHistory(long startTime, long endTime) throws Exception {
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        // for height we need to take time, since GoogleFit foundation - https://stackoverflow.com/questions/28482176/read-the-height-in-googlefit-in-android
-
-        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
-                .read(this.dataType)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
-        if (this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
-            readRequestBuilder.bucketByTime(1, TimeUnit.DAYS);
-        } else {
-            readRequestBuilder.setLimit(5); // need only one height, since it's unchangable
+        return getHistory(startTime, endTime, this.dataType);
+    }
+
+    public ReadableArray getHistory(long startTime, long endTime, DataType dataType) throws Exception {
+        ResultStream result = ResultStream.collect();
+        getHistory(startTime, endTime, dataType, result);
+        return (ReadableArray) result.result();
+    }
+
+    public void getHistory(long startTime, long endTime, DataType dataType, ResultStream result) throws Exception {
+        if (dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+            DataReadRequest readRequest = new DataReadRequest.Builder()
+                    .read(dataType)
+                    .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
+                    .bucketByTime(1, TimeUnit.DAYS)
+                    .build();
+
+            Task<DataReadResponse> task = googleFitManager.getHistoryClient().readData(readRequest);
+            processResponse(QueryMetrics.await(task), result, dataType);
+            return;
+        }
+
+        for (DataReadResponse response : readRaw(startTime, endTime, dataType)) {
+            processResponse(response, result, dataType);
+        }
+    }
+
+    /**
+     * Min, average and max heart rate per bucket of the given length, read as
+     * AGGREGATE_HEART_RATE_SUMMARY so only one point per bucket leaves Google Fit.
+     */
+    public ReadableArray getHeartRateSummary(long startTime, long endTime, long bucketMillis) throws Exception {
+        ResultStream result = ResultStream.collect();
+        getHeartRateSummary(startTime, endTime, bucketMillis, result);
+        return (ReadableArray) result.result();
+    }
+
+    public void getHeartRateSummary(long startTime, long endTime, final long bucketMillis, ResultStream result) throws Exception {
+        List<DataReadResponse> responses = googleFitManager.getRangeQueryPlanner().read(
+                googleFitManager.getHistoryClient(), startTime, endTime,
+                RangeQueryPlanner.windowForBuckets(bucketMillis),
+                new RangeQueryPlanner.RequestFactory()
+                {
+                    @Override
+                    public DataReadRequest create(long windowStart, long windowEnd) {
+                        return new DataReadRequest.Builder()
+                                .aggregate(DataType.TYPE_HEART_RATE_BPM, DataType.AGGREGATE_HEART_RATE_SUMMARY)
+                                .bucketByTime((int) TimeUnit.MILLISECONDS.toSeconds(bucketMillis), TimeUnit.SECONDS)
+                                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
+                });
+
+        RowWriter rows = result.rows();
+        Format formatter = new SimpleDateFormat("EEE");
+        for (DataReadResponse response : responses) {
+            for (Bucket bucket : response.getBuckets()) {
+                for (DataSet dataSet : bucket.getDataSets()) {
+                    for (DataPoint dp : dataSet.getDataPoints()) {
+                        rows.putString("day", formatter.format(new Date(bucket.getStartTime(TimeUnit.MILLISECONDS))));
+                        rows.putDouble("startDate", bucket.getStartTime(TimeUnit.MILLISECONDS));
+                        rows.putDouble("endDate", bucket.getEndTime(TimeUnit.MILLISECONDS));
+                        rows.putDouble("value", dp.getValue(Field.FIELD_AVERAGE).asFloat());
+                        rows.putDouble("min", dp.getValue(Field.FIELD_MIN).asFloat());
+                        rows.putDouble("max", dp.getValue(Field.FIELD_MAX).asFloat());
+                        rows.endRow();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Raw heart rate samples reduced to at most maxPoints before they cross the bridge, either with
+     * {@link #DOWNSAMPLE_LTTB} or with the min and max sample per chart pixel ({@link #DOWNSAMPLE_MIN_MAX}).
+     */
+    public ReadableArray getDownsampledHeartRate(long startTime, long endTime, int maxPoints, String downsample) throws Exception {
+        ResultStream result = ResultStream.collect();
+        getDownsampledHeartRate(startTime, endTime, maxPoints, downsample, result);
+        return (ReadableArray) result.result();
+    }
+
+    public void getDownsampledHeartRate(long startTime, long endTime, int maxPoints, String downsample, ResultStream result) throws Exception {
+        List<List<Sample>> runs = new ArrayList<>();
+        for (DataReadResponse response : readRaw(startTime, endTime, DataType.TYPE_HEART_RATE_BPM)) {
+            List<Sample> run = new ArrayList<>();
+            for (DataSet dataSet : response.getDataSets()) {
+                for (DataPoint dp : dataSet.getDataPoints()) {
+                    long start = dp.getStartTime(TimeUnit.MILLISECONDS);
+                    run.add(new Sample(start, start, dp.getEndTime(TimeUnit.MILLISECONDS), null,
+                            new float[]{dp.getValue(Field.FIELD_BPM).asFloat()}));
+                }
+            }
+            Samples.sortByStart(run);
+            runs.add(run);
         }
+        List<Sample> samples = Samples.merge(runs);
+        Log.i(TAG, "Downsampling " + samples.size() + " heart rate samples to " + maxPoints);
 
-        DataReadRequest readRequest = readRequestBuilder.build();
+        if (DOWNSAMPLE_MIN_MAX.equals(downsample)) {
+            samples = Samples.downsampleMinMax(samples, 0, startTime, endTime, maxPoints);
+        } else {
+            samples = Samples.downsampleLttb(samples, 0, maxPoints);
+        }
 
-        Task<DataReadResponse> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).readData(readRequest);
-        DataReadResponse dataReadResult = Tasks.await(task, 1, TimeUnit.MINUTES);
+        RowWriter rows = result.rows();
+        Format formatter = new SimpleDateFormat("EEE");
+        for (Sample sample : samples) {
+            SampleRows.writeValue(sample, rows, formatter);
+        }
+    }
 
-        WritableArray map = Arguments.createArray();
+    private List<DataReadResponse> readRaw(long startTime, long endTime, final DataType dataType) throws Exception {
+        return googleFitManager.getRangeQueryPlanner().read(
+                googleFitManager.getHistoryClient(), startTime, endTime,
+                RangeQueryPlanner.RAW_WINDOW_MILLIS,
+                new RangeQueryPlanner.RequestFactory()
+                {
+                    @Override
+                    public DataReadRequest create(long windowStart, long windowEnd) {
+                        return new DataReadRequest.Builder()
+                                .read(dataType)
+                                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
+                });
+    }
 
+    private void processResponse(DataReadResponse dataReadResult, ResultStream result, DataType dataType) throws InterruptedException, TimeoutException {
         //Used for aggregated data
         if (dataReadResult.getBuckets().size() > 0) {
             for (Bucket bucket : dataReadResult.getBuckets()) {
                 List<DataSet> dataSets = bucket.getDataSets();
                 for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
+                    processDataSet(dataSet, result, dataType);
                 }
             }
         }
         //Used for non-aggregated data
         else if (dataReadResult.getDataSets().size() > 0) {
             for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
+                processDataSet(dataSet, result, dataType);
             }
         }
-        return map;
     }
 
     public boolean save(ReadableMap sample) {
@@ -117,6 +228,31 @@ public class HeartrateHistory {
         return true;
     }
 
+    /**
+     * Inserts {value, value2, date} blood pressure samples (systolic, diastolic in mmHg) in batches.
+     */
+    public WritableArray saveBloodPressures(ReadableArray samples) throws InterruptedException {
+        return googleFitManager.getBatchWriter().insert(
+                googleFitManager.getHistoryClient(), HealthDataTypes.TYPE_BLOOD_PRESSURE, samples,
+                BLOOD_PRESSURE_POINT_FACTORY);
+    }
+
+    /**
+     * Points of {value, value2, date} blood pressure samples.
+     */
+    static final BatchWriter.PointFactory BLOOD_PRESSURE_POINT_FACTORY = new BatchWriter.PointFactory()
+    {
+        @Override
+        public DataPoint create(DataSource dataSource, ReadableMap sample) {
+            long date = (long) sample.getDouble("date");
+            return DataPoint.builder(dataSource)
+                    .setTimestamp(date, TimeUnit.MILLISECONDS)
+                    .setField(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC, (float) sample.getDouble("value"))
+                    .setField(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC, (float) sample.getDouble("value2"))
+                    .build();
+        }
+    };
+
     public boolean delete(ReadableMap sample) {
         long endTime = (long) sample.getDouble("endTime");
         long startTime = (long) sample.getDouble("startTime");
@@ -134,6 +270,7 @@ public class HeartrateHistory {
         DeleteDataTask(long startTime, long endTime, DataType dataType) {
             this.startTime = startTime;
             this.endTime = endTime;
+            this.dataType = dataType;
         }
 
         @Override
@@ -144,7 +281,7 @@ public class HeartrateHistory {
                         .addDataType(this.dataType)
                         .build();
 
-                Task<Void> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).deleteData(request);
+                Task<Void> task = googleFitManager.getHistoryClient().deleteData(request);
                 Tasks.await(task, 1, TimeUnit.MINUTES);
 
                 if (task.isSuccessful()) {
@@ -183,7 +320,7 @@ public class HeartrateHistory {
                 // of low memory or other conditions.
                 //Log.i(TAG, "Inserting the dataset in the History API.");
 
-                Task<Void> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).insertData(dataSet);
+                Task<Void> task = googleFitManager.getHistoryClient().insertData(dataSet);
                 Tasks.await(task, 1, TimeUnit.MINUTES);
 
                 // Before querying the data, check to see if the insertion succeeded.
@@ -230,14 +367,13 @@ public class HeartrateHistory {
         return dataSet;
     }
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
+    private void processDataSet(DataSet dataSet, ResultStream result, DataType dataType) throws InterruptedException, TimeoutException {
 
         //Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
         Format formatter = new SimpleDateFormat("EEE");
-//        WritableMap stepMap = Arguments.createMap();
+        RowWriter stepMap = result.rows();
 
         for (DataPoint dp : dataSet.getDataPoints()) {
-            WritableMap stepMap = Arguments.createMap();
             String day = formatter.format(new Date(dp.getStartTime(TimeUnit.MILLISECONDS)));
             int i = 0;
 
@@ -247,7 +383,7 @@ public class HeartrateHistory {
                 stepMap.putString("day", day);
                 stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
                 stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                if (this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+                if (dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
                     stepMap.putDouble("value2", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).asFloat());
                     stepMap.putDouble("value", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).asFloat());
                 } else {
@@ -255,7 +391,8 @@ public class HeartrateHistory {
                 }
 
 
-                map.pushMap(stepMap);
+                stepMap.endRow();
+                result.checkpoint();
             }
         }
     }
@@ -2,15 +2,9 @@ package com.reactnative.googlefit;
 
 import android.util.Log;
 
-import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
-import com.facebook.react.bridge.WritableArray;
-import com.facebook.react.bridge.WritableMap;
-import com.google.android.gms.fitness.Fitness;
-import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
-import com.google.android.gms.fitness.data.DataSet;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
 import com.google.android.gms.fitness.data.Value;
@@ -70,76 +64,75 @@ public class NutritionHistory {
     }
 
     public ReadableArray aggregateDataByDate(long startTime, long endTime) throws InterruptedException, TimeoutException, ExecutionException {
+        ResultStream result = ResultStream.collect();
+        aggregateDataByDate(startTime, endTime, result);
+        return (ReadableArray) result.result();
+    }
+
+    public void aggregateDataByDate(long startTime, long endTime, ResultStream result) throws InterruptedException, TimeoutException, ExecutionException {
 
         DateFormat dateFormat = DateFormat.getDateInstance();
         Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
         Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_NUTRITION, DataType.AGGREGATE_NUTRITION_SUMMARY)
-                .bucketByTime(1, TimeUnit.DAYS)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS).build();
-
-        Task<DataReadResponse> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).readData(readRequest);
-        DataReadResponse dataReadResult = Tasks.await(task, 1, TimeUnit.MINUTES);
+        List<Sample> entries = googleFitManager.getDailyBucketCache().load(
+                googleFitManager.getAccountKey(), DataType.AGGREGATE_NUTRITION_SUMMARY.getName(), "", startTime, endTime,
+                new DailyBucketCache.BucketReader() {
+                    @Override
+                    public List<DataReadResponse> read(long start, long end) throws InterruptedException, TimeoutException, ExecutionException {
+                        return googleFitManager.getRangeQueryPlanner().read(
+                                googleFitManager.getHistoryClient(), start, end,
+                                RangeQueryPlanner.windowForBuckets(DailyBucketCache.DAY_MILLIS),
+                                new RangeQueryPlanner.RequestFactory() {
+                                    @Override
+                                    public DataReadRequest create(long windowStart, long windowEnd) {
+                                        return new DataReadRequest.Builder()
+                                                .aggregate(DataType.TYPE_NUTRITION, DataType.AGGREGATE_NUTRITION_SUMMARY)
+                                                .bucketByTime(1, TimeUnit.DAYS)
+                                                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS).build();
+                                    }
+                                });
+                    }
+                },
+                new DailyBucketCache.PointConverter() {
+                    @Override
+                    public float[] toValues(DataPoint dp) {
+                        return getNutrientValues(dp.getValue(Field.FIELD_NUTRIENTS));
+                    }
+                });
+
+        RowWriter nutritionMap = result.rows();
+        Log.i(TAG, "Number of entries: " + entries.size());
+        for (Sample entry : entries) {
+            nutritionMap.putDouble("date", entry.start);
+            putNutrients(entry.values, nutritionMap.putMap("nutrients"));
+            nutritionMap.endRow();
+        }
+    }
 
-        WritableArray map = Arguments.createArray();
+    // Nutrients are stored in NUTRIENTS_ARRAY order, with NaN for the ones not present
+    static float[] getNutrientValues(Value nutrients) {
+        float[] values = new float[NUTRIENTS_ARRAY.length];
 
-        // Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
+        for (int i = 0; i < NUTRIENTS_ARRAY.length; i++) {
+            values[i] = Float.NaN;
+            try {
+                Float nutrientVal = nutrients.getKeyValue(NUTRIENTS_ARRAY[i]);
+                if (nutrientVal != null) {
+                    values[i] = nutrientVal;
                 }
-            }
-        }
-        // Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            Log.i(TAG, "Number of returned DataSets: " + dataReadResult.getDataSets().size());
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
+            } catch (Exception e) {
             }
         }
 
-        return map;
+        return values;
     }
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
-        Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        DateFormat timeFormat = DateFormat.getTimeInstance();
-
-        for (DataPoint dp : dataSet.getDataPoints()) {
-            Log.i(TAG, "Data point:");
-            Log.i(TAG, "\tType: " + dp.getDataType().getName());
-            Log.i(TAG, "\tStart: " + dateFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)) + " "
-                    + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "\tEnd: " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)) + " "
-                    + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-
-            WritableMap nutritionMap = Arguments.createMap();
-            Value nutrients = dp.getValue((Field.FIELD_NUTRIENTS));
-
-            nutritionMap.putDouble("date", dp.getStartTime(TimeUnit.MILLISECONDS));
-            nutritionMap.putMap("nutrients", getNutrientsAsMap(nutrients));
-
-            map.pushMap(nutritionMap);
-        }
-    }
-
-    private WritableMap getNutrientsAsMap(Value nutrients) {
-        WritableMap nutrientsMap = Arguments.createMap();
-
-        for (String nutrientKey : NUTRIENTS_SET) {
-            try {
-                Float nutrientVal = nutrients.getKeyValue(nutrientKey);
-                nutrientsMap.putDouble(nutrientKey, nutrientVal);
-            } catch (Exception e) {
+    static void putNutrients(float[] values, RowWriter nutrientsMap) {
+        for (int i = 0; i < NUTRIENTS_ARRAY.length && i < values.length; i++) {
+            if (!Float.isNaN(values[i])) {
+                nutrientsMap.putDouble(NUTRIENTS_ARRAY[i], values[i]);
             }
         }
-
-        return nutrientsMap;
     }
 }
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Hour, day, week and month periods of a time zone, a day start hour and a first day of the week.
+ *
+ * Hours are absolute: they start on a whole UTC hour in every time zone, so hourly totals can be summed
+ * into the days, weeks and months of any calendar. Days start at {@code dayStartHour} local time, weeks
+ * on the day start of {@code firstDayOfWeek} and months on the day start of their first day.
+ */
+public class PeriodCalendar
+{
+    public static final String HOUR = "hour";
+    public static final String DAY = "day";
+    public static final String WEEK = "week";
+    public static final String MONTH = "month";
+
+    private static final long HOUR_MILLIS = 3600000L;
+
+    private final TimeZone timeZone;
+    private final int dayStartHour;
+    private final int firstDayOfWeek;
+
+    /**
+     * @param dayStartHour local hour the day starts at, 0 to 23
+     * @param firstDayOfWeek a {@link Calendar} day of week constant
+     */
+    public PeriodCalendar(TimeZone timeZone, int dayStartHour, int firstDayOfWeek) {
+        if (dayStartHour < 0 || dayStartHour > 23) {
+            throw new IllegalArgumentException("dayStartHour must be between 0 and 23");
+        }
+        if (firstDayOfWeek < Calendar.SUNDAY || firstDayOfWeek > Calendar.SATURDAY) {
+            throw new IllegalArgumentException("Unknown first day of week: " + firstDayOfWeek);
+        }
+        this.timeZone = timeZone;
+        this.dayStartHour = dayStartHour;
+        this.firstDayOfWeek = firstDayOfWeek;
+    }
+
+    /**
+     * The device's time zone, midnight and the locale's first day of the week.
+     */
+    public static PeriodCalendar getDefault() {
+        return new PeriodCalendar(TimeZone.getDefault(), 0, Calendar.getInstance().getFirstDayOfWeek());
+    }
+
+    public static boolean isGranularity(String granularity) {
+        return HOUR.equals(granularity) || DAY.equals(granularity) || WEEK.equals(granularity) || MONTH.equals(granularity);
+    }
+
+    /**
+     * Identifies the calendar in stored periods; two calendars with the same key produce the same periods.
+     */
+    public String key() {
+        return timeZone.getID() + "|" + dayStartHour + "|" + firstDayOfWeek;
+    }
+
+    /**
+     * The start of the period of the given granularity that contains time.
+     */
+    public long start(String granularity, long time) {
+        if (HOUR.equals(granularity)) {
+            return time - floorMod(time, HOUR_MILLIS);
+        }
+        Calendar calendar = calendar(time);
+        if (calendar.get(Calendar.HOUR_OF_DAY) < dayStartHour) {
+            calendar.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        if (WEEK.equals(granularity)) {
+            int back = (calendar.get(Calendar.DAY_OF_WEEK) - firstDayOfWeek + 7) % 7;
+            calendar.add(Calendar.DAY_OF_MONTH, -back);
+        } else if (MONTH.equals(granularity)) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        return dayStart(calendar);
+    }
+
+    /**
+     * The start of the period after the one starting at periodStart; days are 23 or 25 hours long across
+     * daylight saving changes.
+     */
+    public long next(String granularity, long periodStart) {
+        if (HOUR.equals(granularity)) {
+            return periodStart + HOUR_MILLIS;
+        }
+        Calendar calendar = calendar(periodStart);
+        switch (granularity) {
+            case DAY:
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                break;
+            case WEEK:
+                calendar.add(Calendar.DAY_OF_MONTH, 7);
+                break;
+            case MONTH:
+                calendar.add(Calendar.MONTH, 1);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown granularity: " + granularity);
+        }
+        return dayStart(calendar);
+    }
+
+    private long dayStart(Calendar calendar) {
+        calendar.set(Calendar.HOUR_OF_DAY, dayStartHour);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private Calendar calendar(long time) {
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setFirstDayOfWeek(firstDayOfWeek);
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+
+    private static long floorMod(long value, long divisor) {
+        long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lets identical history queries share one Google Fit read while it is in flight.
+ *
+ * The first caller of a key starts the query, callers arriving before it completes are attached to it
+ * and get the same result. A native array or map can only be handed to the bridge once, so every
+ * attached caller receives its own copy.
+ */
+public class QueryCoalescer
+{
+    private final Map<String, List<Callback[]>> inFlight = new HashMap<>();
+
+    /**
+     * Registers the callbacks for the given key.
+     *
+     * @return true when an identical query is already running and the callbacks were attached to it,
+     * false when the caller has to start the query
+     */
+    public synchronized boolean attach(String key, Callback errorCallback, Callback successCallback) {
+        List<Callback[]> waiters = inFlight.get(key);
+        boolean running = waiters != null;
+        if (!running) {
+            waiters = new ArrayList<>();
+            inFlight.put(key, waiters);
+        }
+        waiters.add(new Callback[]{errorCallback, successCallback});
+        return running;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Completes the query and hands the result to every attached caller.
+     */
+    public void succeed(String key, Object result) {
+        List<Callback[]> waiters = detach(key);
+        List<Object> results = new ArrayList<>(waiters.size());
+        // Copy before the first delivery, afterwards the original may already be consumed
+        for (int i = 1; i < waiters.size(); i++) {
+            results.add(copy(result));
+        }
+        results.add(0, result);
+        for (int i = 0; i < waiters.size(); i++) {
+            waiters.get(i)[1].invoke(results.get(i));
+        }
+    }
+
+    /**
+     * Completes the query with an error and returns the error callbacks of every attached caller.
+     */
+    public List<Callback> fail(String key) {
+        List<Callback> errorCallbacks = new ArrayList<>();
+        for (Callback[] waiter : detach(key)) {
+            errorCallbacks.add(waiter[0]);
+        }
+        return errorCallbacks;
+    }
+
+    private synchronized List<Callback[]> detach(String key) {
+        List<Callback[]> waiters = inFlight.remove(key);
+        return waiters != null ? waiters : new ArrayList<Callback[]>();
+    }
+
+    private static Object copy(Object value) {
+        if (value instanceof ReadableArray) {
+            return copyArray((ReadableArray) value);
+        }
+        if (value instanceof ReadableMap) {
+            return copyMap((ReadableMap) value);
+        }
+        return value;
+    }
+
+    static WritableArray copyArray(ReadableArray source) {
+        WritableArray target = Arguments.createArray();
+        for (int i = 0; i < source.size(); i++) {
+            switch (source.getType(i)) {
+                case Null:
+                    target.pushNull();
+                    break;
+                case Boolean:
+                    target.pushBoolean(source.getBoolean(i));
+                    break;
+                case Number:
+                    target.pushDouble(source.getDouble(i));
+                    break;
+                case String:
+                    target.pushString(source.getString(i));
+                    break;
+                case Map:
+                    target.pushMap(copyMap(source.getMap(i)));
+                    break;
+                case Array:
+                    target.pushArray(copyArray(source.getArray(i)));
+                    break;
+            }
+        }
+        return target;
+    }
+
+    private static WritableMap copyMap(ReadableMap source) {
+        WritableMap target = Arguments.createMap();
+        ReadableMapKeySetIterator keys = source.keySetIterator();
+        while (keys.hasNextKey()) {
+            String key = keys.nextKey();
+            switch (source.getType(key)) {
+                case Null:
+                    target.putNull(key);
+                    break;
+                case Boolean:
+                    target.putBoolean(key, source.getBoolean(key));
+                    break;
+                case Number:
+                    target.putDouble(key, source.getDouble(key));
+                    break;
+                case String:
+                    target.putString(key, source.getString(key));
+                    break;
+                case Map:
+                    target.putMap(key, copyMap(source.getMap(key)));
+                    break;
+                case Array:
+                    target.putArray(key, copyArray(source.getArray(key)));
+                    break;
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Google Fit queries off the React Native module thread.
+ *
+ * Work is spread over a fixed pool of worker threads. Each query belongs to a type (for example
+ * "steps" or "weight"); at most {@code maxPerType} queries of one type run at the same time and the
+ * rest wait in a per-type queue. The total number of waiting queries is capped by {@code maxQueued},
+ * anything above that is rejected instead of piling up.
+ */
+public class QueryExecutor
+{
+    private static final String TAG = "RNGoogleFit";
+
+    public static final int DEFAULT_MAX_WORKERS = 4;
+    public static final int DEFAULT_MAX_PER_TYPE = 2;
+    public static final int DEFAULT_MAX_QUEUED = 64;
+
+    private final ExecutorService workers;
+    private final int maxPerType;
+    private final int maxQueued;
+
+    private final Map<String, ArrayDeque<Runnable>> pending = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private int queued = 0;
+    private boolean shutdown = false;
+
+    public QueryExecutor() {
+        this(DEFAULT_MAX_WORKERS, DEFAULT_MAX_PER_TYPE, DEFAULT_MAX_QUEUED);
+    }
+
+    public QueryExecutor(int maxWorkers, int maxPerType, int maxQueued) {
+        this.maxPerType = Math.max(1, maxPerType);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.workers = Executors.newFixedThreadPool(Math.max(1, maxWorkers), new WorkerFactory());
+    }
+
+    /**
+     * Schedules a query of the given type.
+     *
+     * @throws RejectedExecutionException when the executor is shut down or the queue is full
+     */
+    public synchronized void submit(String type, Runnable query) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Query executor is shut down");
+        }
+
+        int active = runningCount(type);
+        if (active < maxPerType) {
+            running.put(type, active + 1);
+            dispatch(type, query);
+            return;
+        }
+
+        if (queued >= maxQueued) {
+            throw new RejectedExecutionException("Too many pending Google Fit queries (" + queued + ")");
+        }
+
+        ArrayDeque<Runnable> queue = pending.get(type);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            pending.put(type, queue);
+        }
+        queue.add(query);
+        queued++;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queued;
+    }
+
+    public synchronized void shutdown() {
+        shutdown = true;
+        pending.clear();
+        queued = 0;
+        workers.shutdownNow();
+    }
+
+    private void dispatch(final String type, final Runnable query) {
+        workers.execute(new Runnable()
+        {
+            @Override
+            public void run() {
+                try {
+                    query.run();
+                } catch (Exception e) {
+                    Log.w(TAG, "Query " + type + " failed: " + e.getMessage());
+                } finally {
+                    onFinished(type);
+                }
+            }
+        });
+    }
+
+    private synchronized void onFinished(String type) {
+        ArrayDeque<Runnable> queue = pending.get(type);
+        if (!shutdown && queue != null && !queue.isEmpty()) {
+            queued--;
+            dispatch(type, queue.poll());
+            return;
+        }
+
+        pending.remove(type);
+        int active = runningCount(type) - 1;
+        if (active > 0) {
+            running.put(type, active);
+        } else {
+            running.remove(type);
+        }
+    }
+
+    private int runningCount(String type) {
+        Integer count = running.get(type);
+        return count == null ? 0 : count;
+    }
+
+    private static class WorkerFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "RNGoogleFit-query-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
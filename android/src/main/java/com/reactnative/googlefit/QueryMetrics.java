@@ -0,0 +1,389 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.fitness.data.Bucket;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.result.DataReadResponse;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Per method timings and sizes of the Google Fit queries run by the module.
+ *
+ * Each query records its queue wait, the latency of every readData call, the buckets and points that
+ * came back, the time spent turning them into the result and the approximate size of that result.
+ * Values go into fixed-bucket histograms, so recording is a few additions under a short lock.
+ *
+ * Result sizes of row results are added up by the {@link RowWriter} while the rows are written. Other
+ * results, like the object of syncSince, are only measured for one in {@link #PAYLOAD_SAMPLE_EVERY}
+ * calls, since that means walking the finished result through the bridge types.
+ *
+ * A query opens a {@link Scope} on its worker thread; code further down, like the range planner,
+ * reports into it through {@link #currentScope()} without having to know which method it serves.
+ */
+public class QueryMetrics
+{
+    private static final long[] MILLIS_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+    private static final long[] COUNT_BOUNDS = {0, 1, 10, 100, 1000, 10000, 100000, 1000000};
+    private static final long[] BYTES_BOUNDS = {100, 1000, 10000, 100000, 1000000, 10000000};
+    private static final int PAYLOAD_SAMPLE_EVERY = 16;
+
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+    private final Map<String, MethodStats> methods = new TreeMap<>();
+
+    /**
+     * Starts recording a query of the given method on the calling thread.
+     */
+    public Scope begin(String method, long submittedAtNanos) {
+        Scope scope = new Scope(stats(method), submittedAtNanos);
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /**
+     * The scope of the query running on this thread, or null outside of one.
+     */
+    public static Scope currentScope() {
+        return CURRENT.get();
+    }
+
+    public void recordCoalesced(String method) {
+        MethodStats stats = stats(method);
+        synchronized (stats) {
+            stats.coalesced++;
+        }
+    }
+
+    public void recordRejected(String method) {
+        MethodStats stats = stats(method);
+        synchronized (stats) {
+            stats.calls++;
+            stats.errors++;
+        }
+    }
+
+    /**
+     * With reset, the counters are zeroed in place, so queries that are running keep recording into the
+     * stats that the next snapshot reports.
+     */
+    public synchronized WritableMap snapshot(boolean reset) {
+        WritableMap map = Arguments.createMap();
+        for (Map.Entry<String, MethodStats> method : methods.entrySet()) {
+            MethodStats stats = method.getValue();
+            synchronized (stats) {
+                map.putMap(method.getKey(), stats.toMap());
+                if (reset) {
+                    stats.reset();
+                }
+            }
+        }
+        return map;
+    }
+
+    private synchronized MethodStats stats(String method) {
+        MethodStats stats = methods.get(method);
+        if (stats == null) {
+            stats = new MethodStats();
+            methods.put(method, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Waits for a single readData call and reports it to the query running on this thread.
+     */
+    public static DataReadResponse await(Task<DataReadResponse> task)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        long started = System.nanoTime();
+        DataReadResponse response = Tasks.await(task, 1, TimeUnit.MINUTES);
+        Scope scope = currentScope();
+        if (scope != null) {
+            long elapsed = System.nanoTime() - started;
+            scope.recordRead(elapsed, response);
+            scope.addReadWallTime(elapsed);
+        }
+        return response;
+    }
+
+    /**
+     * Approximate size in bytes of a result once serialized as JSON.
+     */
+    static long payloadSize(Object value) {
+        if (value instanceof ReadableArray) {
+            ReadableArray array = (ReadableArray) value;
+            long size = 2;
+            for (int i = 0; i < array.size(); i++) {
+                switch (array.getType(i)) {
+                    case Map:
+                        size += payloadSize(array.getMap(i));
+                        break;
+                    case Array:
+                        size += payloadSize(array.getArray(i));
+                        break;
+                    case String:
+                        size += array.getString(i).length() + 2;
+                        break;
+                    default:
+                        size += 8;
+                }
+                size++;
+            }
+            return size;
+        }
+        if (value instanceof ReadableMap) {
+            ReadableMap map = (ReadableMap) value;
+            long size = 2;
+            ReadableMapKeySetIterator keys = map.keySetIterator();
+            while (keys.hasNextKey()) {
+                String key = keys.nextKey();
+                size += key.length() + 4;
+                switch (map.getType(key)) {
+                    case Map:
+                        size += payloadSize(map.getMap(key));
+                        break;
+                    case Array:
+                        size += payloadSize(map.getArray(key));
+                        break;
+                    case String:
+                        size += map.getString(key).length() + 2;
+                        break;
+                    default:
+                        size += 8;
+                }
+            }
+            return size;
+        }
+        return value instanceof String ? ((String) value).length() + 2 : 8;
+    }
+
+    /**
+     * Measurements of one running query.
+     */
+    public static class Scope
+    {
+        private final MethodStats stats;
+        private final long submittedAt;
+        private final long startedAt;
+        private long readNanos;
+        private long buckets;
+        private long points;
+        private long payload = -1;
+
+        private Scope(MethodStats stats, long submittedAt) {
+            this.stats = stats;
+            this.submittedAt = submittedAt;
+            this.startedAt = System.nanoTime();
+        }
+
+        /**
+         * Latency of one readData call; may be called from Play services threads.
+         */
+        public void recordRead(long nanos, DataReadResponse response) {
+            int bucketCount = response.getBuckets().size();
+            int pointCount = 0;
+            for (Bucket bucket : response.getBuckets()) {
+                for (DataSet dataSet : bucket.getDataSets()) {
+                    pointCount += dataSet.getDataPoints().size();
+                }
+            }
+            for (DataSet dataSet : response.getDataSets()) {
+                pointCount += dataSet.getDataPoints().size();
+            }
+            recordRead(nanos, bucketCount, pointCount);
+        }
+
+        public void recordRead(long nanos, int bucketCount, int pointCount) {
+            synchronized (stats) {
+                stats.readMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+            synchronized (this) {
+                buckets += bucketCount;
+                points += pointCount;
+            }
+        }
+
+        /**
+         * Wall time the query spent waiting for Google Fit, excluded from the conversion time.
+         */
+        public synchronized void addReadWallTime(long nanos) {
+            readNanos += nanos;
+        }
+
+        /**
+         * Size of the result as counted while it was built, see {@link RowWriter#payloadSize()}.
+         */
+        public synchronized void recordPayload(long bytes) {
+            payload = bytes;
+        }
+
+        public void end(Object result, boolean failed) {
+            CURRENT.remove();
+            long finishedAt = System.nanoTime();
+            long payload;
+            synchronized (this) {
+                payload = this.payload;
+            }
+            if (payload < 0 && !failed && result != null) {
+                boolean sample;
+                synchronized (stats) {
+                    sample = stats.unmeasured++ % PAYLOAD_SAMPLE_EVERY == 0;
+                }
+                if (sample) {
+                    payload = payloadSize(result);
+                }
+            }
+            synchronized (stats) {
+                stats.calls++;
+                if (failed) {
+                    stats.errors++;
+                }
+                stats.queueWaitMillis.record(TimeUnit.NANOSECONDS.toMillis(startedAt - submittedAt));
+                synchronized (this) {
+                    stats.conversionMillis.record(TimeUnit.NANOSECONDS.toMillis(Math.max(0, finishedAt - startedAt - readNanos)));
+                    stats.buckets.record(buckets);
+                    stats.points.record(points);
+                }
+                if (!failed && payload >= 0) {
+                    stats.payloadBytes.record(payload);
+                }
+            }
+        }
+    }
+
+    private static class MethodStats
+    {
+        long calls;
+        long errors;
+        long coalesced;
+        long unmeasured;
+        final Histogram queueWaitMillis = new Histogram(MILLIS_BOUNDS);
+        final Histogram readMillis = new Histogram(MILLIS_BOUNDS);
+        final Histogram conversionMillis = new Histogram(MILLIS_BOUNDS);
+        final Histogram buckets = new Histogram(COUNT_BOUNDS);
+        final Histogram points = new Histogram(COUNT_BOUNDS);
+        final Histogram payloadBytes = new Histogram(BYTES_BOUNDS);
+
+        void reset() {
+            calls = 0;
+            errors = 0;
+            coalesced = 0;
+            unmeasured = 0;
+            queueWaitMillis.reset();
+            readMillis.reset();
+            conversionMillis.reset();
+            buckets.reset();
+            points.reset();
+            payloadBytes.reset();
+        }
+
+        WritableMap toMap() {
+            WritableMap map = Arguments.createMap();
+            map.putDouble("calls", calls);
+            map.putDouble("errors", errors);
+            map.putDouble("coalesced", coalesced);
+            map.putMap("queueWaitMs", queueWaitMillis.toMap());
+            map.putMap("readMs", readMillis.toMap());
+            map.putMap("conversionMs", conversionMillis.toMap());
+            map.putMap("buckets", buckets.toMap());
+            map.putMap("points", points.toMap());
+            map.putMap("payloadBytes", payloadBytes.toMap());
+            return map;
+        }
+    }
+
+    /**
+     * Counts values into buckets with fixed upper bounds, the last bucket takes everything above.
+     */
+    static class Histogram
+    {
+        private final long[] bounds;
+        private final long[] counts;
+        private long count;
+        private long sum;
+        private long max;
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length + 1];
+        }
+
+        void reset() {
+            Arrays.fill(counts, 0);
+            count = 0;
+            sum = 0;
+            max = 0;
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Upper bound of the bucket holding the given quantile, or the max for the overflow bucket.
+         */
+        long quantile(double q) {
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return i < bounds.length ? Math.min(bounds[i], max) : max;
+                }
+            }
+            return max;
+        }
+
+        WritableMap toMap() {
+            WritableMap map = Arguments.createMap();
+            map.putDouble("count", count);
+            map.putDouble("sum", sum);
+            map.putDouble("max", max);
+            map.putDouble("p50", quantile(0.5));
+            map.putDouble("p95", quantile(0.95));
+            map.putDouble("p99", quantile(0.99));
+
+            WritableArray bucketBounds = Arguments.createArray();
+            WritableArray bucketCounts = Arguments.createArray();
+            for (int i = 0; i < counts.length; i++) {
+                if (i < bounds.length) {
+                    bucketBounds.pushDouble(bounds[i]);
+                } else {
+                    bucketBounds.pushNull();
+                }
+                bucketCounts.pushDouble(counts[i]);
+            }
+            map.putArray("bounds", bucketBounds);
+            map.putArray("counts", bucketCounts);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import com.google.android.gms.fitness.HistoryClient;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResponse;
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Splits long history reads into windows that stay well below Google Fit's bucket and point limits.
+ *
+ * Windows are read concurrently, at most {@code fanOut} at a time, and the responses are returned in
+ * time order. Each window times out on its own after {@code WINDOW_TIMEOUT_MINUTES}. A window that fails
+ * is retried on its own, the windows that succeeded are not read again.
+ */
+public class RangeQueryPlanner
+{
+    private static final String TAG = "RNGoogleFit";
+
+    public static final int DEFAULT_FAN_OUT = 4;
+    public static final int MAX_BUCKETS_PER_WINDOW = 250;
+    public static final long RAW_WINDOW_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long WINDOW_TIMEOUT_MINUTES = 1;
+
+    private static final Executor DIRECT = new Executor()
+    {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Builds the read request of one window.
+     */
+    public interface RequestFactory
+    {
+        DataReadRequest create(long startTime, long endTime);
+    }
+
+    private volatile int fanOut;
+
+    public RangeQueryPlanner() {
+        this(DEFAULT_FAN_OUT);
+    }
+
+    public RangeQueryPlanner(int fanOut) {
+        setFanOut(fanOut);
+    }
+
+    public void setFanOut(int fanOut) {
+        this.fanOut = Math.max(1, fanOut);
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * Window length for aggregate reads bucketed by the given duration.
+     */
+    public static long windowForBuckets(long bucketMillis) {
+        return windowForBuckets(bucketMillis, MAX_BUCKETS_PER_WINDOW);
+    }
+
+    /**
+     * Window length that holds at most maxBuckets buckets of the given duration.
+     */
+    public static long windowForBuckets(long bucketMillis, int maxBuckets) {
+        return bucketMillis * maxBuckets;
+    }
+
+    public List<DataReadResponse> read(HistoryClient client, long startTime, long endTime, long windowMillis,
+                                       RequestFactory factory)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        long started = System.nanoTime();
+        QueryMetrics.Scope scope = QueryMetrics.currentScope();
+        List<long[]> windows = split(startTime, endTime, windowMillis);
+        DataReadResponse[] responses = new DataReadResponse[windows.size()];
+
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < windows.size(); i++) {
+            pending.add(i);
+        }
+
+        Exception lastError = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && !pending.isEmpty(); attempt++) {
+            if (attempt > 1) {
+                Log.w(TAG, "Retrying " + pending.size() + " of " + windows.size() + " windows");
+            }
+            Exception[] errors = new Exception[windows.size()];
+            readWindows(client, windows, pending, factory, responses, errors, scope);
+
+            List<Integer> failed = new ArrayList<>();
+            for (int index : pending) {
+                if (responses[index] == null) {
+                    failed.add(index);
+                    lastError = errors[index];
+                }
+            }
+            pending = failed;
+        }
+        if (scope != null) {
+            scope.addReadWallTime(System.nanoTime() - started);
+        }
+
+        if (!pending.isEmpty()) {
+            if (lastError instanceof TimeoutException) {
+                throw (TimeoutException) lastError;
+            }
+            throw new ExecutionException("Could not read " + pending.size() + " of " + windows.size() + " windows", lastError);
+        }
+        return Arrays.asList(responses);
+    }
+
+    static List<long[]> split(long startTime, long endTime, long windowMillis) {
+        List<long[]> windows = new ArrayList<>();
+        if (windowMillis <= 0 || endTime <= startTime) {
+            windows.add(new long[]{startTime, endTime});
+            return windows;
+        }
+        for (long start = startTime; start < endTime; start += windowMillis) {
+            windows.add(new long[]{start, Math.min(start + windowMillis, endTime)});
+        }
+        return windows;
+    }
+
+    /**
+     * Reads the windows with at most {@code fanOut} in flight. Every window gets its own timeout, counted
+     * from its request; a window that times out is abandoned together with its {@link WindowRead}, so a
+     * late answer cannot land in the results of a later attempt.
+     */
+    private void readWindows(HistoryClient client, List<long[]> windows, List<Integer> indexes,
+                             RequestFactory factory, DataReadResponse[] responses, Exception[] errors,
+                             QueryMetrics.Scope scope)
+            throws InterruptedException {
+        ArrayDeque<WindowRead> inFlight = new ArrayDeque<>();
+        for (int index : indexes) {
+            if (inFlight.size() >= fanOut) {
+                finish(inFlight.poll(), responses, errors, scope);
+            }
+            long[] window = windows.get(index);
+            WindowRead read = new WindowRead(index);
+            try {
+                client.readData(factory.create(window[0], window[1])).addOnCompleteListener(DIRECT, read);
+            } catch (RuntimeException e) {
+                read.fail(e);
+            }
+            inFlight.add(read);
+        }
+        while (!inFlight.isEmpty()) {
+            finish(inFlight.poll(), responses, errors, scope);
+        }
+    }
+
+    private static void finish(WindowRead read, DataReadResponse[] responses, Exception[] errors,
+                               QueryMetrics.Scope scope)
+            throws InterruptedException {
+        long remaining = read.requestedAt + TimeUnit.MINUTES.toNanos(WINDOW_TIMEOUT_MINUTES) - System.nanoTime();
+        if (!read.done.await(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+            errors[read.index] = new TimeoutException("Timed out reading window " + read.index);
+            return;
+        }
+        if (read.response != null) {
+            responses[read.index] = read.response;
+            if (scope != null) {
+                scope.recordRead(read.completedAt - read.requestedAt, read.response);
+            }
+        } else {
+            errors[read.index] = read.error;
+        }
+    }
+
+    /**
+     * One attempt at reading one window.
+     */
+    private static class WindowRead implements OnCompleteListener<DataReadResponse>
+    {
+        final int index;
+        final long requestedAt = System.nanoTime();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile DataReadResponse response;
+        volatile Exception error;
+        volatile long completedAt;
+
+        WindowRead(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onComplete(Task<DataReadResponse> task) {
+            if (task.isSuccessful()) {
+                completedAt = System.nanoTime();
+                response = task.getResult();
+                done.countDown();
+            } else {
+                fail(task.getException());
+            }
+        }
+
+        void fail(Exception e) {
+            error = e;
+            done.countDown();
+        }
+    }
+}
@@ -18,7 +18,6 @@ import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
-import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.RecordingClient;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.tasks.OnCompleteListener;
@@ -81,7 +80,7 @@ public class RecordingApi
 
             final String eventName = getEventName(dataTypeName);
 
-            RecordingClient client = Fitness.getRecordingClient(reactContext, googleFitManager.getGoogleAccount());
+            RecordingClient client = googleFitManager.getRecordingClient();
 
             Task<Void> task = client.subscribe(dataType[0]);
             if (dataType.length > 1) {
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When an aggregate stored on the device has to be read from Google Fit again.
+ *
+ * A period is stored once it has been closed for {@link #SETTLE_MILLIS}. Watches that sync late and
+ * entries made in the Fit app can still change it for a while, so a stored period is read again every
+ * {@link #REFRESH_MILLIS} until it was read at least {@link #REVALIDATE_WINDOW_MILLIS} after it closed.
+ * From then on it is final and only writes and deletes of the app invalidate it.
+ */
+public class RefreshPolicy
+{
+    public static final long SETTLE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    public static final long REVALIDATE_WINDOW_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final long REFRESH_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    private RefreshPolicy() {
+    }
+
+    /**
+     * Whether a period ending at periodEnd may be stored at all.
+     */
+    public static boolean isSettled(long periodEnd, long now) {
+        return periodEnd <= now - SETTLE_MILLIS;
+    }
+
+    /**
+     * Whether a read at fetchedAt of the period ending at periodEnd can no longer change.
+     */
+    public static boolean isFinal(long periodEnd, long fetchedAt) {
+        return fetchedAt - periodEnd >= REVALIDATE_WINDOW_MILLIS;
+    }
+
+    /**
+     * Whether a stored period can be used without reading it again.
+     */
+    public static boolean isFresh(boolean isFinal, long fetchedAt, long now) {
+        return isFinal || now - fetchedAt < REFRESH_MILLIS;
+    }
+
+    public static boolean isFresh(long periodEnd, long fetchedAt, long now) {
+        return isFresh(isFinal(periodEnd, fetchedAt), fetchedAt, now);
+    }
+}
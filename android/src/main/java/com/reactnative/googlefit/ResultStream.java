@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Destination of the rows of a history query.
+ *
+ * {@link #collect(String)} gathers every row for the callback API, as bridge maps or, in a columnar
+ * response format, straight into a {@link ColumnTable}. A streaming instance instead sends the rows in
+ * chunks of at most {@code chunkSize} as {@link #CHUNK_EVENT} events, followed by one {@link #END_EVENT}. JS acknowledges every chunk; once {@code window} chunks are unacknowledged
+ * the producing query blocks until JS catches up, so neither heap holds more than a few chunks. Streams
+ * therefore run on {@link GoogleFitManager#getStreamExecutor()}, never on the query workers.
+ *
+ * Producers write into {@link #rows()} and call {@link #checkpoint()} after every row. Chunk sizes and
+ * the end event's count are in samples.
+ */
+public class ResultStream
+{
+    public static final String CHUNK_EVENT = "GoogleFitStreamChunk";
+    public static final String END_EVENT = "GoogleFitStreamEnd";
+
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+    public static final int DEFAULT_WINDOW = 2;
+    private static final long ACK_TIMEOUT_MINUTES = 1;
+
+    private final ReactContext reactContext;
+    private final int handle;
+    private final int chunkSize;
+    private final int window;
+
+    private final RowWriter rows;
+    private final String format;
+    private int rowsInChunk = 0;
+    private int sent = 0;
+    private int acked = 0;
+    private long total = 0;
+    private boolean cancelled = false;
+
+    private ResultStream(ReactContext reactContext, int handle, int chunkSize, int window, String format) {
+        this.reactContext = reactContext;
+        this.format = ColumnarEncoder.isColumnar(format) ? format : null;
+        this.rows = this.format != null ? new ColumnTable() : new BridgeRows();
+        this.handle = handle;
+        this.chunkSize = chunkSize;
+        this.window = window;
+    }
+
+    /**
+     * A stream that keeps every row as bridge maps and never emits events.
+     */
+    public static ResultStream collect() {
+        return collect(null);
+    }
+
+    /**
+     * Like {@link #collect()} in the given response format, see {@link ColumnarEncoder}.
+     */
+    public static ResultStream collect(String format) {
+        return new ResultStream(null, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, format);
+    }
+
+    public static ResultStream open(ReactContext reactContext, int handle, int chunkSize, int window) {
+        return new ResultStream(reactContext, handle, Math.max(1, chunkSize), Math.max(1, window), null);
+    }
+
+    public boolean isStreaming() {
+        return reactContext != null;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Where the next rows go.
+     */
+    public RowWriter rows() {
+        return rows;
+    }
+
+    /**
+     * Everything collected, an array of maps or an encoded table in a columnar format.
+     */
+    public Object result() {
+        if (format != null) {
+            return ColumnarEncoder.encode((ColumnTable) rows, ColumnarEncoder.PACKED_FORMAT.equals(format));
+        }
+        return ((BridgeRows) rows).array();
+    }
+
+    /**
+     * Counts one pushed row and sends the chunk once it is full.
+     *
+     * @throws CancellationException when JS closed the stream
+     * @throws TimeoutException when JS stopped acknowledging chunks
+     */
+    public void checkpoint() throws InterruptedException, TimeoutException {
+        checkpoint(1);
+    }
+
+    /**
+     * Like {@link #checkpoint()} for a row that stands for several samples, e.g. a group of points.
+     */
+    public void checkpoint(int samples) throws InterruptedException, TimeoutException {
+        rowsInChunk += samples;
+        if (rowsInChunk >= chunkSize && isStreaming()) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the remaining rows and the end event.
+     */
+    public void finish() throws InterruptedException, TimeoutException {
+        if (rowsInChunk > 0) {
+            flush();
+        }
+        WritableMap end = Arguments.createMap();
+        end.putInt("handle", handle);
+        end.putDouble("count", total);
+        emit(END_EVENT, end);
+    }
+
+    public void fail(String message) {
+        WritableMap end = Arguments.createMap();
+        end.putInt("handle", handle);
+        end.putDouble("count", total);
+        end.putString("error", message);
+        emit(END_EVENT, end);
+    }
+
+    public synchronized void ack(int sequence) {
+        acked = Math.max(acked, sequence + 1);
+        notifyAll();
+    }
+
+    public synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    private void flush() throws InterruptedException, TimeoutException {
+        int sequence;
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(ACK_TIMEOUT_MINUTES);
+            while (!cancelled && sent - acked >= window) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException("Stream " + handle + " was not acknowledged");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            if (cancelled) {
+                throw new CancellationException("Stream " + handle + " was closed");
+            }
+            sequence = sent++;
+        }
+
+        WritableMap chunk = Arguments.createMap();
+        chunk.putInt("handle", handle);
+        chunk.putInt("sequence", sequence);
+        chunk.putArray("rows", ((BridgeRows) rows).drain());
+        total += rowsInChunk;
+        rowsInChunk = 0;
+        emit(CHUNK_EVENT, chunk);
+    }
+
+    private void emit(String eventName, WritableMap params) {
+        reactContext
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(eventName, params);
+    }
+}
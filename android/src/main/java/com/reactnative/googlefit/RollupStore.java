@@ -0,0 +1,326 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.google.android.gms.fitness.HistoryClient;
+import com.google.android.gms.fitness.data.Bucket;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResponse;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * On-device hour, day, week and month totals of steps, distance, calories and nutrition.
+ *
+ * Only whole UTC hours are read from Google Fit, as hourly aggregate buckets. Days, weeks and months are
+ * summed natively from the hours for the {@link PeriodCalendar} of the query and stored under its key,
+ * so another time zone, day start hour or first day of the week re-buckets the stored hours without a
+ * Google Fit read. Stored periods follow the same {@link RefreshPolicy} as {@link DailyBucketCache}: a period
+ * is only stored once it has settled, newer periods are computed on every query, and a stored period
+ * that late data can still change is recomputed once it is older than {@link RefreshPolicy#REFRESH_MILLIS}.
+ * Only its stale hours are read from Google Fit again. A day, week or month is final once all of its
+ * hours are, see {@link Rollups}. A range query at week or month granularity therefore reads one row
+ * per period once the history is final.
+ *
+ * In time zones whose offset is not a whole number of hours, a period holds the hours starting in it.
+ */
+public class RollupStore extends SQLiteOpenHelper
+{
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "RNGoogleFitRollup.db";
+    private static final int DATABASE_VERSION = 4;
+    private static final String TABLE = "rollups";
+
+    public static final String NUTRITION = "nutrition";
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Reads the value one aggregated data point adds to its period.
+     */
+    interface ValueReader
+    {
+        double read(DataPoint dp);
+    }
+
+    private static class Metric
+    {
+        final DataType input;
+        final DataType aggregate;
+        final ValueReader reader;
+
+        Metric(DataType input, DataType aggregate, ValueReader reader) {
+            this.input = input;
+            this.aggregate = aggregate;
+            this.reader = reader;
+        }
+    }
+
+    private static final Map<String, Metric> METRICS = new HashMap<>();
+
+    static {
+        METRICS.put(SyncTracker.STEPS, new Metric(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA,
+                new ValueReader()
+                {
+                    @Override
+                    public double read(DataPoint dp) {
+                        return dp.getValue(Field.FIELD_STEPS).asInt();
+                    }
+                }));
+        METRICS.put(SyncTracker.DISTANCE, new Metric(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA,
+                new ValueReader()
+                {
+                    @Override
+                    public double read(DataPoint dp) {
+                        return dp.getValue(Field.FIELD_DISTANCE).asFloat();
+                    }
+                }));
+        METRICS.put(SyncTracker.CALORIES, new Metric(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED,
+                new ValueReader()
+                {
+                    @Override
+                    public double read(DataPoint dp) {
+                        return dp.getValue(Field.FIELD_CALORIES).asFloat();
+                    }
+                }));
+        METRICS.put(NUTRITION, new Metric(DataType.TYPE_NUTRITION, DataType.AGGREGATE_NUTRITION_SUMMARY,
+                new ValueReader()
+                {
+                    @Override
+                    public double read(DataPoint dp) {
+                        Float calories = dp.getValue(Field.FIELD_NUTRIENTS).getKeyValue(Field.NUTRIENT_CALORIES);
+                        return calories != null ? calories : 0;
+                    }
+                }));
+    }
+
+    private final GoogleFitManager googleFitManager;
+
+    public RollupStore(Context context, GoogleFitManager googleFitManager) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.googleFitManager = googleFitManager;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "account TEXT NOT NULL, "
+                + "metric TEXT NOT NULL, "
+                + "granularity TEXT NOT NULL, "
+                + "calendar TEXT NOT NULL, "
+                + "period_start INTEGER NOT NULL, "
+                + "period_end INTEGER NOT NULL, "
+                + "value REAL NOT NULL, "
+                + "fetched_at INTEGER NOT NULL, "
+                + "is_final INTEGER NOT NULL, "
+                + "PRIMARY KEY (account, metric, granularity, calendar, period_start))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    public static boolean isMetric(String metric) {
+        return METRICS.containsKey(metric);
+    }
+
+    /**
+     * Writes one {startDate, endDate, value} row per period overlapping [startTime, endTime), in time
+     * order; the first and last period may reach outside the range.
+     */
+    public void query(HistoryClient client, String metric, String granularity, PeriodCalendar calendar,
+                      long startTime, long endTime, RowWriter rows)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        if (!isMetric(metric)) {
+            throw new IllegalArgumentException("Unknown metric: " + metric);
+        }
+        if (!PeriodCalendar.isGranularity(granularity)) {
+            throw new IllegalArgumentException("Unknown granularity: " + granularity);
+        }
+        List<long[]> periods = Rollups.periods(calendar, granularity, startTime, endTime);
+        Map<Long, Rollups.Rollup> values = Rollups.values(source(client, googleFitManager.getAccountKey(), metric),
+                calendar, granularity, periods, System.currentTimeMillis());
+
+        for (long[] period : periods) {
+            rows.putDouble("startDate", period[0]);
+            rows.putDouble("endDate", period[1]);
+            rows.putDouble("value", values.get(period[0]).value);
+            rows.endRow();
+        }
+    }
+
+    /**
+     * Drops every stored period of the metric overlapping [startTime, endTime], e.g. after a write or delete.
+     */
+    public synchronized void invalidate(String metric, long startTime, long endTime) {
+        try {
+            getWritableDatabase().delete(TABLE, "metric = ? AND period_start <= ? AND period_end > ?",
+                    new String[]{metric, String.valueOf(endTime), String.valueOf(startTime)});
+        } catch (Exception e) {
+            Log.w(TAG, "Could not invalidate rollups: " + e.getMessage());
+        }
+    }
+
+    public synchronized void clear() {
+        try {
+            getWritableDatabase().delete(TABLE, null, null);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not clear rollups: " + e.getMessage());
+        }
+    }
+
+    private Rollups.Source source(final HistoryClient client, final String account, final String metric) {
+        return new Rollups.Source()
+        {
+            @Override
+            public Map<Long, Rollups.Rollup> read(String granularity, String calendar, long firstStart,
+                                                  long lastStart) {
+                return RollupStore.this.read(account, metric, granularity, calendar, firstStart, lastStart);
+            }
+
+            @Override
+            public void write(String granularity, String calendar, List<long[]> periods,
+                              Map<Long, Rollups.Rollup> values, long now) {
+                RollupStore.this.write(account, metric, granularity, calendar, periods, values, now);
+            }
+
+            @Override
+            public Map<Long, Double> fetch(long startTime, long endTime)
+                    throws InterruptedException, TimeoutException, ExecutionException {
+                return RollupStore.this.fetch(client, metric, startTime, endTime);
+            }
+        };
+    }
+
+    /**
+     * Reads the hour buckets of [startTime, endTime), which starts on a whole hour, from Google Fit.
+     */
+    private Map<Long, Double> fetch(HistoryClient client, String metric, long startTime, long endTime)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        final Metric spec = METRICS.get(metric);
+
+        Map<Long, Double> values = new HashMap<>();
+        for (DataReadResponse response : googleFitManager.getRangeQueryPlanner().read(client, startTime, endTime,
+                RangeQueryPlanner.windowForBuckets(HOUR_MILLIS),
+                new RangeQueryPlanner.RequestFactory()
+                {
+                    @Override
+                    public DataReadRequest create(long windowStart, long windowEnd) {
+                        return new DataReadRequest.Builder()
+                                .aggregate(spec.input, spec.aggregate)
+                                .bucketByTime(1, TimeUnit.HOURS)
+                                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
+                })) {
+            for (Bucket bucket : response.getBuckets()) {
+                double sum = 0;
+                for (DataSet dataSet : bucket.getDataSets()) {
+                    for (DataPoint dp : dataSet.getDataPoints()) {
+                        sum += spec.reader.read(dp);
+                    }
+                }
+                values.put(bucket.getStartTime(TimeUnit.MILLISECONDS), sum);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The stored periods starting in [firstStart, lastStart], fresh or not.
+     */
+    private synchronized Map<Long, Rollups.Rollup> read(String account, String metric, String granularity,
+                                                        String calendar, long firstStart, long lastStart) {
+        Map<Long, Rollups.Rollup> values = new TreeMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().rawQuery(
+                    "SELECT period_start, value, fetched_at, is_final FROM " + TABLE
+                            + " WHERE account = ? AND metric = ? AND granularity = ? AND calendar = ?"
+                            + " AND period_start >= ? AND period_start <= ?",
+                    new String[]{account, metric, granularity, calendar,
+                            String.valueOf(firstStart), String.valueOf(lastStart)});
+            while (cursor.moveToNext()) {
+                values.put(cursor.getLong(0),
+                        new Rollups.Rollup(cursor.getDouble(1), cursor.getLong(2), cursor.getInt(3) != 0));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read rollups: " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Stores the computed periods that have settled.
+     */
+    private synchronized void write(String account, String metric, String granularity, String calendar,
+                                    List<long[]> periods, Map<Long, Rollups.Rollup> values, long now) {
+        SQLiteDatabase db;
+        try {
+            db = getWritableDatabase();
+        } catch (Exception e) {
+            Log.w(TAG, "Could not open rollups: " + e.getMessage());
+            return;
+        }
+
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE
+                    + " (account, metric, granularity, calendar, period_start, period_end, value, fetched_at, is_final)"
+                    + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            for (long[] period : periods) {
+                Rollups.Rollup value = values.get(period[0]);
+                if (value == null || !RefreshPolicy.isSettled(period[1], now)) {
+                    continue;
+                }
+                insert.clearBindings();
+                insert.bindString(1, account);
+                insert.bindString(2, metric);
+                insert.bindString(3, granularity);
+                insert.bindString(4, calendar);
+                insert.bindLong(5, period[0]);
+                insert.bindLong(6, period[1]);
+                insert.bindDouble(7, value.value);
+                insert.bindLong(8, value.fetchedAt);
+                insert.bindLong(9, value.isFinal ? 1 : 0);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.w(TAG, "Could not write rollups: " + e.getMessage());
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
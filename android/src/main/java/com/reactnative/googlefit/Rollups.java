@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * How the periods of one {@link RollupStore} metric are taken from the store, summed from their hours
+ * or read from Google Fit.
+ *
+ * An hour is final once it was read {@link RefreshPolicy#REVALIDATE_WINDOW_MILLIS} after it ended. A
+ * day, week or month is final when all of its hours are, so it stays fresh from then on even though
+ * its oldest hours were read before the period itself had ended.
+ */
+class Rollups
+{
+    /**
+     * The value of one period, when the oldest of its hours was read from Google Fit and whether all
+     * of them were final.
+     */
+    static class Rollup
+    {
+        final double value;
+        final long fetchedAt;
+        final boolean isFinal;
+
+        Rollup(double value, long fetchedAt, boolean isFinal) {
+            this.value = value;
+            this.fetchedAt = fetchedAt;
+            this.isFinal = isFinal;
+        }
+
+        boolean isFresh(long now) {
+            return RefreshPolicy.isFresh(isFinal, fetchedAt, now);
+        }
+
+        Rollup plus(Rollup other) {
+            return new Rollup(value + other.value, Math.min(fetchedAt, other.fetchedAt), isFinal && other.isFinal);
+        }
+    }
+
+    /**
+     * The stored periods and the Google Fit hours of one metric.
+     */
+    interface Source
+    {
+        /**
+         * The stored periods starting in [firstStart, lastStart], fresh or not.
+         */
+        Map<Long, Rollup> read(String granularity, String calendar, long firstStart, long lastStart);
+
+        /**
+         * Stores the computed periods that have settled.
+         */
+        void write(String granularity, String calendar, List<long[]> periods, Map<Long, Rollup> values, long now);
+
+        /**
+         * Reads the hour buckets of [startTime, endTime), which starts on a whole hour, from Google Fit.
+         */
+        Map<Long, Double> fetch(long startTime, long endTime)
+                throws InterruptedException, TimeoutException, ExecutionException;
+    }
+
+    private Rollups() {
+    }
+
+    static List<long[]> periods(PeriodCalendar calendar, String granularity, long startTime, long endTime) {
+        List<long[]> periods = new ArrayList<>();
+        for (long start = calendar.start(granularity, startTime); start < endTime; ) {
+            long end = calendar.next(granularity, start);
+            periods.add(new long[]{start, end});
+            start = end;
+        }
+        return periods;
+    }
+
+    /**
+     * The value of every period, taken from the store where it is fresh. Missing and stale hours are read
+     * from Google Fit in contiguous runs, missing and stale days, weeks and months are summed from their
+     * hours.
+     */
+    static Map<Long, Rollup> values(Source source, PeriodCalendar calendar, String granularity,
+                                    List<long[]> periods, long now)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        if (periods.isEmpty()) {
+            return new HashMap<>();
+        }
+        boolean hourly = PeriodCalendar.HOUR.equals(granularity);
+        // Hours are the same in every calendar
+        String calendarKey = hourly ? "" : calendar.key();
+        Map<Long, Rollup> values = source.read(granularity, calendarKey,
+                periods.get(0)[0], periods.get(periods.size() - 1)[0]);
+        for (Iterator<Rollup> it = values.values().iterator(); it.hasNext(); ) {
+            if (!it.next().isFresh(now)) {
+                it.remove();
+            }
+        }
+
+        Map<Long, Rollup> computed = new HashMap<>();
+        for (List<long[]> run : missingRuns(periods, values)) {
+            long runStart = run.get(0)[0];
+            long runEnd = run.get(run.size() - 1)[1];
+            Map<Long, Rollup> parts = new HashMap<>();
+            if (hourly) {
+                for (Map.Entry<Long, Double> hour : source.fetch(runStart, runEnd).entrySet()) {
+                    long hourEnd = calendar.next(PeriodCalendar.HOUR, hour.getKey());
+                    parts.put(hour.getKey(), new Rollup(hour.getValue(), now, RefreshPolicy.isFinal(hourEnd, now)));
+                }
+            } else {
+                List<long[]> hours = periods(calendar, PeriodCalendar.HOUR, runStart, runEnd);
+                Map<Long, Rollup> hourValues = values(source, calendar, PeriodCalendar.HOUR, hours, now);
+                for (long[] hour : hours) {
+                    long periodStart = calendar.start(granularity, hour[0]);
+                    Rollup sum = parts.get(periodStart);
+                    Rollup part = hourValues.get(hour[0]);
+                    parts.put(periodStart, sum == null ? part : sum.plus(part));
+                }
+            }
+            for (long[] period : run) {
+                Rollup value = parts.get(period[0]);
+                computed.put(period[0], value != null ? value
+                        : new Rollup(0, now, RefreshPolicy.isFinal(period[1], now)));
+            }
+        }
+
+        if (!computed.isEmpty()) {
+            source.write(granularity, calendarKey, periods, computed, now);
+            values.putAll(computed);
+        }
+        return values;
+    }
+
+    static List<List<long[]>> missingRuns(List<long[]> periods, Map<Long, ?> stored) {
+        List<List<long[]>> runs = new ArrayList<>();
+        List<long[]> run = null;
+        for (long[] period : periods) {
+            if (stored.containsKey(period[0])) {
+                run = null;
+            } else {
+                if (run == null) {
+                    run = new ArrayList<>();
+                    runs.add(run);
+                }
+                run.add(period);
+            }
+        }
+        return runs;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+/**
+ * Destination of the rows of a query result, independent of React Native types.
+ *
+ * Producers write the fields of one row and call {@link #endRow()}; a field that is not written is
+ * missing from that row. {@link #putMap(String)} opens a nested object of the current row, which needs
+ * no endRow of its own, and {@link #putArray(String)} a nested array that gets one element per endRow.
+ * {@link BridgeRows} turns the rows into bridge maps, {@link ColumnTable} into typed columns without
+ * building a map per row.
+ *
+ * While the rows are written, the writer and its nested writers add up the approximate size of the rows
+ * as JSON, so {@link QueryMetrics} can report result sizes without walking the result again.
+ */
+public abstract class RowWriter
+{
+    private final long[] payloadSize;
+
+    protected RowWriter() {
+        this.payloadSize = new long[1];
+    }
+
+    /**
+     * A nested writer whose rows count towards the size of parent.
+     */
+    protected RowWriter(RowWriter parent) {
+        this.payloadSize = parent.payloadSize;
+    }
+
+    public void putDouble(String key, double value) {
+        payloadSize[0] += key.length() + 12;
+        writeDouble(key, value);
+    }
+
+    /**
+     * Writes the value, or a missing field when it is null.
+     */
+    public void putString(String key, String value) {
+        payloadSize[0] += key.length() + 4 + (value != null ? value.length() + 2 : 4);
+        writeString(key, value);
+    }
+
+    public void putBoolean(String key, boolean value) {
+        payloadSize[0] += key.length() + 9;
+        writeBoolean(key, value);
+    }
+
+    /**
+     * The nested object under key in the current row.
+     */
+    public RowWriter putMap(String key) {
+        payloadSize[0] += key.length() + 6;
+        return writeMap(key);
+    }
+
+    /**
+     * A new nested array of rows under key in the current row.
+     */
+    public RowWriter putArray(String key) {
+        payloadSize[0] += key.length() + 6;
+        return writeArray(key);
+    }
+
+    /**
+     * Completes the current row; the next put starts a new one.
+     */
+    public void endRow() {
+        payloadSize[0] += 3;
+        writeRowEnd();
+    }
+
+    /**
+     * The number of completed rows.
+     */
+    public abstract int length();
+
+    /**
+     * Approximate JSON size in bytes of everything written so far, including nested writers.
+     */
+    public long payloadSize() {
+        return payloadSize[0];
+    }
+
+    protected abstract void writeDouble(String key, double value);
+
+    protected abstract void writeString(String key, String value);
+
+    protected abstract void writeBoolean(String key, boolean value);
+
+    protected abstract RowWriter writeMap(String key);
+
+    protected abstract RowWriter writeArray(String key);
+
+    protected abstract void writeRowEnd();
+}
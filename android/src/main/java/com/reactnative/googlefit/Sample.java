@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.util.Comparator;
+
+/**
+ * One data point of a history query, independent of Google Fit and React Native types.
+ *
+ * History classes turn Google Fit data points into samples with a {@link DailyBucketCache.PointConverter}
+ * and samples into result rows in their processEntry methods or with {@link SampleRows}; everything in
+ * between, like caching, sorting and aggregation, works on this class only. Values are the fields of the
+ * point in an order defined by the data type, for example the nutrients in NutritionHistory's order.
+ */
+public class Sample
+{
+    public static final Comparator<Sample> BY_START = new Comparator<Sample>()
+    {
+        @Override
+        public int compare(Sample a, Sample b) {
+            return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+        }
+    };
+
+    public final long bucketStart;
+    public final long start;
+    public final long end;
+    public final String origin;
+    public final float[] values;
+
+    public Sample(long bucketStart, long start, long end, String origin, float[] values) {
+        this.bucketStart = bucketStart;
+        this.start = start;
+        this.end = end;
+        this.origin = origin;
+        this.values = values;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.text.Format;
+import java.util.Date;
+
+/**
+ * The result rows of {@link Sample}s as the history classes return them.
+ *
+ * History classes only turn Google Fit data points into samples; the fields of the rows are written
+ * here, in plain Java, so the serialization to the bridge can be benchmarked off-device.
+ */
+public final class SampleRows
+{
+    private static final String USER_INPUT = "user_input";
+
+    private SampleRows() {
+    }
+
+    /**
+     * {startDate, endDate, steps, stream, isUserInput} of a step sample whose origin is its stream name.
+     */
+    public static void writeSteps(Sample sample, RowWriter rows) {
+        String stream = sample.origin != null ? sample.origin : "";
+
+        rows.putDouble("startDate", sample.start);
+        rows.putDouble("endDate", sample.end);
+        rows.putDouble("steps", (int) sample.values[0]);
+        rows.putString("stream", stream);
+        rows.putBoolean("isUserInput", stream.contains(USER_INPUT));
+        rows.endRow();
+    }
+
+    /**
+     * {day, startDate, endDate, value} of the first value of a sample; day is the start formatted with
+     * dayFormat, e.g. the short name of the weekday.
+     */
+    public static void writeValue(Sample sample, RowWriter rows, Format dayFormat) {
+        rows.putString("day", dayFormat.format(new Date(sample.start)));
+        rows.putDouble("startDate", sample.start);
+        rows.putDouble("endDate", sample.end);
+        rows.putDouble("value", sample.values[0]);
+        rows.endRow();
+    }
+}
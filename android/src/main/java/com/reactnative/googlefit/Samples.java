@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Plain Java operations on {@link Sample}s: ordering, bucketing, averaging, downsampling and the
+ * compact binary form used by the on-device cache. Nothing here touches Android, Google Fit or React
+ * Native, so the hot paths can be benchmarked off-device (see the benchmarks module).
+ */
+public final class Samples
+{
+    private Samples() {
+    }
+
+    /**
+     * Sorts samples by start time; equal starts keep their order.
+     */
+    public static void sortByStart(List<Sample> samples) {
+        Collections.sort(samples, Sample.BY_START);
+    }
+
+    /**
+     * Merges runs that are each sorted by start time into one sorted list; of equal starts, the sample of
+     * the earlier run comes first. The head of every run sits in a heap, so this takes O(n log k).
+     */
+    public static List<Sample> merge(final List<List<Sample>> runs) {
+        int total = 0;
+        for (List<Sample> run : runs) {
+            total += run.size();
+        }
+        List<Sample> merged = new ArrayList<>(total);
+        final int[] positions = new int[runs.size()];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long startA = runs.get(a).get(positions[a]).start;
+                long startB = runs.get(b).get(positions[b]).start;
+                if (startA != startB) {
+                    return startA < startB ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            if (!runs.get(i).isEmpty()) {
+                heads.add(i);
+            }
+        }
+        while (!heads.isEmpty()) {
+            int next = heads.poll();
+            List<Sample> run = runs.get(next);
+            merged.add(run.get(positions[next]++));
+            if (positions[next] < run.size()) {
+                heads.add(next);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Index of the bucket of the given length that a sample belongs to, counted from rangeStart.
+     */
+    public static int bucketIndex(Sample sample, long rangeStart, long bucketMillis) {
+        return (int) ((sample.bucketStart - rangeStart) / bucketMillis);
+    }
+
+    /**
+     * Number of buckets of the given length needed to cover [startTime, endTime).
+     */
+    public static int bucketCount(long startTime, long endTime, long bucketMillis) {
+        return (int) Math.max(0, (endTime - startTime + bucketMillis - 1) / bucketMillis);
+    }
+
+    /**
+     * Adds one value of every sample to its bucket; counts, when given, receives the samples per bucket.
+     */
+    public static float[] sumByBucket(List<Sample> samples, int valueIndex, long rangeStart, long bucketMillis,
+                                      int buckets, int[] counts) {
+        float[] sums = new float[buckets];
+        for (Sample sample : samples) {
+            int bucket = bucketIndex(sample, rangeStart, bucketMillis);
+            if (bucket >= 0 && bucket < buckets && sample.values != null && valueIndex < sample.values.length) {
+                sums[bucket] += sample.values[valueIndex];
+                if (counts != null) {
+                    counts[bucket]++;
+                }
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Average over the trailing window of buckets, ending with and including each bucket, in one pass.
+     * The first window - 1 buckets only serve as lookback, so the result has {@code window - 1} fewer entries;
+     * windows without any samples average to 0.
+     */
+    public static float[] trailingAverages(float[] sums, int[] counts, int window) {
+        int lookback = window - 1;
+        float[] averages = new float[Math.max(0, sums.length - lookback)];
+        float windowSum = 0;
+        int windowCount = 0;
+        for (int i = 0; i < sums.length; i++) {
+            windowSum += sums[i];
+            windowCount += counts[i];
+            if (i >= window) {
+                windowSum -= sums[i - window];
+                windowCount -= counts[i - window];
+            }
+            if (i >= lookback) {
+                averages[i - lookback] = windowCount != 0 ? windowSum / windowCount : 0;
+            }
+        }
+        return averages;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets: keeps the first and last sample and, from each of the
+     * {@code threshold - 2} buckets in between, the sample spanning the largest triangle with the sample
+     * kept before it and the average of the next bucket. Preserves the visual shape of a series sorted
+     * by start time with far fewer points.
+     */
+    public static List<Sample> downsampleLttb(List<Sample> samples, int valueIndex, int threshold) {
+        int size = samples.size();
+        if (threshold >= size || threshold < 3) {
+            return samples;
+        }
+        List<Sample> sampled = new ArrayList<>(threshold);
+        double every = (double) (size - 2) / (threshold - 2);
+        int kept = 0;
+        sampled.add(samples.get(0));
+        for (int i = 0; i < threshold - 2; i++) {
+            int nextStart = (int) Math.floor((i + 1) * every) + 1;
+            int nextEnd = Math.min((int) Math.floor((i + 2) * every) + 1, size);
+            double averageX = 0;
+            double averageY = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                averageX += samples.get(j).start;
+                averageY += samples.get(j).values[valueIndex];
+            }
+            averageX /= Math.max(1, nextEnd - nextStart);
+            averageY /= Math.max(1, nextEnd - nextStart);
+
+            int rangeStart = (int) Math.floor(i * every) + 1;
+            int rangeEnd = nextStart;
+            Sample a = samples.get(kept);
+            double maxArea = -1;
+            int chosen = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                Sample candidate = samples.get(j);
+                double area = Math.abs((a.start - averageX) * (candidate.values[valueIndex] - a.values[valueIndex])
+                        - (a.start - candidate.start) * (averageY - a.values[valueIndex]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = j;
+                }
+            }
+            sampled.add(samples.get(chosen));
+            kept = chosen;
+        }
+        sampled.add(samples.get(size - 1));
+        return sampled;
+    }
+
+    /**
+     * Splits [startTime, endTime) into {@code maxPoints / 2} equal slots, one per pixel of a chart, and
+     * keeps the minimum and maximum sample of each slot in time order, so no spike is lost.
+     */
+    public static List<Sample> downsampleMinMax(List<Sample> samples, int valueIndex, long startTime, long endTime,
+                                                int maxPoints) {
+        int slots = maxPoints / 2;
+        if (samples.size() <= maxPoints || slots < 1 || endTime <= startTime) {
+            return samples;
+        }
+        double slotMillis = (double) (endTime - startTime) / slots;
+        List<Sample> sampled = new ArrayList<>(slots * 2);
+        int slot = -1;
+        Sample min = null;
+        Sample max = null;
+        for (Sample sample : samples) {
+            int index = (int) Math.min(slots - 1, Math.max(0, (long) ((sample.start - startTime) / slotMillis)));
+            if (index != slot) {
+                addInOrder(sampled, min, max);
+                slot = index;
+                min = sample;
+                max = sample;
+            } else if (sample.values[valueIndex] < min.values[valueIndex]) {
+                min = sample;
+            } else if (sample.values[valueIndex] > max.values[valueIndex]) {
+                max = sample;
+            }
+        }
+        addInOrder(sampled, min, max);
+        return sampled;
+    }
+
+    private static void addInOrder(List<Sample> target, Sample min, Sample max) {
+        if (min == null) {
+            return;
+        }
+        if (min == max) {
+            target.add(min);
+        } else if (min.start <= max.start) {
+            target.add(min);
+            target.add(max);
+        } else {
+            target.add(max);
+            target.add(min);
+        }
+    }
+
+    public static byte[] pack(float[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (float value : values) {
+            buffer.putFloat(value);
+        }
+        return buffer.array();
+    }
+
+    public static float[] unpack(byte[] blob) {
+        ByteBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        float[] values = new float[blob.length / 4];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.getFloat();
+        }
+        return values;
+    }
+}
@@ -11,31 +11,40 @@
 package com.reactnative.googlefit;
 
 import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
-import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
-import com.google.android.gms.fitness.data.Value;
-import com.google.android.gms.fitness.request.DataSourcesRequest;
 import com.google.android.gms.fitness.request.OnDataPointListener;
 import com.google.android.gms.fitness.request.SensorRequest;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+/**
+ * Live step updates from the Google Fit sensors, delivered as batched StepChangedEvents.
+ *
+ * Data points are only accumulated as they arrive; at most one event per {@code interval} milliseconds
+ * carries the steps added since the last event and the latest cumulative count. Until JS acknowledges
+ * an event no further one is sent, so a busy JS thread gets one up to date event instead of a backlog.
+ */
 public class StepCounter implements OnDataPointListener
 {
 
@@ -44,7 +53,32 @@ public class StepCounter implements OnDataPointListener
     private Activity activity;
 
     private static final String TAG = "StepCounter";
-
+    private static final String STEP_CHANGED_EVENT = "StepChangedEvent";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    // Events are sent again without an ack after this, for apps that do not acknowledge them
+    private static final long ACK_TIMEOUT_MILLIS = 5000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<String> registeredTypes = new HashSet<>();
+    private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+
+    private int pendingSteps = 0;
+    private int pendingPoints = 0;
+    private long latestCumulative = -1;
+    private long pendingStart = 0;
+    private long pendingEnd = 0;
+    private long lastEmitAt = 0;
+    private boolean awaitingAck = false;
+    private boolean flushScheduled = false;
+
+    private final Runnable flush = new Runnable()
+    {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
 
     public StepCounter(ReactContext reactContext, GoogleFitManager googleFitManager, Activity activity) {
         this.mReactContext = reactContext;
@@ -52,38 +86,47 @@ public class StepCounter implements OnDataPointListener
         this.activity = activity;
     }
 
+    /**
+     * Minimum time between two StepChangedEvents, e.g. 16 for once per frame.
+     */
+    public synchronized void setInterval(long intervalMillis) {
+        this.intervalMillis = Math.max(0, intervalMillis);
+    }
+
     public void findFitnessDataSources() {
+        findFitnessDataSource(DataType.TYPE_STEP_COUNT_DELTA);
+        findFitnessDataSource(DataType.TYPE_STEP_COUNT_CUMULATIVE);
+    }
+
+    private void findFitnessDataSource(final DataType type) {
         Activity activity = googleFitManager.getCurrentActivity();
         if (activity == null) {
             return;
         }
-        DataSourcesRequest dataSourceRequest = new DataSourcesRequest.Builder()
-                .setDataTypes(DataType.TYPE_STEP_COUNT_DELTA, DataType.TYPE_STEP_COUNT_CUMULATIVE)
-                .setDataSourceTypes(DataSource.TYPE_DERIVED)
-                .build();
-
-        Fitness.getSensorsClient(mReactContext, googleFitManager.getGoogleAccount())
-                .findDataSources(dataSourceRequest)
+        googleFitManager.getDataSourceRegistry().find(type)
                 .addOnSuccessListener(activity, new OnSuccessListener<List<DataSource>>()
                 {
                     @Override
                     public void onSuccess(List<DataSource> dataSources) {
                         for (DataSource dataSource : dataSources) {
-                            DataType type = dataSource.getDataType();
-
-                            if (DataType.TYPE_STEP_COUNT_DELTA.equals(type)
-                                    || DataType.TYPE_STEP_COUNT_CUMULATIVE.equals(type)) {
+                            // One derived source per type, every further one reports the same steps again
+                            if (dataSource.getType() == DataSource.TYPE_DERIVED && markRegistered(type)) {
                                 Log.i(TAG, "Register Fitness Listener: " + type);
-                                registerFitnessDataListener(dataSource, type);//DataType.TYPE_STEP_COUNT_DELTA);
+                                registerFitnessDataListener(dataSource, type);
                             }
                         }
                     }
                 });
     }
 
-    private void registerFitnessDataListener(DataSource dataSource, DataType dataType) {
+    private synchronized boolean markRegistered(DataType type) {
+        return registeredTypes.add(type.getName());
+    }
+
+    private void registerFitnessDataListener(final DataSource dataSource, final DataType dataType) {
         Activity activity = googleFitManager.getCurrentActivity();
         if (activity == null) {
+            unmarkRegistered(dataType);
             return;
         }
 
@@ -93,44 +136,106 @@ public class StepCounter implements OnDataPointListener
                 .setSamplingRate(3, TimeUnit.SECONDS)
                 .build();
 
-        Fitness.getSensorsClient(mReactContext, googleFitManager.getGoogleAccount()).add(request, this)
+        googleFitManager.getSensorsClient().add(request, this)
                 .addOnCompleteListener(new OnCompleteListener<Void>()
                 {
                     @Override
                     public void onComplete(@NonNull Task<Void> task) {
                         if (task.isSuccessful()) {
                             Log.i(TAG, "SensorApi successfully added");
+                        } else {
+                            unmarkRegistered(dataType);
                         }
                     }
                 });
     }
 
+    private synchronized void unmarkRegistered(DataType type) {
+        registeredTypes.remove(type.getName());
+    }
+
+    /**
+     * Forgets the registered sources after the listener was removed from the SensorsClient.
+     */
+    public synchronized void reset() {
+        registeredTypes.clear();
+        handler.removeCallbacks(flush);
+        flushScheduled = false;
+        pendingSteps = 0;
+        pendingPoints = 0;
+        latestCumulative = -1;
+        awaitingAck = false;
+    }
 
     @Override
     public void onDataPoint(DataPoint dataPoint) {
         DataType type = dataPoint.getDataType();
-        Log.i(TAG, "Detected DataPoint type: " + type);
-
-        for (final Field field : type.getFields()) {
-            final Value value = dataPoint.getValue(field);
-            Log.i(TAG, "Detected DataPoint field: " + field.getName());
-            Log.i(TAG, "Detected DataPoint value: " + value);
+        synchronized (this) {
+            if (pendingPoints == 0) {
+                pendingStart = dataPoint.getStartTime(TimeUnit.MILLISECONDS);
+            }
+            pendingEnd = Math.max(pendingEnd, dataPoint.getEndTime(TimeUnit.MILLISECONDS));
+            if (DataType.TYPE_STEP_COUNT_DELTA.equals(type)) {
+                pendingSteps += dataPoint.getValue(Field.FIELD_STEPS).asInt();
+            } else if (DataType.TYPE_STEP_COUNT_CUMULATIVE.equals(type)) {
+                latestCumulative = dataPoint.getValue(Field.FIELD_STEPS).asInt();
+            } else {
+                return;
+            }
+            pendingPoints++;
+            scheduleFlush(SystemClock.uptimeMillis());
+        }
+    }
 
+    /**
+     * Called by JS once it handled a StepChangedEvent, lets the next batch go out.
+     */
+    public synchronized void ack() {
+        awaitingAck = false;
+        if (pendingPoints > 0) {
+            scheduleFlush(SystemClock.uptimeMillis());
+        }
+    }
 
-       /*     activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    Toast.makeText(mReactContext.getApplicationContext(), "Field: " + field.getName() + " Value: " + value, Toast.LENGTH_SHORT).show();
-                }
-            });*/
+    private void scheduleFlush(long now) {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        handler.postDelayed(flush, Math.max(0, lastEmitAt + intervalMillis - now));
+    }
 
-            if (type.equals(DataType.TYPE_STEP_COUNT_DELTA)) {
-                WritableMap map = Arguments.createMap();
-                map.putDouble("steps", value.asInt());
-                sendEvent(this.mReactContext, "StepChangedEvent", map);
+    private void flushPending() {
+        WritableMap map;
+        synchronized (this) {
+            flushScheduled = false;
+            long now = SystemClock.uptimeMillis();
+            if (pendingPoints == 0) {
+                return;
+            }
+            if (awaitingAck && now - lastEmitAt < ACK_TIMEOUT_MILLIS) {
+                // ack() schedules the flush, this only covers a missing ack
+                flushScheduled = true;
+                handler.postDelayed(flush, lastEmitAt + ACK_TIMEOUT_MILLIS - now);
+                return;
             }
 
+            map = Arguments.createMap();
+            map.putDouble("steps", pendingSteps);
+            if (latestCumulative >= 0) {
+                map.putDouble("cumulative", latestCumulative);
+            }
+            map.putInt("points", pendingPoints);
+            map.putDouble("startDate", pendingStart);
+            map.putDouble("endDate", pendingEnd);
+
+            pendingSteps = 0;
+            pendingPoints = 0;
+            pendingEnd = 0;
+            lastEmitAt = now;
+            awaitingAck = true;
         }
+        sendEvent(this.mReactContext, STEP_CHANGED_EVENT, map);
     }
 
 
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+/**
+ * Fixed size single-producer single-consumer queue of step counter readings.
+ *
+ * The sensor thread only stores two longs per event; nothing is allocated after construction. When the
+ * consumer falls behind, new readings are dropped: the step counter is cumulative, so the next reading
+ * that fits carries every step of the dropped ones.
+ */
+class StepEventRing
+{
+    private final long[] counters;
+    private final long[] timestamps;
+    private final int mask;
+
+    // Written only by the producer and the consumer respectively
+    private volatile long written = 0;
+    private volatile long read = 0;
+    private volatile long dropped = 0;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    StepEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.counters = new long[size];
+        this.timestamps = new long[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer side; returns false when the reading was dropped because the ring is full.
+     */
+    boolean offer(long counter, long timestampNanos) {
+        long position = written;
+        if (position - read >= counters.length) {
+            dropped++;
+            return false;
+        }
+        int index = (int) position & mask;
+        counters[index] = counter;
+        timestamps[index] = timestampNanos;
+        written = position + 1;
+        return true;
+    }
+
+    /**
+     * Consumer side: readings available to {@link #counterAt(int)} and {@link #timestampAt(int)}.
+     */
+    int size() {
+        return (int) (written - read);
+    }
+
+    long counterAt(int offset) {
+        return counters[(int) (read + offset) & mask];
+    }
+
+    long timestampAt(int offset) {
+        return timestamps[(int) (read + offset) & mask];
+    }
+
+    /**
+     * Consumer side: releases the first count readings to the producer.
+     */
+    void advance(int count) {
+        read = read + count;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+}
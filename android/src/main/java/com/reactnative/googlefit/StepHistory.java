@@ -16,12 +16,10 @@ import androidx.annotation.Nullable;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
-import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
-import com.google.android.gms.auth.UserRecoverableAuthException;
 import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.HistoryClient;
 import com.google.android.gms.fitness.data.Bucket;
@@ -39,12 +37,15 @@ import com.google.android.gms.tasks.Tasks;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class StepHistory
 {
@@ -59,194 +60,305 @@ public class StepHistory
         this.googleFitManager = googleFitManager;
     }
 
-    public void getUserInputSteps(final long startTime, final long endTime, final Callback successCallback) {
+    public int getUserInputSteps(long startTime, long endTime) {
+        try {
+            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+            dateFormat.setTimeZone(TimeZone.getDefault());
+
+            Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
+            Log.i(TAG, "Range End: " + dateFormat.format(endTime));
+
+            List<DataReadResponse> responses = googleFitManager.getRangeQueryPlanner().read(
+                    googleFitManager.getHistoryClient(), startTime, endTime,
+                    RangeQueryPlanner.RAW_WINDOW_MILLIS,
+                    new RangeQueryPlanner.RequestFactory()
+                    {
+                        @Override
+                        public DataReadRequest create(long windowStart, long windowEnd) {
+                            return new DataReadRequest.Builder()
+                                    .read(DataType.TYPE_STEP_COUNT_DELTA)
+                                    .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                    .build();
+                        }
+                    });
+
+            int userInputSteps = 0;
+
+            for (DataReadResponse dataReadResult : responses) {
+                DataSet stepData = dataReadResult.getDataSet(DataType.TYPE_STEP_COUNT_DELTA);
+
+                for (DataPoint dp : stepData.getDataPoints()) {
+                    for(Field field : dp.getDataType().getFields()) {
+                        if("user_input".equals(dp.getOriginalDataSource().getStreamName())){
+                            int steps = dp.getValue(field).asInt();
+                            userInputSteps += steps;
+                        }
+                    }
+                }
+            }
+
+            return userInputSteps;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
 
-        new Thread(new Runnable()
-        {
-            @Override
-            public void run() {
-                try {
-                    DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-                    dateFormat.setTimeZone(TimeZone.getDefault());
+    public WritableArray aggregateDataByDate(long startTime, long endTime) throws TimeoutException, InterruptedException, ExecutionException {
+        ResultStream result = ResultStream.collect();
+        aggregateDataByDate(startTime, endTime, result);
+        return (WritableArray) result.result();
+    }
 
-                    Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
-                    Log.i(TAG, "Range End: " + dateFormat.format(endTime));
+    /**
+     * Pushes one {source, steps} row per data source; when streaming, a source with more points than fit
+     * in a chunk is split over several rows with the same source.
+     */
+    public void aggregateDataByDate(long startTime, long endTime, ResultStream result) throws TimeoutException, InterruptedException, ExecutionException {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        dateFormat.setTimeZone(TimeZone.getDefault());
 
-                    final DataReadRequest readRequest = new DataReadRequest.Builder()
-                            .read(DataType.TYPE_STEP_COUNT_DELTA)
-                            .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                            .build();
+        Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
+        Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
+        List<DataSource> dataSources = stepSources();
+
+        for (final DataSource dataSource : dataSources) {
+            DataType type = dataSource.getDataType();
+
+            //if (!DataType.TYPE_STEP_COUNT_DELTA.equals(type)) continue;
+            List<DataType> aggregateDataTypeList = DataType.getAggregatesForInput(type);
+            final DataType aggregateType = aggregateDataTypeList.size() > 0 ? aggregateDataTypeList.get(0) : null;
+            Log.i(TAG, "  + Aggregate : " + aggregateType);
+
+            List<Sample> entries;
+            try {
+                entries = googleFitManager.getDailyBucketCache().load(
+                        googleFitManager.getAccountKey(), type.getName(), dataSource.getStreamIdentifier(), startTime, endTime,
+                        new DailyBucketCache.BucketReader()
+                        {
+                            @Override
+                            public List<DataReadResponse> read(long start, long end) throws InterruptedException, TimeoutException, ExecutionException {
+                                return googleFitManager.getRangeQueryPlanner().read(
+                                        googleFitManager.getHistoryClient(), start, end,
+                                        aggregateType != null ? RangeQueryPlanner.windowForBuckets(DailyBucketCache.DAY_MILLIS) : RangeQueryPlanner.RAW_WINDOW_MILLIS,
+                                        new RangeQueryPlanner.RequestFactory()
+                                        {
+                                            @Override
+                                            public DataReadRequest create(long windowStart, long windowEnd) {
+                                                DataReadRequest readRequest;
+                                                if (aggregateType != null) {
+                                                    //Check how many steps were walked and recorded in specified days
+                                                    readRequest = new DataReadRequest.Builder()
+                                                            .aggregate(dataSource, aggregateType) //DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA
+                                                            .bucketByTime(1, TimeUnit.DAYS) // Full-day resolution
+                                                            .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                                            .build();
+                                                } else {
+                                                    readRequest = new DataReadRequest.Builder()
+                                                            .read(dataSource)
+                                                            //.bucketByTime(12, TimeUnit.HOURS) // Half-day resolution
+                                                            .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                                            .build();
+                                                }
+                                                return readRequest;
+                                            }
+                                        });
+                            }
+                        },
+                        new DailyBucketCache.PointConverter()
+                        {
+                            @Override
+                            public float[] toValues(DataPoint dp) {
+                                return new float[]{dp.getValue(Field.FIELD_STEPS).asInt()};
+                            }
+                        });
+            } catch (Exception e) {
+                Log.i(TAG, "DataReadRequest error: ", e);
+                continue;
+            }
 
-                    Task<DataReadResponse> task = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount()).readData(readRequest);
-                    DataReadResponse dataReadResult = Tasks.await(task, 1, TimeUnit.MINUTES);
+            Log.i(TAG, "  +++ Number of entries: " + entries.size());
+            RowWriter rows = result.rows();
+            RowWriter steps = null;
+            int count = 0;
+            for (Sample entry : entries) {
+                if (steps == null) {
+                    steps = beginSourceRow(dataSource, rows);
+                }
+                SampleRows.writeSteps(entry, steps);
+                if (++count >= result.getChunkSize()) {
+                    endSourceRow(rows, count, result);
+                    steps = null;
+                    count = 0;
+                }
+            }
+            if (steps != null || entries.isEmpty()) {
+                if (steps == null) {
+                    beginSourceRow(dataSource, rows);
+                }
+                endSourceRow(rows, count, result);
+            }
+        }
+    }
 
-                    DataSet stepData = dataReadResult.getDataSet(DataType.TYPE_STEP_COUNT_DELTA);
+    /**
+     * One deduplicated row of daily steps, {startDate, endDate, steps, isUserInput}, instead of a series
+     * per source. Reads the raw step intervals of every source and resolves their overlaps with the
+     * merger; with provenance every row also gets the {source, steps} each source contributed.
+     */
+    public WritableArray getMergedDailySteps(long startTime, long endTime, StepMerger merger, boolean provenance) {
+        ResultStream result = ResultStream.collect();
+        getMergedDailySteps(startTime, endTime, merger, provenance, result);
+        return (WritableArray) result.result();
+    }
 
-                    int userInputSteps = 0;
+    public void getMergedDailySteps(long startTime, long endTime, StepMerger merger, boolean provenance, ResultStream result) {
+        HistoryClient client = googleFitManager.getHistoryClient();
+        final long dayMillis = DailyBucketCache.DAY_MILLIS;
 
-                    for (DataPoint dp : stepData.getDataPoints()) {
-                        for(Field field : dp.getDataType().getFields()) {
-                            if("user_input".equals(dp.getOriginalDataSource().getStreamName())){
-                                int steps = dp.getValue(field).asInt();
-                                userInputSteps += steps;
+        List<List<Sample>> sources = new ArrayList<>();
+        for (final DataSource dataSource : stepSources()) {
+            List<Sample> samples = new ArrayList<>();
+            try {
+                List<DataReadResponse> responses = googleFitManager.getRangeQueryPlanner().read(client, startTime, endTime,
+                        RangeQueryPlanner.RAW_WINDOW_MILLIS,
+                        new RangeQueryPlanner.RequestFactory()
+                        {
+                            @Override
+                            public DataReadRequest create(long windowStart, long windowEnd) {
+                                return new DataReadRequest.Builder()
+                                        .read(dataSource)
+                                        .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                        .build();
                             }
+                        });
+                for (DataReadResponse response : responses) {
+                    for (DataSet dataSet : response.getDataSets()) {
+                        for (DataPoint dp : dataSet.getDataPoints()) {
+                            long start = dp.getStartTime(TimeUnit.MILLISECONDS);
+                            DataSource original = dp.getOriginalDataSource();
+                            String origin = original != null && original.getStreamName() != null
+                                    && original.getStreamName().contains(StepMerger.USER_INPUT)
+                                    ? original.getStreamName() : dataSource.getStreamIdentifier();
+                            samples.add(new Sample(startTime + (start - startTime) / dayMillis * dayMillis, start,
+                                    dp.getEndTime(TimeUnit.MILLISECONDS), origin,
+                                    new float[]{dp.getValue(Field.FIELD_STEPS).asInt()}));
                         }
                     }
+                }
+            } catch (Exception e) {
+                Log.i(TAG, "DataReadRequest error: ", e);
+                continue;
+            }
+            sources.add(samples);
+        }
 
-                    successCallback.invoke(userInputSteps);
-                } catch (Exception e) {
-                    successCallback.invoke(0);
+        List<Sample> merged = merger.merge(sources, dayMillis);
+        int days = Samples.bucketCount(startTime, endTime, dayMillis);
+        float[] steps = new float[days];
+        boolean[] userInput = new boolean[days];
+        List<Map<String, Float>> origins = new ArrayList<>();
+        for (int day = 0; day < days && provenance; day++) {
+            origins.add(new HashMap<String, Float>());
+        }
+        for (Sample sample : merged) {
+            int day = Samples.bucketIndex(sample, startTime, dayMillis);
+            if (day < 0 || day >= days) {
+                continue;
+            }
+            steps[day] += sample.values[0];
+            userInput[day] |= StepMerger.isUserInput(sample);
+            if (provenance) {
+                Float sum = origins.get(day).get(sample.origin);
+                origins.get(day).put(sample.origin, (sum != null ? sum : 0) + sample.values[0]);
+            }
+        }
+
+        RowWriter row = result.rows();
+        for (int day = 0; day < days; day++) {
+            long dayStart = startTime + day * dayMillis;
+            row.putDouble("startDate", dayStart);
+            row.putDouble("endDate", Math.min(dayStart + dayMillis, endTime));
+            row.putDouble("steps", Math.round(steps[day]));
+            row.putBoolean("isUserInput", userInput[day]);
+            if (provenance) {
+                RowWriter source = row.putArray("sources");
+                for (Map.Entry<String, Float> origin : origins.get(day).entrySet()) {
+                    source.putString("source", origin.getKey());
+                    source.putDouble("steps", Math.round(origin.getValue()));
+                    source.endRow();
                 }
             }
-        }).start();
+            row.endRow();
+        }
+        Log.i(TAG, "Merged " + sources.size() + " step sources into " + merged.size() + " intervals");
     }
 
-    public void aggregateDataByDate(final long startTime, final long endTime, final Callback errorCallback, final Callback successCallback) throws TimeoutException, InterruptedException, ExecutionException {
-
-        new Thread(new Runnable()
-        {
-            @Override
-            public void run() {
-               try {
-                   DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-                   dateFormat.setTimeZone(TimeZone.getDefault());
-
-                   Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
-                   Log.i(TAG, "Range End: " + dateFormat.format(endTime));
-
-                   final WritableArray results = Arguments.createArray();
-
-                   List<DataSource> dataSources = new ArrayList<>();
-
-                   // GoogleFit Apps
-                   dataSources.add(
-                           new DataSource.Builder()
-                                   .setAppPackageName("com.google.android.gms")
-                                   .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-                                   .setType(DataSource.TYPE_DERIVED)
-                                   .setStreamName("estimated_steps")
-                                   .build()
-                   );
-
-                   // GoogleFit Apps
-                   dataSources.add(
-                           new DataSource.Builder()
-                                   .setAppPackageName("com.google.android.gms")
-                                   .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-                                   .setType(DataSource.TYPE_DERIVED)
-                                   .setStreamName("merge_step_deltas")
-                                   .build()
-                   );
-
-                   // Mi Fit
-                   dataSources.add(
-                           new DataSource.Builder()
-                                   .setAppPackageName("com.xiaomi.hm.health")
-                                   .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-                                   .setType(DataSource.TYPE_RAW)
-                                   .setStreamName("")
-                                   .build()
-                   );
-
-        /*
-        DataSourcesRequest sourceRequest = new DataSourcesRequest.Builder()
-                .setDataTypes(DataType.TYPE_STEP_COUNT_DELTA,
-                    DataType.TYPE_STEP_COUNT_CUMULATIVE,
-                    DataType.AGGREGATE_STEP_COUNT_DELTA
-                    )
-                //.setDataSourceTypes(DataSource.TYPE_DERIVED)
-                .build();
-        DataSourcesResult dataSourcesResult =
-           Fitness.SensorsApi.findDataSources(googleFitManager.getGoogleApiClient(), sourceRequest).await(1, TimeUnit.MINUTES);
-
-        dataSources.addAll( dataSourcesResult.getDataSources() );
-        */
-
-                   final AtomicInteger dataSourcesToLoad = new AtomicInteger(dataSources.size());
-
-                   HistoryClient client = Fitness.getHistoryClient(mReactContext, googleFitManager.getGoogleAccount());
-                   ArrayList<Task<DataReadResponse>> tasks = new ArrayList<>();
-
-                   for (DataSource dataSource : dataSources) {
-                       DataType type = dataSource.getDataType();
-
-                       //if (!DataType.TYPE_STEP_COUNT_DELTA.equals(type)) continue;
-                       DataReadRequest readRequest;
-
-                       List<DataType> aggregateDataTypeList = DataType.getAggregatesForInput(type);
-                       if (aggregateDataTypeList.size() > 0) {
-                           DataType aggregateType = aggregateDataTypeList.get(0);
-                           Log.i(TAG, "  + Aggregate : " + aggregateType);
-
-                           //Check how many steps were walked and recorded in specified days
-                           readRequest = new DataReadRequest.Builder()
-                                   .aggregate(dataSource, aggregateType) //DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA
-                                   .bucketByTime(1, TimeUnit.DAYS) // Full-day resolution
-                                   .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                                   .build();
-                       } else {
-                           readRequest = new DataReadRequest.Builder()
-                                   .read(dataSource)
-                                   //.bucketByTime(12, TimeUnit.HOURS) // Half-day resolution
-                                   .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                                   .build();
-                       }
-
-                       Task<DataReadResponse> task = client.readData(readRequest);
-                       tasks.add(task);
-                   }
-
-                   try {
-                       Tasks.await(Tasks.whenAllComplete((Task<?>[]) tasks.toArray()), 1, TimeUnit.MINUTES);
-                   } catch (Exception e) {
-                       // Nothing to do
-                   }
-                   for (int i = 0; i < dataSources.size(); i++) {
-                       Task<DataReadResponse> dataReadResponseTask = tasks.get(i);
-                       Tasks.await(dataReadResponseTask, 5, TimeUnit.SECONDS);
-                       DataReadResponse dataReadResult = dataReadResponseTask.getResult();
-                       if (dataReadResponseTask.isSuccessful() || dataReadResult != null) {
-                           WritableMap source = Arguments.createMap();
-                           WritableArray steps = Arguments.createArray();
-                           DataSource dataSource = dataSources.get(i);
-
-                           processDataSource(dataSource, source);
-
-                           //Used for aggregated data
-                           if (dataReadResult.getBuckets().size() > 0) {
-                               Log.i(TAG, "  +++ Number of buckets: " + dataReadResult.getBuckets().size());
-                               for (Bucket bucket : dataReadResult.getBuckets()) {
-                                   List<DataSet> dataSets = bucket.getDataSets();
-                                   for (DataSet dataSet : dataSets) {
-                                       processDataSet(dataSet, steps);
-                                   }
-                               }
-                           }
-
-                           //Used for non-aggregated data
-                           if (dataReadResult.getDataSets().size() > 0) {
-                               Log.i(TAG, "  +++ Number of returned DataSets: " + dataReadResult.getDataSets().size());
-                               for (DataSet dataSet : dataReadResult.getDataSets()) {
-                                   processDataSet(dataSet, steps);
-                               }
-                           }
-
-                           WritableMap map = Arguments.createMap();
-                           map.putMap("source", source);
-                           map.putArray("steps", steps);
-                           results.pushMap(map);
-                       } else {
-                           Log.i(TAG, "DataReadRequest error: ", dataReadResponseTask.getException());
-                       }
-                   }
-
-                   successCallback.invoke(results);
-               } catch (Exception e) {
-                    handleException(e, errorCallback);
-               }
+    /**
+     * The step delta sources discovered on this device. Only when discovery fails or finds none are the
+     * well known ones read instead: Google Fit's estimated_steps and merge_step_deltas, and Mi Fit.
+     */
+    private List<DataSource> stepSources() {
+        List<DataSource> dataSources = new ArrayList<>();
+        try {
+            Set<String> streams = new HashSet<>();
+            for (DataSource dataSource : googleFitManager.getDataSourceRegistry().await(DataType.TYPE_STEP_COUNT_DELTA)) {
+                if (streams.add(dataSource.getStreamIdentifier())) {
+                    dataSources.add(dataSource);
+                }
             }
-        }).start();
+        } catch (Exception e) {
+            Log.w(TAG, "Step source discovery failed, reading the known sources: " + e.getMessage());
+            return knownStepSources();
+        }
+        if (dataSources.isEmpty()) {
+            Log.i(TAG, "No step sources discovered, reading the known sources");
+            return knownStepSources();
+        }
+        return dataSources;
+    }
+
+    private static List<DataSource> knownStepSources() {
+        List<DataSource> dataSources = new ArrayList<>();
+
+        // GoogleFit Apps
+        dataSources.add(
+                new DataSource.Builder()
+                        .setAppPackageName("com.google.android.gms")
+                        .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
+                        .setType(DataSource.TYPE_DERIVED)
+                        .setStreamName("estimated_steps")
+                        .build()
+        );
+        dataSources.add(
+                new DataSource.Builder()
+                        .setAppPackageName("com.google.android.gms")
+                        .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
+                        .setType(DataSource.TYPE_DERIVED)
+                        .setStreamName("merge_step_deltas")
+                        .build()
+        );
+
+        // Mi Fit
+        dataSources.add(
+                new DataSource.Builder()
+                        .setAppPackageName("com.xiaomi.hm.health")
+                        .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
+                        .setType(DataSource.TYPE_RAW)
+                        .setStreamName("")
+                        .build()
+        );
+        return dataSources;
+    }
+
+    private RowWriter beginSourceRow(DataSource dataSource, RowWriter rows) {
+        processDataSource(dataSource, rows.putMap("source"));
+        return rows.putArray("steps");
+    }
+
+    private void endSourceRow(RowWriter rows, int count, ResultStream result) throws InterruptedException, TimeoutException {
+        rows.endRow();
+        result.checkpoint(Math.max(1, count));
     }
 
     //Will be deprecated in future releases
@@ -258,41 +370,48 @@ public class StepHistory
                 //Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
                 //Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
-                //Check how many steps were walked and recorded in the last 7 days
-                DataReadRequest readRequest = new DataReadRequest.Builder()
-                        .aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA)
-                        .bucketByTime(1, TimeUnit.DAYS)
-                        .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                        .build();
-
-                HistoryClient client = Fitness.getHistoryClient(this.mReactContext, googleFitManager.getGoogleAccount());
-                Task<DataReadResponse> task = client.readData(readRequest);
-                DataReadResponse readResponse = Tasks.await(task, 1, TimeUnit.MINUTES);
+                HistoryClient client = googleFitManager.getHistoryClient();
+                List<DataReadResponse> responses = googleFitManager.getRangeQueryPlanner().read(client, startTime, endTime,
+                        RangeQueryPlanner.windowForBuckets(TimeUnit.DAYS.toMillis(1)),
+                        new RangeQueryPlanner.RequestFactory()
+                        {
+                            @Override
+                            public DataReadRequest create(long windowStart, long windowEnd) {
+                                //Check how many steps were walked and recorded in the last 7 days
+                                return new DataReadRequest.Builder()
+                                        .aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA)
+                                        .bucketByTime(1, TimeUnit.DAYS)
+                                        .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                        .build();
+                            }
+                        });
 
                 // DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
 
-                WritableArray map = Arguments.createArray();
+                BridgeRows map = new BridgeRows();
 
-                //Used for aggregated data
-                if (readResponse.getBuckets().size() > 0) {
-                    Log.i(TAG, "Number of buckets: " + readResponse.getBuckets().size());
-                    for (Bucket bucket : readResponse.getBuckets()) {
-                        List<DataSet> dataSets = bucket.getDataSets();
-                        for (DataSet dataSet : dataSets) {
-                            processDataSet(dataSet, map);
+                for (DataReadResponse readResponse : responses) {
+                    //Used for aggregated data
+                    if (readResponse.getBuckets().size() > 0) {
+                        Log.i(TAG, "Number of buckets: " + readResponse.getBuckets().size());
+                        for (Bucket bucket : readResponse.getBuckets()) {
+                            List<DataSet> dataSets = bucket.getDataSets();
+                            for (DataSet dataSet : dataSets) {
+                                processDataSet(dataSet, map);
+                            }
                         }
                     }
-                }
-                //Used for non-aggregated data
-                else if (readResponse.getDataSets().size() > 0) {
-                    Log.i(TAG, "Number of returned DataSets: " + readResponse.getDataSets().size());
-                    for (DataSet dataSet : readResponse.getDataSets()) {
-                        processDataSet(dataSet, map);
+                    //Used for non-aggregated data
+                    else if (readResponse.getDataSets().size() > 0) {
+                        Log.i(TAG, "Number of returned DataSets: " + readResponse.getDataSets().size());
+                        for (DataSet dataSet : readResponse.getDataSets()) {
+                            processDataSet(dataSet, map);
+                        }
                     }
                 }
 
                 if (googleFitManager.getCurrentActivity() != null) {
-                    sendEvent(this.mReactContext, "StepHistoryChangedEvent", map);
+                    sendEvent(this.mReactContext, "StepHistoryChangedEvent", map.array());
                 }
             } catch (Exception e) {
                 Log.w(TAG, e.getMessage());
@@ -308,52 +427,32 @@ public class StepHistory
     }
 
     public WritableMap getDailyTotal() throws TimeoutException, InterruptedException, ExecutionException {
-        HistoryClient client = Fitness.getHistoryClient(this.mReactContext, googleFitManager.getGoogleAccount());
+        HistoryClient client = googleFitManager.getHistoryClient();
         Task<DataSet> task = client.readDailyTotal(DataType.AGGREGATE_STEP_COUNT_DELTA);
 
+        long started = System.nanoTime();
         DataSet set = Tasks.await(task, 1, TimeUnit.MINUTES);
-        WritableArray steps = Arguments.createArray();
-        WritableMap source = Arguments.createMap();
-
-        processDataSet(set, steps);
-        processDataSource(set.getDataSource(), source);
-
-        WritableMap map = Arguments.createMap();
-        map.putMap("source", source);
-        map.putArray("steps", steps);
-
-        return map;
+        QueryMetrics.Scope scope = QueryMetrics.currentScope();
+        if (scope != null) {
+            scope.recordRead(System.nanoTime() - started, 0, set.getDataPoints().size());
+            scope.addReadWallTime(System.nanoTime() - started);
+        }
+        BridgeRows total = new BridgeRows();
+        processDataSource(set.getDataSource(), total.putMap("source"));
+        processDataSet(set, total.putArray("steps"));
+        return total.takeRow();
     }
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
-        //Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-        dateFormat.setTimeZone(TimeZone.getDefault());
-
-        WritableMap stepMap = Arguments.createMap();
-
+    private void processDataSet(DataSet dataSet, RowWriter rows) {
         for (DataPoint dp : dataSet.getDataPoints()) {
-            Log.i(TAG, "\tData point:");
-            Log.i(TAG, "\t\tType : " + dp.getDataType().getName());
-            Log.i(TAG, "\t\tStart: " + dateFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            Log.i(TAG, "\t\tEnd  : " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)));
-
-            for (Field field : dp.getDataType().getFields()) {
-                Log.i(TAG, "\t\tField: " + field.getName() +
-                        " Value: " + dp.getValue(field));
-
-                stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("steps", dp.getValue(field).asInt());
-                stepMap.putString("stream", dp.getOriginalDataSource().getStreamName());
-                stepMap.putBoolean("isUserInput", dp.getOriginalDataSource().getStreamName().contains("user_input"));
-                map.pushMap(stepMap);
-            }
+            long start = dp.getStartTime(TimeUnit.MILLISECONDS);
+            SampleRows.writeSteps(new Sample(start, start, dp.getEndTime(TimeUnit.MILLISECONDS),
+                    dp.getOriginalDataSource().getStreamName(),
+                    new float[]{dp.getValue(Field.FIELD_STEPS).asInt()}), rows);
         }
     }
 
-    private void processDataSource(DataSource dataSource, WritableMap source) {
+    private void processDataSource(DataSource dataSource, RowWriter source) {
         DataType type = dataSource.getDataType();
         Device device = dataSource.getDevice();
 
@@ -365,19 +464,19 @@ public class StepHistory
         if (dataSource.getAppPackageName() != null) {
             source.putString("appPackage", dataSource.getAppPackageName());
         } else {
-            source.putNull("appPackage");
+            source.putString("appPackage", null);
         }
 
         if (dataSource.getName() != null) {
             source.putString("name", dataSource.getName());
         } else {
-            source.putNull("name");
+            source.putString("name", null);
         }
 
         if (dataSource.getStreamName() != null) {
             source.putString("stream", dataSource.getStreamName());
         } else {
-            source.putNull("stream");
+            source.putString("stream", null);
         }
 
         Log.i(TAG, "  + Type      : " + type);
@@ -393,9 +492,9 @@ public class StepHistory
                     break;
             }
         } else {
-            source.putNull("deviceManufacturer");
-            source.putNull("deviceModel");
-            source.putNull("deviceType");
+            source.putString("deviceManufacturer", null);
+            source.putString("deviceModel", null);
+            source.putString("deviceType", null);
         }
     }
 
@@ -408,12 +507,4 @@ public class StepHistory
                 .emit(eventName, params);
     }
 
-    private void handleException(Exception e, Callback errorCallback) {
-        boolean isRecoverable = e instanceof UserRecoverableAuthException;
-        if (this.googleFitManager != null && isRecoverable) {
-            this.googleFitManager.authorize(new ArrayList<String>());
-        }
-        errorCallback.invoke(e.getMessage());
-    }
-
 }
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Resolves step intervals reported by several sources into one series without double counting.
+ *
+ * Every sample gets a rank: the position of the first priority pattern its origin contains, or, for
+ * origins matching no pattern, a rank after all patterns in the order of their source. Samples are
+ * then taken from the best rank down. An interval index of the time already claimed trims every
+ * sample to the parts nobody better covered; a trimmed sample keeps the share of its steps that
+ * matches the share of its duration that is left, and the bucket its new start falls in. Instant
+ * samples are kept unless their time is claimed, and only the best one of each instant.
+ *
+ * Works on {@link Sample}s with the step count as value 0, so it runs without Google Fit.
+ */
+public class StepMerger
+{
+    public static final String USER_INPUT = "user_input";
+    public static final List<String> DEFAULT_PRIORITY = Collections.unmodifiableList(
+            Arrays.asList(USER_INPUT, "estimated_steps", "merge_step_deltas"));
+
+    private final List<String> priority;
+    private final boolean includeUserInput;
+
+    public StepMerger(List<String> priority, boolean includeUserInput) {
+        this.priority = new ArrayList<>(priority);
+        this.includeUserInput = includeUserInput;
+    }
+
+    public static boolean isUserInput(Sample sample) {
+        return sample.origin != null && sample.origin.contains(USER_INPUT);
+    }
+
+    /**
+     * Like {@link #merge(List, long)}, trimmed parts keep the bucket of their sample.
+     */
+    public List<Sample> merge(List<List<Sample>> sources) {
+        return merge(sources, 0);
+    }
+
+    /**
+     * @param sources the samples of every source, in the order unmatched sources rank in
+     * @param bucketMillis the width of the buckets that bucketStart of the samples is the start of, or 0
+     *                     to keep the bucket of a sample for all of its parts
+     * @return the deduplicated samples sorted by start; origins tell which source each part came from
+     */
+    public List<Sample> merge(List<List<Sample>> sources, long bucketMillis) {
+        List<Ranked> ranked = new ArrayList<>();
+        for (int source = 0; source < sources.size(); source++) {
+            for (Sample sample : sources.get(source)) {
+                if (!includeUserInput && isUserInput(sample)) {
+                    continue;
+                }
+                ranked.add(new Ranked(sample, rank(sample.origin, source)));
+            }
+        }
+        Collections.sort(ranked, new Comparator<Ranked>()
+        {
+            @Override
+            public int compare(Ranked a, Ranked b) {
+                if (a.rank != b.rank) {
+                    return a.rank < b.rank ? -1 : 1;
+                }
+                return Sample.BY_START.compare(a.sample, b.sample);
+            }
+        });
+
+        IntervalIndex claimed = new IntervalIndex();
+        Set<Long> instants = new HashSet<>();
+        List<Sample> merged = new ArrayList<>(ranked.size());
+        List<long[]> free = new ArrayList<>();
+        for (Ranked entry : ranked) {
+            Sample sample = entry.sample;
+            if (sample.end <= sample.start) {
+                if (!claimed.covers(sample.start) && instants.add(sample.start)) {
+                    merged.add(sample);
+                }
+                continue;
+            }
+
+            free.clear();
+            claimed.uncovered(sample.start, sample.end, free);
+            double duration = sample.end - sample.start;
+            for (long[] part : free) {
+                if (part[0] == sample.start && part[1] == sample.end) {
+                    merged.add(sample);
+                } else {
+                    float steps = (float) (sample.values[0] * ((part[1] - part[0]) / duration));
+                    merged.add(new Sample(bucketStart(sample, part[0], bucketMillis), part[0], part[1],
+                            sample.origin, new float[]{steps}));
+                }
+                claimed.add(part[0], part[1]);
+            }
+        }
+
+        Samples.sortByStart(merged);
+        return merged;
+    }
+
+    /**
+     * The start of the bucket time falls in, counted in whole buckets from the one of the sample.
+     */
+    static long bucketStart(Sample sample, long time, long bucketMillis) {
+        if (bucketMillis <= 0) {
+            return sample.bucketStart;
+        }
+        long offset = time - sample.bucketStart;
+        long buckets = offset / bucketMillis - (offset % bucketMillis < 0 ? 1 : 0);
+        return sample.bucketStart + buckets * bucketMillis;
+    }
+
+    private int rank(String origin, int source) {
+        if (origin != null) {
+            for (int i = 0; i < priority.size(); i++) {
+                if (origin.contains(priority.get(i))) {
+                    return i;
+                }
+            }
+        }
+        return priority.size() + source;
+    }
+
+    private static class Ranked
+    {
+        final Sample sample;
+        final int rank;
+
+        Ranked(Sample sample, int rank) {
+            this.sample = sample;
+            this.rank = rank;
+        }
+    }
+
+    /**
+     * Disjoint half-open intervals, keyed by start.
+     */
+    static class IntervalIndex
+    {
+        private final TreeMap<Long, Long> intervals = new TreeMap<>();
+
+        boolean covers(long time) {
+            Map.Entry<Long, Long> before = intervals.floorEntry(time);
+            return before != null && before.getValue() > time;
+        }
+
+        /**
+         * Adds the parts of [start, end) no interval covers to free, in order.
+         */
+        void uncovered(long start, long end, List<long[]> free) {
+            long cursor = start;
+            Map.Entry<Long, Long> before = intervals.floorEntry(start);
+            if (before != null && before.getValue() > cursor) {
+                cursor = before.getValue();
+            }
+            for (Map.Entry<Long, Long> interval : intervals.subMap(start, false, end, false).entrySet()) {
+                if (interval.getKey() > cursor) {
+                    free.add(new long[]{cursor, interval.getKey()});
+                }
+                cursor = Math.max(cursor, interval.getValue());
+                if (cursor >= end) {
+                    return;
+                }
+            }
+            if (cursor < end) {
+                free.add(new long[]{cursor, end});
+            }
+        }
+
+        /**
+         * Adds [start, end), which no interval covers yet, joining it with the intervals it touches.
+         */
+        void add(long start, long end) {
+            Map.Entry<Long, Long> before = intervals.floorEntry(start);
+            if (before != null && before.getValue() == start) {
+                start = before.getKey();
+            }
+            Long after = intervals.get(end);
+            if (after != null) {
+                intervals.remove(end);
+                end = after;
+            }
+            intervals.put(start, end);
+        }
+    }
+}
@@ -11,51 +11,124 @@
 package com.reactnative.googlefit;
 
 
-import android.app.Activity;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
 import android.util.Log;
-import android.widget.Toast;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-import java.util.List;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.annotation.Nullable;
 
+/**
+ * Counts today's steps from the hardware step counter, without reading Google Fit.
+ *
+ * TYPE_STEP_COUNTER reports the steps since boot. Every reading is compared with the previous one and
+ * the difference is added to today's total; a counter that went down, or from API 24 a new
+ * {@link Settings.Global#BOOT_COUNT}, means the device rebooted and the whole reading is new. The wall
+ * clock is not used for this, since setting it would look like a reboot. Today's total, the last reading
+ * and the boot count are kept in SharedPreferences, so steps taken while the app was not running are picked up by the first
+ * reading after it starts again. Those steps are counted for the day of that reading.
+ *
+ * The sensor is registered with a max report latency, so the hardware FIFO batches readings and the
+ * CPU sleeps in between; in the background the latency grows to minutes. Readings arrive on a sensor
+ * thread that only copies them into a {@link StepEventRing}. One drain per batch folds them into the
+ * totals, and React Native objects are only created for the throttled event on the main thread.
+ */
 public class StepSensor implements SensorEventListener {
 
-    private Activity activity;
     private ReactContext mReactContext;
     private SensorManager mSensorManager;
     private Sensor mStepCounter;
-    private long lastUpdate = 0;
-    private int delay;
 
-    private static final String TAG = "StepCounter";
+    private static final String TAG = "StepSensor";
+    private static final String STEP_SENSOR_EVENT = "StepSensorChangedEvent";
+
+    private static final String PREFERENCES = "RNGoogleFitStepSensor";
+    private static final String KEY_DAY_START = "dayStart";
+    private static final String KEY_TODAY_STEPS = "todaySteps";
+    private static final String KEY_LAST_COUNTER = "lastCounter";
+    private static final String KEY_BOOT_COUNT = "bootCount";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    private static final long PERSIST_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long BACKGROUND_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final int RING_CAPACITY = 256;
 
-    public StepSensor(ReactContext reactContext, Activity activity) {
+    private final SharedPreferences preferences;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final StepEventRing ring = new StepEventRing(RING_CAPACITY);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private HandlerThread sensorThread;
+    private Handler sensorHandler;
+    private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private boolean background = false;
+
+    private long dayStart;
+    private long nextDayStart = 0;
+    private long todaySteps;
+    private long lastCounter;
+    // Of the last reading and of the running boot, -1 where the platform has no boot count
+    private int lastBootCount;
+    private final int bootCount;
+    private long lastPersistAt = 0;
+    private long lastEmitAt = 0;
+    private boolean emitScheduled = false;
+    private boolean started = false;
+
+    private final Runnable drain = new Runnable()
+    {
+        @Override
+        public void run() {
+            drainReadings();
+        }
+    };
+
+    private final Runnable emit = new Runnable()
+    {
+        @Override
+        public void run() {
+            emitSteps();
+        }
+    };
+
+    public StepSensor(ReactContext reactContext) {
         this.mReactContext = reactContext;
-        this.activity = activity;
+        this.preferences = reactContext.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
 
-        boolean stepCounter = hasStepCounter();
-        Log.i(TAG, "hasStepCounter: " + stepCounter);
+        dayStart = preferences.getLong(KEY_DAY_START, 0);
+        todaySteps = preferences.getLong(KEY_TODAY_STEPS, 0);
+        lastCounter = preferences.getLong(KEY_LAST_COUNTER, -1);
+        lastBootCount = preferences.getInt(KEY_BOOT_COUNT, -1);
+        bootCount = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? Settings.Global.getInt(reactContext.getContentResolver(), Settings.Global.BOOT_COUNT, -1)
+                : -1;
 
-        if (stepCounter) {
-            mSensorManager = (SensorManager) reactContext.getSystemService(reactContext.SENSOR_SERVICE);
+        if (hasStepCounter()) {
+            mSensorManager = (SensorManager) reactContext.getSystemService(Context.SENSOR_SERVICE);
         }
     }
 
     public boolean hasStepCounter() {
 
-        PackageManager pm = activity.getPackageManager();
+        PackageManager pm = mReactContext.getPackageManager();
 
         int currentApiVersion = Build.VERSION.SDK_INT;
         // Check that the device supports the step counter and detector sensors
@@ -65,46 +138,175 @@ public class StepSensor implements SensorEventListener {
 
     }
 
-    public int start(int delay) {
-        List<Sensor> l = mSensorManager.getSensorList(Sensor.TYPE_ALL);
+    /**
+     * Starts counting; StepSensorChangedEvents are sent at most once per intervalMillis.
+     *
+     * @return false when the device has no step counter
+     */
+    public synchronized boolean start(long intervalMillis) {
+        this.intervalMillis = Math.max(0, intervalMillis);
+        if (started) {
+            return true;
+        }
+        if (mSensorManager == null || (mStepCounter = mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER)) == null) {
+            return false;
+        }
+        sensorThread = new HandlerThread(TAG);
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
+        started = register();
+        Log.i(TAG, "Step counter registered: " + started + ", FIFO size: " + mStepCounter.getFifoMaxEventCount());
+        if (!started) {
+            sensorThread.quitSafely();
+        }
+        return started;
+    }
+
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        mSensorManager.unregisterListener(this);
+        sensorThread.quitSafely();
+        handler.removeCallbacks(emit);
+        emitScheduled = false;
+        started = false;
+        drainReadings();
+        persist();
+    }
 
-        this.delay = delay;
-        if ((mStepCounter = mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER)) != null) {
-            mSensorManager.registerListener(this, mStepCounter, SensorManager.SENSOR_DELAY_FASTEST);
-            return (1);
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Lets the hardware hold readings for minutes while the app is in the background. Coming back,
+     * the batched readings are flushed right away.
+     */
+    public synchronized void setBackground(boolean background) {
+        if (this.background == background) {
+            return;
         }
-        return (0);
+        this.background = background;
+        if (started) {
+            mSensorManager.unregisterListener(this);
+            register();
+            if (!background) {
+                mSensorManager.flush(this);
+            }
+        }
+    }
+
+    private boolean register() {
+        // In the foreground readings are not needed more often than they are sent to JS
+        long latencyMicros = background ? BACKGROUND_LATENCY_MICROS : TimeUnit.MILLISECONDS.toMicros(intervalMillis);
+        return mSensorManager.registerListener(this, mStepCounter, SensorManager.SENSOR_DELAY_NORMAL,
+                (int) latencyMicros, sensorHandler);
     }
 
+    /**
+     * Steps counted today up to the last sensor reading; 0 on a day without any reading yet.
+     */
+    public synchronized long getTodaySteps() {
+        return dayStart == startOfDay(System.currentTimeMillis()) ? todaySteps : 0;
+    }
 
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
-        Sensor mySensor = sensorEvent.sensor;
+        if (sensorEvent.sensor.getType() != Sensor.TYPE_STEP_COUNTER) {
+            return;
+        }
+        ring.offer((long) sensorEvent.values[0], sensorEvent.timestamp);
+        if (drainScheduled.compareAndSet(false, true)) {
+            sensorHandler.post(drain);
+        }
+    }
 
-        Log.i(TAG, "onSensorChanged");
+    /**
+     * Folds every queued reading into today's total; runs once per batch on the sensor thread.
+     */
+    private synchronized void drainReadings() {
+        drainScheduled.set(false);
+        int count = ring.size();
+        if (count == 0) {
+            return;
+        }
+        // Only to place readings on a day; event timestamps count from boot like elapsedRealtime
+        long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            record(ring.counterAt(i), bootTime + TimeUnit.NANOSECONDS.toMillis(ring.timestampAt(i)));
+        }
+        ring.advance(count);
 
+        if (System.currentTimeMillis() - lastPersistAt >= PERSIST_INTERVAL_MILLIS) {
+            persist();
+        }
+        if (started) {
+            scheduleEmit();
+        }
+    }
 
-        if (mySensor.getType() == Sensor.TYPE_STEP_COUNTER) {
-            WritableMap map = Arguments.createMap();
+    /**
+     * Adds the steps of one counter reading, taken at the given wall time, to that day's total.
+     */
+    private void record(long counter, long time) {
+        if (time < dayStart || time >= nextDayStart) {
+            long day = startOfDay(time);
+            if (day != dayStart) {
+                dayStart = day;
+                todaySteps = 0;
+                // The day rolled over, keep the new day's baseline even if the app dies before the next persist
+                lastPersistAt = 0;
+            }
+            nextDayStart = startOfDay(day + TimeUnit.HOURS.toMillis(36));
+        }
 
-            long curTime = System.currentTimeMillis();
-            //i++;
-            if ((curTime - lastUpdate) > delay) {
-                final Object o = sensorEvent.values[0];
-                Log.i("History", "Data point:" + sensorEvent.values[0]);
+        boolean rebooted = counter < lastCounter || (bootCount >= 0 && lastBootCount >= 0 && bootCount != lastBootCount);
+        // Nothing to compare the very first reading with, counting starts from there
+        if (lastCounter >= 0) {
+            todaySteps += rebooted ? counter : counter - lastCounter;
+        }
+        lastCounter = counter;
+        lastBootCount = bootCount;
+    }
 
-                map.putDouble("steps", sensorEvent.values[0]);
-                sendEvent(this.mReactContext, "StepSensorChangedEvent", map);
+    private void persist() {
+        lastPersistAt = System.currentTimeMillis();
+        preferences.edit()
+                .putLong(KEY_DAY_START, dayStart)
+                .putLong(KEY_TODAY_STEPS, todaySteps)
+                .putLong(KEY_LAST_COUNTER, lastCounter)
+                .putInt(KEY_BOOT_COUNT, lastBootCount)
+                .apply();
+    }
 
-                activity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Toast.makeText(mReactContext.getApplicationContext(), "" + o, Toast.LENGTH_SHORT).show();
-                    }
-                });
-                lastUpdate = curTime;
-            }
+    private void scheduleEmit() {
+        if (emitScheduled) {
+            return;
         }
+        emitScheduled = true;
+        handler.postDelayed(emit, Math.max(0, lastEmitAt + intervalMillis - SystemClock.uptimeMillis()));
+    }
+
+    private void emitSteps() {
+        WritableMap map = Arguments.createMap();
+        synchronized (this) {
+            emitScheduled = false;
+            lastEmitAt = SystemClock.uptimeMillis();
+            map.putDouble("steps", todaySteps);
+            map.putDouble("dayStart", dayStart);
+        }
+        sendEvent(this.mReactContext, STEP_SENSOR_EVENT, map);
+    }
+
+    private static long startOfDay(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
     }
 
     @Override
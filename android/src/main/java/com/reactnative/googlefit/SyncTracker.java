@@ -0,0 +1,419 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.fitness.HistoryClient;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataSource;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.data.Value;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResponse;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Incremental reads of raw Google Fit data for syncing it elsewhere.
+ *
+ * Every sync stores, under a new opaque token, a high-water mark per data type and source stream: the
+ * latest end time seen from that stream. The next sync with that token only reads from the oldest mark
+ * of a type minus an overlap, because sources such as watches upload late. Points ending after their
+ * stream's mark are new. Inside the overlap, fingerprints of the points returned last time tell which
+ * points were added or changed since. Older points are never read again.
+ *
+ * A stream that stopped reporting, like a watch that is no longer worn, would hold the start of every
+ * later read at its old mark. Marks older than {@code initialLookback} are therefore dropped; should the
+ * stream come back, its points are new again.
+ *
+ * The last {@link #KEPT_TOKENS} tokens of an account stay valid, so a caller that lost the newest one
+ * can repeat a sync from the previous one. An unknown token starts over with {@code initialLookback}.
+ */
+public class SyncTracker extends SQLiteOpenHelper
+{
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "RNGoogleFitSync.db";
+    private static final int DATABASE_VERSION = 1;
+
+    public static final long DEFAULT_OVERLAP_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final long DEFAULT_INITIAL_LOOKBACK_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final int KEPT_TOKENS = 3;
+
+    public static final String STEPS = "steps";
+    public static final String DISTANCE = "distance";
+    public static final String CALORIES = "calories";
+
+    private final GoogleFitManager googleFitManager;
+
+    public SyncTracker(Context context, GoogleFitManager googleFitManager) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.googleFitManager = googleFitManager;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE tokens ("
+                + "token TEXT PRIMARY KEY, "
+                + "account TEXT NOT NULL, "
+                + "created INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE marks ("
+                + "token TEXT NOT NULL, "
+                + "data_type TEXT NOT NULL, "
+                + "stream TEXT NOT NULL, "
+                + "watermark INTEGER NOT NULL, "
+                + "PRIMARY KEY (token, data_type, stream))");
+        db.execSQL("CREATE TABLE seen ("
+                + "token TEXT NOT NULL, "
+                + "data_type TEXT NOT NULL, "
+                + "hash INTEGER NOT NULL, "
+                + "PRIMARY KEY (token, data_type, hash))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS tokens");
+        db.execSQL("DROP TABLE IF EXISTS marks");
+        db.execSQL("DROP TABLE IF EXISTS seen");
+        onCreate(db);
+    }
+
+    /**
+     * The data type of a sync type name: steps, distance, calories or one of {@link BatchDeleter#dataType}.
+     */
+    public static DataType dataType(String type) {
+        switch (type) {
+            case STEPS:
+                return DataType.TYPE_STEP_COUNT_DELTA;
+            case DISTANCE:
+                return DataType.TYPE_DISTANCE_DELTA;
+            case CALORIES:
+                return DataType.TYPE_CALORIES_EXPENDED;
+            default:
+                return BatchDeleter.dataType(type);
+        }
+    }
+
+    /**
+     * @param token returned by the previous sync, or null for a first sync
+     * @return {token, reset, points}; reset is true when the token was unknown and every point of the
+     *         initial lookback is returned. Points are {type, stream, startDate, endDate, values}.
+     */
+    public WritableMap syncSince(HistoryClient client, ReadableArray types, String token, long overlapMillis,
+                                 long initialLookbackMillis)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        String account = googleFitManager.getAccountKey();
+        long now = System.currentTimeMillis();
+        boolean known = token != null && isKnown(account, token);
+
+        WritableArray points = Arguments.createArray();
+        Map<String, Map<String, Long>> newMarks = new HashMap<>();
+        Map<String, Set<Long>> newSeen = new HashMap<>();
+        Set<String> synced = new TreeSet<>();
+
+        for (int i = 0; i < types.size(); i++) {
+            final String type = types.getString(i);
+            final DataType dataType = dataType(type);
+            if (!synced.add(type)) {
+                continue;
+            }
+            Map<String, Long> marks = known ? marks(token, type) : new HashMap<String, Long>();
+            expire(marks, now - initialLookbackMillis);
+            Set<Long> seen = known ? seen(token, type) : new HashSet<Long>();
+
+            long startTime = now - initialLookbackMillis;
+            if (!marks.isEmpty()) {
+                long oldest = Long.MAX_VALUE;
+                for (long mark : marks.values()) {
+                    oldest = Math.min(oldest, mark);
+                }
+                startTime = Math.max(startTime, oldest - overlapMillis);
+            }
+
+            Map<String, Long> typeMarks = new HashMap<>(marks);
+            Map<String, Map<Long, Long>> endsByStream = new HashMap<>();
+            Map<String, Long> newest = new HashMap<>();
+            int returned = 0;
+            int read = 0;
+            for (DataReadResponse response : googleFitManager.getRangeQueryPlanner().read(client, startTime, now,
+                    RangeQueryPlanner.RAW_WINDOW_MILLIS,
+                    new RangeQueryPlanner.RequestFactory()
+                    {
+                        @Override
+                        public DataReadRequest create(long windowStart, long windowEnd) {
+                            return new DataReadRequest.Builder()
+                                    .read(dataType)
+                                    .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                                    .build();
+                        }
+                    })) {
+                for (DataSet dataSet : response.getDataSets()) {
+                    for (DataPoint dp : dataSet.getDataPoints()) {
+                        read++;
+                        String stream = streamOf(dp, dataSet);
+                        long start = dp.getStartTime(TimeUnit.MILLISECONDS);
+                        long end = dp.getEndTime(TimeUnit.MILLISECONDS);
+                        WritableMap values = Arguments.createMap();
+                        long hash = fingerprint(stream, start, end, dp, values);
+
+                        Long mark = marks.get(stream);
+                        boolean fresh = mark == null || end > mark
+                                || (end >= mark - overlapMillis && !seen.contains(hash));
+                        if (fresh) {
+                            WritableMap point = Arguments.createMap();
+                            point.putString("type", type);
+                            point.putString("stream", stream);
+                            point.putDouble("startDate", start);
+                            point.putDouble("endDate", end);
+                            point.putMap("values", values);
+                            points.pushMap(point);
+                            returned++;
+                        }
+
+                        Map<Long, Long> ends = endsByStream.get(stream);
+                        if (ends == null) {
+                            ends = new HashMap<>();
+                            endsByStream.put(stream, ends);
+                        }
+                        ends.put(hash, end);
+                        Long latest = newest.get(stream);
+                        if (latest == null || end > latest) {
+                            newest.put(stream, end);
+                        }
+                    }
+                }
+            }
+
+            typeMarks.putAll(newest);
+            newMarks.put(type, typeMarks);
+            newSeen.put(type, overlapHashes(typeMarks, endsByStream, overlapMillis));
+            Log.i(TAG, "Sync of " + type + " from " + startTime + " read " + read + " points, returned " + returned);
+        }
+
+        String newToken = store(account, known ? token : null, newMarks, newSeen);
+        WritableMap result = Arguments.createMap();
+        result.putString("token", newToken);
+        result.putBoolean("reset", !known);
+        result.putArray("points", points);
+        return result;
+    }
+
+    /**
+     * Drops the marks of streams that reported nothing since expiry.
+     */
+    private static void expire(Map<String, Long> marks, long expiry) {
+        Iterator<Map.Entry<String, Long>> iterator = marks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> mark = iterator.next();
+            if (mark.getValue() < expiry) {
+                Log.i(TAG, "Sync mark of " + mark.getKey() + " expired");
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Fingerprints of the points close enough to their stream's new mark to be read again next time.
+     */
+    private static Set<Long> overlapHashes(Map<String, Long> marks, Map<String, Map<Long, Long>> endsByStream,
+                                           long overlapMillis) {
+        Set<Long> hashes = new HashSet<>();
+        for (Map.Entry<String, Map<Long, Long>> stream : endsByStream.entrySet()) {
+            long from = marks.get(stream.getKey()) - overlapMillis;
+            for (Map.Entry<Long, Long> point : stream.getValue().entrySet()) {
+                if (point.getValue() >= from) {
+                    hashes.add(point.getKey());
+                }
+            }
+        }
+        return hashes;
+    }
+
+    private static String streamOf(DataPoint dp, DataSet dataSet) {
+        DataSource source = dp.getOriginalDataSource() != null ? dp.getOriginalDataSource() : dataSet.getDataSource();
+        String stream = source != null ? source.getStreamIdentifier() : null;
+        return stream != null ? stream : "";
+    }
+
+    /**
+     * Copies the fields of the point into values and hashes them, together with its stream and interval,
+     * with 64 bit FNV-1a.
+     */
+    private static long fingerprint(String stream, long start, long end, DataPoint dp, WritableMap values) {
+        StringBuilder key = new StringBuilder(stream).append('|').append(start).append('|').append(end);
+        for (Field field : dp.getDataType().getFields()) {
+            Value value = dp.getValue(field);
+            if (value == null || !value.isSet()) {
+                continue;
+            }
+            key.append('|').append(field.getName()).append('=');
+            switch (field.getFormat()) {
+                case Field.FORMAT_INT32:
+                    values.putInt(field.getName(), value.asInt());
+                    key.append(value.asInt());
+                    break;
+                case Field.FORMAT_FLOAT:
+                    values.putDouble(field.getName(), value.asFloat());
+                    key.append(value.asFloat());
+                    break;
+                case Field.FORMAT_STRING:
+                    values.putString(field.getName(), value.asString());
+                    key.append(value.asString());
+                    break;
+                case Field.FORMAT_MAP:
+                    WritableMap map = Arguments.createMap();
+                    for (String nutrient : new TreeSet<>(NutritionHistory.NUTRIENTS_SET)) {
+                        Float amount = value.getKeyValue(nutrient);
+                        if (amount != null) {
+                            map.putDouble(nutrient, amount);
+                            key.append(nutrient).append(':').append(amount).append(',');
+                        }
+                    }
+                    values.putMap(field.getName(), map);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private synchronized boolean isKnown(String account, String token) {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT 1 FROM tokens WHERE token = ? AND account = ?",
+                new String[]{token, account});
+        try {
+            return cursor.moveToNext();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private synchronized Map<String, Long> marks(String token, String type) {
+        Map<String, Long> marks = new HashMap<>();
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT stream, watermark FROM marks WHERE token = ? AND data_type = ?", new String[]{token, type});
+        try {
+            while (cursor.moveToNext()) {
+                marks.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return marks;
+    }
+
+    private synchronized Set<Long> seen(String token, String type) {
+        Set<Long> seen = new HashSet<>();
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT hash FROM seen WHERE token = ? AND data_type = ?", new String[]{token, type});
+        try {
+            while (cursor.moveToNext()) {
+                seen.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return seen;
+    }
+
+    /**
+     * Saves the state of a sync under a new token. Types that were not synced keep the state they had
+     * under the previous token.
+     */
+    private synchronized String store(String account, String previous, Map<String, Map<String, Long>> marks,
+                                      Map<String, Set<Long>> seen) {
+        String token = UUID.randomUUID().toString();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO tokens (token, account, created) VALUES (?, ?, ?)",
+                    new Object[]{token, account, System.currentTimeMillis()});
+            if (previous != null) {
+                String[] args = new String[]{token, previous};
+                String notSynced = notIn(marks.keySet());
+                db.execSQL("INSERT INTO marks SELECT ?, data_type, stream, watermark FROM marks WHERE token = ?"
+                        + notSynced, args);
+                db.execSQL("INSERT INTO seen SELECT ?, data_type, hash FROM seen WHERE token = ?"
+                        + notSynced, args);
+            }
+
+            SQLiteStatement insertMark = db.compileStatement("INSERT INTO marks VALUES (?, ?, ?, ?)");
+            for (Map.Entry<String, Map<String, Long>> type : marks.entrySet()) {
+                for (Map.Entry<String, Long> stream : type.getValue().entrySet()) {
+                    insertMark.bindString(1, token);
+                    insertMark.bindString(2, type.getKey());
+                    insertMark.bindString(3, stream.getKey());
+                    insertMark.bindLong(4, stream.getValue());
+                    insertMark.executeInsert();
+                }
+            }
+            SQLiteStatement insertSeen = db.compileStatement("INSERT OR IGNORE INTO seen VALUES (?, ?, ?)");
+            for (Map.Entry<String, Set<Long>> type : seen.entrySet()) {
+                for (long hash : type.getValue()) {
+                    insertSeen.bindString(1, token);
+                    insertSeen.bindString(2, type.getKey());
+                    insertSeen.bindLong(3, hash);
+                    insertSeen.executeInsert();
+                }
+            }
+
+            // Keep the newest tokens of the account, a retry may still come with one of them
+            String expired = "SELECT token FROM tokens WHERE account = ? ORDER BY created DESC LIMIT -1 OFFSET " + KEPT_TOKENS;
+            db.execSQL("DELETE FROM marks WHERE token IN (" + expired + ")", new Object[]{account});
+            db.execSQL("DELETE FROM seen WHERE token IN (" + expired + ")", new Object[]{account});
+            db.execSQL("DELETE FROM tokens WHERE token IN (" + expired + ")", new Object[]{account});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return token;
+    }
+
+    private static String notIn(Set<String> types) {
+        if (types.isEmpty()) {
+            return "";
+        }
+        StringBuilder clause = new StringBuilder(" AND data_type NOT IN (");
+        boolean first = true;
+        for (String type : types) {
+            clause.append(first ? "" : ", ").append(DatabaseUtils.sqlEscapeString(type));
+            first = false;
+        }
+        return clause.append(')').toString();
+    }
+}
@@ -0,0 +1,595 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResponse;
+import com.google.android.gms.tasks.Tasks;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of the saves and deletes requested from JS.
+ *
+ * Every write is first stored in a SQLite journal and acknowledged as soon as that row exists; a single
+ * flusher thread then replays the journal in order. Consecutive saves of one kind go out as one batch
+ * through {@link BatchWriter}, consecutive deletes as one {@link BatchDeleter} call. A batch with a
+ * failed write stops the flush and is retried with exponential backoff, so a later delete never
+ * overtakes an earlier save. A write that still fails
+ * after {@link #MAX_ATTEMPTS} is dropped and reported as a {@link #WRITE_FAILED_EVENT}. Each row backs
+ * off by its own attempts. A sample is built into a point before it is queued and rejected right away
+ * if that fails; a write Google Fit refuses as invalid is dropped without retries.
+ *
+ * Rows count their attempts before they are sent. A retried save batch first reads the app's own data
+ * source over its range and skips samples already there, so replaying after process death does not
+ * insert a sample twice. Writes queued before sign-in belong to the first account that flushes them.
+ */
+public class WriteJournal extends SQLiteOpenHelper
+{
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "RNGoogleFitJournal.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "writes";
+
+    public static final String WRITE_FAILED_EVENT = "GoogleFitWriteFailed";
+
+    public static final String WEIGHT = "weight";
+    public static final String HEIGHT = "height";
+    public static final String FOOD = "food";
+    public static final String BLOOD_PRESSURE = "bloodPressure";
+
+    private static final String INSERT = "insert";
+    private static final String DELETE = "delete";
+
+    private static final int MAX_ATTEMPTS = 10;
+    private static final int MAX_ROWS_PER_FLUSH = 5000;
+    private static final long COALESCE_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long BASE_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final ReactContext mReactContext;
+    private final GoogleFitManager googleFitManager;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+    private ScheduledFuture<?> scheduled;
+    private long scheduledAt = Long.MAX_VALUE;
+    private int failures = 0;
+
+    private final Runnable flush = new Runnable()
+    {
+        @Override
+        public void run() {
+            synchronized (WriteJournal.this) {
+                scheduled = null;
+                scheduledAt = Long.MAX_VALUE;
+            }
+            try {
+                flushPending();
+            } catch (Exception e) {
+                Log.w(TAG, "Journal flush failed: " + e.getMessage());
+                scheduleFlush(backoff(++failures));
+            }
+        }
+    };
+
+    public WriteJournal(ReactContext reactContext, GoogleFitManager googleFitManager) {
+        super(reactContext, DATABASE_NAME, null, DATABASE_VERSION);
+        this.mReactContext = reactContext;
+        this.googleFitManager = googleFitManager;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "account TEXT NOT NULL, "
+                + "kind TEXT NOT NULL, "
+                + "target TEXT NOT NULL, "
+                + "payload TEXT, "
+                + "start INTEGER NOT NULL, "
+                + "end INTEGER NOT NULL, "
+                + "attempts INTEGER NOT NULL DEFAULT 0, "
+                + "next_attempt INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Pending writes must survive upgrades, later versions migrate instead of dropping
+    }
+
+    /**
+     * Replays whatever an earlier process left in the journal.
+     */
+    public void start() {
+        scheduleFlush(COALESCE_MILLIS);
+    }
+
+    public void stop() {
+        flusher.shutdownNow();
+    }
+
+    /**
+     * Durably queues a save of one sample of the given target, e.g. {@link #WEIGHT}.
+     *
+     * @throws IllegalArgumentException when the sample cannot be turned into a point of the target
+     */
+    public boolean appendInsert(String target, ReadableMap sample) throws JSONException {
+        long date;
+        try {
+            pointFactory(target).create(BatchWriter.appDataSource(BatchDeleter.dataType(target)), sample);
+            date = (long) sample.getDouble("date");
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid " + target + " sample: " + e.getMessage(), e);
+        }
+        append(INSERT, target, toJson(sample).toString(), date, date);
+        return true;
+    }
+
+    /**
+     * Durably queues a delete of everything of the given target in [startTime, endTime].
+     */
+    public boolean appendDelete(String target, long startTime, long endTime) {
+        append(DELETE, target, null, startTime, endTime);
+        return true;
+    }
+
+    public synchronized long getPendingCount() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE, null);
+        try {
+            return cursor.moveToNext() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Flushes right away instead of waiting for the current backoff.
+     */
+    public void flushNow() {
+        synchronized (this) {
+            failures = 0;
+            getWritableDatabase().execSQL("UPDATE " + TABLE + " SET next_attempt = 0");
+        }
+        scheduleFlush(0);
+    }
+
+    private void append(String kind, String target, String payload, long startTime, long endTime) {
+        ContentValues values = new ContentValues();
+        values.put("account", googleFitManager.getAccountKey());
+        values.put("kind", kind);
+        values.put("target", target);
+        values.put("payload", payload);
+        values.put("start", startTime);
+        values.put("end", endTime);
+        synchronized (this) {
+            getWritableDatabase().insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+        scheduleFlush(COALESCE_MILLIS);
+    }
+
+    private synchronized void scheduleFlush(long delayMillis) {
+        long at = System.currentTimeMillis() + delayMillis;
+        if (scheduled != null) {
+            if (scheduledAt <= at) {
+                return;
+            }
+            scheduled.cancel(false);
+        }
+        scheduledAt = at;
+        try {
+            scheduled = flusher.schedule(flush, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            Log.w(TAG, "Journal flusher is stopped: " + e.getMessage());
+        }
+    }
+
+    private void flushPending() throws Exception {
+        String account = googleFitManager.getAccountKey();
+        if (account.isEmpty()) {
+            scheduleFlush(backoff(++failures));
+            return;
+        }
+
+        List<Entry> entries = due(account);
+        int index = 0;
+        while (index < entries.size()) {
+            Entry first = entries.get(index);
+            List<Entry> batch = new ArrayList<>();
+            while (index < entries.size() && batch.size() < BatchWriter.MAX_POINTS_PER_DATA_SET * 4
+                    && entries.get(index).kind.equals(first.kind)
+                    && (first.kind.equals(DELETE) || entries.get(index).target.equals(first.target))) {
+                batch.add(entries.get(index++));
+            }
+
+            markAttempted(batch);
+            boolean written;
+            try {
+                written = first.kind.equals(INSERT) ? flushInserts(first.target, batch) : flushDeletes(batch);
+            } catch (IllegalArgumentException e) {
+                // Nothing a retry could fix, e.g. a target this version does not know
+                Log.w(TAG, "Journal batch of " + batch.size() + " " + first.kind + " " + first.target + " is invalid: " + e.getMessage());
+                drop(batch, e.getMessage());
+                written = true;
+            } catch (Exception e) {
+                Log.w(TAG, "Journal batch of " + batch.size() + " " + first.kind + " " + first.target + " failed: " + e.getMessage());
+                retryOrDrop(batch, e.getMessage());
+                written = false;
+            }
+            if (!written) {
+                scheduleFlush(backoff(++failures));
+                return;
+            }
+        }
+        failures = 0;
+
+        long next = nextAttempt(account);
+        if (next >= 0) {
+            scheduleFlush(Math.max(0, next - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return false when some of the batch failed and was left for a retry
+     */
+    private boolean flushInserts(String target, List<Entry> batch) throws Exception {
+        boolean retried = false;
+        for (Entry entry : batch) {
+            retried |= entry.attempts > 1;
+        }
+        Set<Long> existing = retried ? existingPoints(target, batch) : new HashSet<Long>();
+
+        WritableArray samples = Arguments.createArray();
+        List<Entry> sent = new ArrayList<>();
+        List<Entry> done = new ArrayList<>();
+        for (Entry entry : batch) {
+            if (entry.attempts > 1 && existing.contains(entry.start)) {
+                done.add(entry);
+            } else {
+                samples.pushMap(toMap(new JSONObject(entry.payload)));
+                sent.add(entry);
+            }
+        }
+
+        ReadableArray results = samples.size() > 0 ? write(target, samples) : Arguments.createArray();
+        return settle(sent, results, done);
+    }
+
+    private boolean flushDeletes(List<Entry> batch) throws Exception {
+        WritableArray ranges = Arguments.createArray();
+        for (Entry entry : batch) {
+            WritableMap range = Arguments.createMap();
+            range.putString("type", entry.target);
+            range.putDouble("startDate", entry.start);
+            range.putDouble("endDate", entry.end);
+            ranges.pushMap(range);
+        }
+        ReadableArray results = googleFitManager.getBatchDeleter().delete(
+                googleFitManager.getHistoryClient(), ranges,
+                googleFitManager.getDailyBucketCache(), googleFitManager.getRollupStore());
+        return settle(batch, results, new ArrayList<Entry>());
+    }
+
+    /**
+     * Removes the entries written according to their {success, error, invalid} results, drops the invalid
+     * ones and retries the rest.
+     */
+    private boolean settle(List<Entry> sent, ReadableArray results, List<Entry> done) {
+        List<Entry> failed = new ArrayList<>();
+        String error = null;
+        for (int i = 0; i < sent.size(); i++) {
+            ReadableMap result = results.getMap(i);
+            if (result.getBoolean("success")) {
+                done.add(sent.get(i));
+            } else if (result.hasKey("invalid") && result.getBoolean("invalid")) {
+                drop(Collections.singletonList(sent.get(i)), result.hasKey("error") ? result.getString("error") : null);
+            } else {
+                failed.add(sent.get(i));
+                error = result.hasKey("error") ? result.getString("error") : null;
+            }
+        }
+        remove(done);
+        if (!failed.isEmpty()) {
+            retryOrDrop(failed, error);
+        }
+        return failed.isEmpty();
+    }
+
+    private static BatchWriter.PointFactory pointFactory(String target) {
+        switch (target) {
+            case WEIGHT:
+            case HEIGHT:
+                return BodyHistory.POINT_FACTORY;
+            case FOOD:
+                return CalorieHistory.FOOD_POINT_FACTORY;
+            case BLOOD_PRESSURE:
+                return HeartrateHistory.BLOOD_PRESSURE_POINT_FACTORY;
+            default:
+                throw new IllegalArgumentException("Unknown write target: " + target);
+        }
+    }
+
+    private ReadableArray write(String target, ReadableArray samples) throws InterruptedException {
+        switch (target) {
+            case WEIGHT:
+                return googleFitManager.getBodyHistory().saveAll(samples, DataType.TYPE_WEIGHT);
+            case HEIGHT:
+                return googleFitManager.getBodyHistory().saveAll(samples, DataType.TYPE_HEIGHT);
+            case FOOD:
+                return googleFitManager.getCalorieHistory().saveFoods(samples);
+            case BLOOD_PRESSURE:
+                return googleFitManager.getHeartrateHistory().saveBloodPressures(samples);
+            default:
+                throw new IllegalArgumentException("Unknown write target: " + target);
+        }
+    }
+
+    /**
+     * Start times of the points the app already wrote around a retried batch.
+     */
+    private Set<Long> existingPoints(String target, List<Entry> batch) throws Exception {
+        long startTime = Long.MAX_VALUE;
+        long endTime = Long.MIN_VALUE;
+        for (Entry entry : batch) {
+            startTime = Math.min(startTime, entry.start);
+            endTime = Math.max(endTime, entry.end);
+        }
+        DataReadRequest request = new DataReadRequest.Builder()
+                .read(BatchWriter.appDataSource(BatchDeleter.dataType(target)))
+                .setTimeRange(startTime, endTime + 1, TimeUnit.MILLISECONDS)
+                .build();
+        DataReadResponse response = Tasks.await(
+                googleFitManager.getHistoryClient().readData(request),
+                1, TimeUnit.MINUTES);
+
+        Set<Long> existing = new HashSet<>();
+        for (DataSet dataSet : response.getDataSets()) {
+            for (DataPoint dp : dataSet.getDataPoints()) {
+                existing.add(dp.getStartTime(TimeUnit.MILLISECONDS));
+            }
+        }
+        return existing;
+    }
+
+    private long backoff(int failures) {
+        long delay = BASE_BACKOFF_MILLIS << Math.min(failures - 1, 20);
+        delay = Math.min(delay, MAX_BACKOFF_MILLIS);
+        // Up to 20% jitter so many devices coming online do not retry in lockstep
+        return delay + (long) (delay * 0.2 * random.nextDouble());
+    }
+
+    private synchronized List<Entry> due(String account) {
+        List<Entry> entries = new ArrayList<>();
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT id, kind, target, payload, start, end, attempts FROM " + TABLE
+                        + " WHERE account IN (?, '') ORDER BY id LIMIT " + MAX_ROWS_PER_FLUSH,
+                new String[]{account});
+        try {
+            while (cursor.moveToNext()) {
+                entries.add(new Entry(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                        cursor.isNull(3) ? null : cursor.getString(3), cursor.getLong(4), cursor.getLong(5),
+                        cursor.getInt(6)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return waitingOnBackoff(entries, account);
+    }
+
+    /**
+     * Cuts the entries at the first one still backing off, so later writes keep their order.
+     */
+    private List<Entry> waitingOnBackoff(List<Entry> entries, String account) {
+        long now = System.currentTimeMillis();
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT MIN(id) FROM " + TABLE + " WHERE account IN (?, '') AND next_attempt > ?",
+                new String[]{account, String.valueOf(now)});
+        long blockedFrom = Long.MAX_VALUE;
+        try {
+            if (cursor.moveToNext() && !cursor.isNull(0)) {
+                blockedFrom = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        List<Entry> due = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.id >= blockedFrom) {
+                break;
+            }
+            due.add(entry);
+        }
+        return due;
+    }
+
+    private synchronized long nextAttempt(String account) {
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT MIN(next_attempt), COUNT(*) FROM " + TABLE + " WHERE account IN (?, '')", new String[]{account});
+        try {
+            return cursor.moveToNext() && cursor.getLong(1) > 0 ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private synchronized void markAttempted(List<Entry> batch) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Entry entry : batch) {
+                entry.attempts++;
+                db.execSQL("UPDATE " + TABLE + " SET attempts = ? WHERE id = ?", new Object[]{entry.attempts, entry.id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private synchronized void remove(List<Entry> entries) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                db.delete(TABLE, "id = ?", new String[]{String.valueOf(entry.id)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Backs every entry off by its own number of attempts, dropping those that used all of them.
+     */
+    private void retryOrDrop(List<Entry> entries, String error) {
+        List<Entry> dropped = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Entry entry : entries) {
+                    if (entry.attempts >= MAX_ATTEMPTS) {
+                        dropped.add(entry);
+                        db.delete(TABLE, "id = ?", new String[]{String.valueOf(entry.id)});
+                    } else {
+                        long retryAt = now + backoff(Math.max(1, entry.attempts));
+                        db.execSQL("UPDATE " + TABLE + " SET next_attempt = ? WHERE id = ?", new Object[]{retryAt, entry.id});
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        report(dropped, error);
+    }
+
+    /**
+     * Removes entries that no retry can write and reports them.
+     */
+    private void drop(List<Entry> entries, String error) {
+        remove(entries);
+        report(entries, error);
+    }
+
+    private void report(List<Entry> dropped, String error) {
+        for (Entry entry : dropped) {
+            Log.w(TAG, "Dropping " + entry.kind + " " + entry.target + " after " + entry.attempts + " attempts: " + error);
+            WritableMap event = Arguments.createMap();
+            event.putString("kind", entry.kind);
+            event.putString("type", entry.target);
+            event.putDouble("startDate", entry.start);
+            event.putDouble("endDate", entry.end);
+            event.putString("error", error);
+            mReactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(WRITE_FAILED_EVENT, event);
+        }
+    }
+
+    private static JSONObject toJson(ReadableMap map) throws JSONException {
+        JSONObject json = new JSONObject();
+        ReadableMapKeySetIterator keys = map.keySetIterator();
+        while (keys.hasNextKey()) {
+            String key = keys.nextKey();
+            switch (map.getType(key)) {
+                case Boolean:
+                    json.put(key, map.getBoolean(key));
+                    break;
+                case Number:
+                    json.put(key, map.getDouble(key));
+                    break;
+                case String:
+                    json.put(key, map.getString(key));
+                    break;
+                case Map:
+                    json.put(key, toJson(map.getMap(key)));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return json;
+    }
+
+    private static WritableMap toMap(JSONObject json) throws JSONException {
+        WritableMap map = Arguments.createMap();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = json.get(key);
+            if (value instanceof JSONObject) {
+                map.putMap(key, toMap((JSONObject) value));
+            } else if (value instanceof Boolean) {
+                map.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Number) {
+                map.putDouble(key, ((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                map.putString(key, (String) value);
+            }
+        }
+        return map;
+    }
+
+    private static class Entry
+    {
+        final long id;
+        final String kind;
+        final String target;
+        final String payload;
+        final long start;
+        final long end;
+        int attempts;
+
+        Entry(long id, String kind, String target, String payload, long start, long end, int attempts) {
+            this.id = id;
+            this.kind = kind;
+            this.target = target;
+            this.payload = payload;
+            this.start = start;
+            this.end = end;
+            this.attempts = attempts;
+        }
+    }
+}
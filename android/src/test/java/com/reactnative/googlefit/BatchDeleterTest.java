@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchDeleterTest
+{
+    private static final String WEIGHT = WriteJournal.WEIGHT;
+    private static final String HEIGHT = WriteJournal.HEIGHT;
+
+    @Test
+    public void mergesOverlappingRangesOfOneType() {
+        List<BatchDeleter.Group> groups = BatchDeleter.plan(Arrays.asList(
+                new BatchDeleter.Range(0, WEIGHT, 100, 200),
+                new BatchDeleter.Range(1, WEIGHT, 150, 300),
+                new BatchDeleter.Range(2, WEIGHT, 120, 130)));
+
+        assertEquals(1, groups.size());
+        assertGroup(groups.get(0), 100, 300, Arrays.asList(WEIGHT), Arrays.asList(0, 2, 1));
+    }
+
+    @Test
+    public void mergesAdjacentRanges() {
+        List<BatchDeleter.Group> groups = BatchDeleter.plan(Arrays.asList(
+                new BatchDeleter.Range(0, WEIGHT, 100, 200),
+                new BatchDeleter.Range(1, WEIGHT, 200, 300)));
+
+        assertEquals(1, groups.size());
+        assertGroup(groups.get(0), 100, 300, Arrays.asList(WEIGHT), Arrays.asList(0, 1));
+    }
+
+    @Test
+    public void keepsDisjointRangesApartInStartOrder() {
+        List<BatchDeleter.Group> groups = BatchDeleter.plan(Arrays.asList(
+                new BatchDeleter.Range(0, WEIGHT, 500, 600),
+                new BatchDeleter.Range(1, WEIGHT, 100, 200)));
+
+        assertEquals(2, groups.size());
+        assertGroup(groups.get(0), 100, 200, Arrays.asList(WEIGHT), Arrays.asList(1));
+        assertGroup(groups.get(1), 500, 600, Arrays.asList(WEIGHT), Arrays.asList(0));
+    }
+
+    @Test
+    public void typesWithTheSameMergedIntervalShareARequest() {
+        List<BatchDeleter.Group> groups = BatchDeleter.plan(Arrays.asList(
+                new BatchDeleter.Range(0, WEIGHT, 100, 200),
+                new BatchDeleter.Range(1, HEIGHT, 100, 150),
+                new BatchDeleter.Range(2, HEIGHT, 150, 200)));
+
+        assertEquals(1, groups.size());
+        assertGroup(groups.get(0), 100, 200, Arrays.asList(WEIGHT, HEIGHT), Arrays.asList(0, 1, 2));
+    }
+
+    @Test
+    public void typesWithDifferentIntervalsGetRequestsOfTheirOwn() {
+        List<BatchDeleter.Group> groups = BatchDeleter.plan(Arrays.asList(
+                new BatchDeleter.Range(0, WEIGHT, 100, 200),
+                new BatchDeleter.Range(1, HEIGHT, 100, 250)));
+
+        assertEquals(2, groups.size());
+        assertGroup(groups.get(0), 100, 200, Arrays.asList(WEIGHT), Arrays.asList(0));
+        assertGroup(groups.get(1), 100, 250, Arrays.asList(HEIGHT), Arrays.asList(1));
+    }
+
+    @Test
+    public void planOfNoRangesIsEmpty() {
+        assertEquals(0, BatchDeleter.plan(Arrays.<BatchDeleter.Range>asList()).size());
+    }
+
+    private static void assertGroup(BatchDeleter.Group group, long start, long end, List<String> types,
+                                    List<Integer> indexes) {
+        assertEquals(start, group.start);
+        assertEquals(end, group.end);
+        assertEquals(types, Arrays.asList(group.types.toArray(new String[0])));
+        assertEquals(indexes, group.indexes);
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class PeriodCalendarTest
+{
+    private static final TimeZone BERLIN = TimeZone.getTimeZone("Europe/Berlin");
+    private static final TimeZone KOLKATA = TimeZone.getTimeZone("Asia/Kolkata");
+    private static final long HOUR = 3600000L;
+
+    @Test
+    public void dayOfSpringForwardIsTwentyThreeHours() {
+        PeriodCalendar calendar = new PeriodCalendar(BERLIN, 0, Calendar.MONDAY);
+
+        long start = calendar.start(PeriodCalendar.DAY, local(BERLIN, "2019-03-31 12:00"));
+        assertEquals(local(BERLIN, "2019-03-31 00:00"), start);
+        assertEquals(23 * HOUR, calendar.next(PeriodCalendar.DAY, start) - start);
+    }
+
+    @Test
+    public void dayOfFallBackIsTwentyFiveHours() {
+        PeriodCalendar calendar = new PeriodCalendar(BERLIN, 0, Calendar.MONDAY);
+
+        long start = calendar.start(PeriodCalendar.DAY, local(BERLIN, "2019-10-27 12:00"));
+        assertEquals(local(BERLIN, "2019-10-27 00:00"), start);
+        assertEquals(25 * HOUR, calendar.next(PeriodCalendar.DAY, start) - start);
+    }
+
+    @Test
+    public void dayStartingInTheSkippedHourStartsAfterIt() {
+        PeriodCalendar calendar = new PeriodCalendar(BERLIN, 2, Calendar.MONDAY);
+
+        long start = calendar.start(PeriodCalendar.DAY, local(BERLIN, "2019-03-31 12:00"));
+        assertEquals(local(BERLIN, "2019-03-31 03:00"), start);
+        assertEquals(local(BERLIN, "2019-04-01 02:00"), calendar.next(PeriodCalendar.DAY, start));
+    }
+
+    @Test
+    public void timeBeforeTheDayStartHourBelongsToThePreviousDay() {
+        PeriodCalendar calendar = new PeriodCalendar(BERLIN, 4, Calendar.MONDAY);
+
+        assertEquals(local(BERLIN, "2019-06-04 04:00"),
+                calendar.start(PeriodCalendar.DAY, local(BERLIN, "2019-06-05 03:59")));
+        assertEquals(local(BERLIN, "2019-06-05 04:00"),
+                calendar.start(PeriodCalendar.DAY, local(BERLIN, "2019-06-05 04:00")));
+    }
+
+    @Test
+    public void weeksStartOnTheFirstDayOfTheWeek() {
+        // 2019-06-05 is a Wednesday
+        long wednesday = local(BERLIN, "2019-06-05 12:00");
+
+        PeriodCalendar monday = new PeriodCalendar(BERLIN, 0, Calendar.MONDAY);
+        assertEquals(local(BERLIN, "2019-06-03 00:00"), monday.start(PeriodCalendar.WEEK, wednesday));
+        assertEquals(local(BERLIN, "2019-06-10 00:00"),
+                monday.next(PeriodCalendar.WEEK, monday.start(PeriodCalendar.WEEK, wednesday)));
+
+        PeriodCalendar sunday = new PeriodCalendar(BERLIN, 0, Calendar.SUNDAY);
+        assertEquals(local(BERLIN, "2019-06-02 00:00"), sunday.start(PeriodCalendar.WEEK, wednesday));
+    }
+
+    @Test
+    public void weekStartsOnTheDayStartOfItsFirstDay() {
+        PeriodCalendar calendar = new PeriodCalendar(BERLIN, 4, Calendar.MONDAY);
+
+        // Monday 02:00 is still Sunday's day, so still the week before
+        assertEquals(local(BERLIN, "2019-05-27 04:00"),
+                calendar.start(PeriodCalendar.WEEK, local(BERLIN, "2019-06-03 02:00")));
+        assertEquals(local(BERLIN, "2019-06-03 04:00"),
+                calendar.start(PeriodCalendar.WEEK, local(BERLIN, "2019-06-03 05:00")));
+    }
+
+    @Test
+    public void weekAcrossSpringForwardIsAnHourShort() {
+        PeriodCalendar calendar = new PeriodCalendar(BERLIN, 0, Calendar.MONDAY);
+
+        long start = calendar.start(PeriodCalendar.WEEK, local(BERLIN, "2019-03-28 12:00"));
+        assertEquals(local(BERLIN, "2019-03-25 00:00"), start);
+        assertEquals(7 * 24 * HOUR - HOUR, calendar.next(PeriodCalendar.WEEK, start) - start);
+    }
+
+    @Test
+    public void monthsStartOnTheDayStartOfTheirFirstDay() {
+        PeriodCalendar calendar = new PeriodCalendar(BERLIN, 4, Calendar.MONDAY);
+
+        long start = calendar.start(PeriodCalendar.MONTH, local(BERLIN, "2019-06-01 02:00"));
+        assertEquals(local(BERLIN, "2019-05-01 04:00"), start);
+        assertEquals(local(BERLIN, "2019-06-01 04:00"), calendar.next(PeriodCalendar.MONTH, start));
+    }
+
+    @Test
+    public void hoursAreWholeUtcHoursInEveryTimeZone() {
+        PeriodCalendar calendar = new PeriodCalendar(KOLKATA, 0, Calendar.MONDAY);
+        long time = local(KOLKATA, "2019-06-05 12:45");
+
+        long start = calendar.start(PeriodCalendar.HOUR, time);
+        assertEquals(0, start % HOUR);
+        assertEquals(local(KOLKATA, "2019-06-05 12:30"), start);
+        assertEquals(start + HOUR, calendar.next(PeriodCalendar.HOUR, start));
+    }
+
+    @Test
+    public void keyTellsCalendarsApart() {
+        assertEquals(new PeriodCalendar(BERLIN, 4, Calendar.MONDAY).key(),
+                new PeriodCalendar(BERLIN, 4, Calendar.MONDAY).key());
+        assertFalse(new PeriodCalendar(BERLIN, 4, Calendar.MONDAY).key().equals(
+                new PeriodCalendar(BERLIN, 0, Calendar.MONDAY).key()));
+        assertFalse(new PeriodCalendar(BERLIN, 0, Calendar.MONDAY).key().equals(
+                new PeriodCalendar(BERLIN, 0, Calendar.SUNDAY).key()));
+    }
+
+    @Test
+    public void rejectsInvalidDayStartAndWeekStart() {
+        try {
+            new PeriodCalendar(BERLIN, 24, Calendar.MONDAY);
+            fail("dayStartHour 24 was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new PeriodCalendar(BERLIN, 0, 0);
+            fail("first day of week 0 was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static long local(TimeZone timeZone, String dateTime) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        format.setTimeZone(timeZone);
+        try {
+            return format.parse(dateTime).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RollupsTest
+{
+    private static final long HOUR = 3600000L;
+    private static final long DAY = 24 * HOUR;
+    // 2019-06-01 and 2019-07-01, UTC
+    private static final long JUNE = 1559347200000L;
+    private static final long JULY = JUNE + 30 * DAY;
+
+    private final PeriodCalendar calendar = new PeriodCalendar(TimeZone.getTimeZone("UTC"), 0, Calendar.MONDAY);
+    private final MemorySource source = new MemorySource();
+
+    @Test
+    public void monthOlderThanTheRevalidateWindowIsServedFromItsRow() throws Exception {
+        // Read two days after the month: its last days can still change
+        Rollups.Rollup month = june(JULY + 2 * DAY);
+        assertEquals(30 * 24, month.value, 0.001);
+        assertFalse(month.isFinal);
+        assertEquals(1, source.fetches);
+
+        // A week later only the hours read too early are read again, and the month becomes final
+        month = june(JULY + 8 * DAY);
+        assertTrue(month.isFinal);
+        assertEquals(2, source.fetches);
+
+        source.fetches = 0;
+        source.hourReads = 0;
+        month = june(JULY + 40 * DAY);
+        assertEquals(30 * 24, month.value, 0.001);
+        assertEquals(0, source.hourReads);
+        assertEquals(0, source.fetches);
+    }
+
+    @Test
+    public void monthWithAStaleHourIsComputedAgain() throws Exception {
+        june(JULY + 2 * DAY);
+
+        source.fetches = 0;
+        june(JULY + 2 * DAY + RefreshPolicy.REFRESH_MILLIS);
+        assertEquals(1, source.fetches);
+    }
+
+    @Test
+    public void sumIsFinalOnlyWhenAllPartsAre() {
+        Rollups.Rollup sum = new Rollups.Rollup(1, 100, true).plus(new Rollups.Rollup(2, 50, false));
+
+        assertEquals(3, sum.value, 0.001);
+        assertEquals(50, sum.fetchedAt);
+        assertFalse(sum.isFinal);
+        assertTrue(new Rollups.Rollup(1, 100, true).plus(new Rollups.Rollup(2, 50, true)).isFinal);
+    }
+
+    private Rollups.Rollup june(long now) throws Exception {
+        List<long[]> periods = Rollups.periods(calendar, PeriodCalendar.MONTH, JUNE, JUNE + 1);
+        return Rollups.values(source, calendar, PeriodCalendar.MONTH, periods, now).get(JUNE);
+    }
+
+    /**
+     * Stores settled periods in memory and reads one step per hour from Google Fit.
+     */
+    private static class MemorySource implements Rollups.Source
+    {
+        final Map<String, Map<Long, Rollups.Rollup>> tables = new HashMap<>();
+        int hourReads;
+        int fetches;
+
+        @Override
+        public Map<Long, Rollups.Rollup> read(String granularity, String calendar, long firstStart, long lastStart) {
+            if (PeriodCalendar.HOUR.equals(granularity)) {
+                hourReads++;
+            }
+            Map<Long, Rollups.Rollup> values = new TreeMap<>();
+            Map<Long, Rollups.Rollup> table = tables.get(granularity + calendar);
+            if (table != null) {
+                for (Map.Entry<Long, Rollups.Rollup> row : table.entrySet()) {
+                    if (row.getKey() >= firstStart && row.getKey() <= lastStart) {
+                        values.put(row.getKey(), row.getValue());
+                    }
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public void write(String granularity, String calendar, List<long[]> periods,
+                          Map<Long, Rollups.Rollup> values, long now) {
+            Map<Long, Rollups.Rollup> table = tables.get(granularity + calendar);
+            if (table == null) {
+                table = new HashMap<>();
+                tables.put(granularity + calendar, table);
+            }
+            for (long[] period : periods) {
+                if (values.containsKey(period[0]) && RefreshPolicy.isSettled(period[1], now)) {
+                    table.put(period[0], values.get(period[0]));
+                }
+            }
+        }
+
+        @Override
+        public Map<Long, Double> fetch(long startTime, long endTime) {
+            fetches++;
+            Map<Long, Double> values = new HashMap<>();
+            for (long hour = startTime; hour < endTime; hour += HOUR) {
+                values.put(hour, 1.0);
+            }
+            return values;
+        }
+    }
+}
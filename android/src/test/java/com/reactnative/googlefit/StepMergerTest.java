@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class StepMergerTest
+{
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private final StepMerger merger = new StepMerger(StepMerger.DEFAULT_PRIORITY, true);
+
+    @Test
+    public void betterSourceClaimsTheOverlap() {
+        List<Sample> merged = merger.merge(Arrays.asList(
+                source(sample(0, 0, 2 * HOUR, "merge_step_deltas", 200)),
+                source(sample(0, HOUR, 2 * HOUR, "estimated_steps", 50))));
+
+        assertEquals(2, merged.size());
+        assertSample(merged.get(0), 0, 0, HOUR, "merge_step_deltas", 100);
+        assertSample(merged.get(1), 0, HOUR, 2 * HOUR, "estimated_steps", 50);
+    }
+
+    @Test
+    public void userInputComesFirstUnlessExcluded() {
+        List<List<Sample>> sources = Arrays.asList(
+                source(sample(0, 0, HOUR, "estimated_steps", 100)),
+                source(sample(0, 0, HOUR, "user_input", 500)));
+
+        List<Sample> merged = merger.merge(sources);
+        assertEquals(1, merged.size());
+        assertSample(merged.get(0), 0, 0, HOUR, "user_input", 500);
+
+        merged = new StepMerger(StepMerger.DEFAULT_PRIORITY, false).merge(sources);
+        assertEquals(1, merged.size());
+        assertSample(merged.get(0), 0, 0, HOUR, "estimated_steps", 100);
+    }
+
+    @Test
+    public void unknownSourcesRankInSourceOrder() {
+        List<Sample> merged = merger.merge(Arrays.asList(
+                source(sample(0, 0, HOUR, "watch", 30)),
+                source(sample(0, 0, HOUR, "phone", 40))));
+
+        assertEquals(1, merged.size());
+        assertSample(merged.get(0), 0, 0, HOUR, "watch", 30);
+    }
+
+    @Test
+    public void trimmedPartAfterMidnightMovesToTheNextDay() {
+        // 22:00 to 02:00, the hours up to midnight are claimed by a better source
+        List<Sample> merged = merger.merge(Arrays.asList(
+                source(sample(0, DAY - 2 * HOUR, DAY, "estimated_steps", 100)),
+                source(sample(0, DAY - 2 * HOUR, DAY + 2 * HOUR, "watch", 400))), DAY);
+
+        assertEquals(2, merged.size());
+        assertSample(merged.get(0), 0, DAY - 2 * HOUR, DAY, "estimated_steps", 100);
+        assertSample(merged.get(1), DAY, DAY, DAY + 2 * HOUR, "watch", 200);
+    }
+
+    @Test
+    public void withoutBucketWidthTrimmedPartsKeepTheirBucket() {
+        List<Sample> merged = merger.merge(Arrays.asList(
+                source(sample(0, DAY - 2 * HOUR, DAY, "estimated_steps", 100)),
+                source(sample(0, DAY - 2 * HOUR, DAY + 2 * HOUR, "watch", 400))));
+
+        assertSample(merged.get(1), 0, DAY, DAY + 2 * HOUR, "watch", 200);
+    }
+
+    @Test
+    public void keepsTheBestInstantOfATimestamp() {
+        List<Sample> merged = merger.merge(Arrays.asList(
+                source(sample(0, HOUR, HOUR, "watch", 7)),
+                source(sample(0, HOUR, HOUR, "estimated_steps", 5)),
+                source(sample(0, 2 * HOUR, 2 * HOUR, "phone", 3))));
+
+        assertEquals(2, merged.size());
+        assertSample(merged.get(0), 0, HOUR, HOUR, "estimated_steps", 5);
+        assertSample(merged.get(1), 0, 2 * HOUR, 2 * HOUR, "phone", 3);
+    }
+
+    @Test
+    public void dropsInstantsInClaimedTime() {
+        List<Sample> merged = merger.merge(Arrays.asList(
+                source(sample(0, 0, 2 * HOUR, "estimated_steps", 100)),
+                source(sample(0, HOUR, HOUR, "watch", 5))));
+
+        assertEquals(1, merged.size());
+        assertSample(merged.get(0), 0, 0, 2 * HOUR, "estimated_steps", 100);
+    }
+
+    @Test
+    public void bucketStartCountsWholeBucketsFromTheSample() {
+        Sample sample = sample(DAY, DAY + HOUR, DAY + 2 * HOUR, "watch", 1);
+
+        assertEquals(DAY, StepMerger.bucketStart(sample, DAY + HOUR, DAY));
+        assertEquals(3 * DAY, StepMerger.bucketStart(sample, 3 * DAY, DAY));
+        assertEquals(0, StepMerger.bucketStart(sample, DAY - 1, DAY));
+        assertEquals(DAY, StepMerger.bucketStart(sample, 5 * DAY, 0));
+    }
+
+    private static List<Sample> source(Sample sample) {
+        return Collections.singletonList(sample);
+    }
+
+    private static Sample sample(long bucketStart, long start, long end, String origin, float steps) {
+        return new Sample(bucketStart, start, end, origin, new float[]{steps});
+    }
+
+    private static void assertSample(Sample sample, long bucketStart, long start, long end, String origin,
+                                     float steps) {
+        assertEquals(bucketStart, sample.bucketStart);
+        assertEquals(start, sample.start);
+        assertEquals(end, sample.end);
+        assertEquals(origin, sample.origin);
+        assertEquals(steps, sample.values[0], 0.001);
+    }
+}
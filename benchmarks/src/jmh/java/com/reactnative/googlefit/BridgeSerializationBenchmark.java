@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of step and heart rate samples into result rows, as the history classes do before
+ * handing them to the bridge.
+ *
+ * The "rows" format is stood in for by {@link MapRows}, a map per row like the bridge maps; the JNI
+ * calls that the real maps make for every put cannot be measured off-device, so its numbers are a lower
+ * bound. The columnar format is measured with and without packing its number columns.
+ */
+@State(Scope.Benchmark)
+public class BridgeSerializationBenchmark
+{
+    private static final long START = 1546300800000L;
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Param({"1000", "100000"})
+    public int points;
+
+    private List<Sample> steps;
+    private SimpleDateFormat dayFormat;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[] origins = {"estimated_steps", "merge_step_deltas", "user_input"};
+
+        steps = new ArrayList<>(points);
+        for (int i = 0; i < points; i++) {
+            long start = START + i * MINUTE;
+            steps.add(new Sample(START, start, start + MINUTE, origins[i % origins.length],
+                    new float[]{random.nextInt(200)}));
+        }
+        dayFormat = new SimpleDateFormat("EEE");
+    }
+
+    @Benchmark
+    public MapRows stepRows() {
+        MapRows rows = new MapRows();
+        for (Sample sample : steps) {
+            SampleRows.writeSteps(sample, rows);
+        }
+        return rows;
+    }
+
+    @Benchmark
+    public ColumnTable stepColumns() {
+        ColumnTable table = new ColumnTable();
+        for (Sample sample : steps) {
+            SampleRows.writeSteps(sample, table);
+        }
+        return table;
+    }
+
+    @Benchmark
+    public List<byte[]> stepColumnsPacked() {
+        ColumnTable table = stepColumns();
+        List<byte[]> packed = new ArrayList<>();
+        for (ColumnTable.Column column : table.columns().values()) {
+            if (column.type == ColumnTable.NUMBER) {
+                packed.add(table.packFloat64(column));
+            }
+        }
+        return packed;
+    }
+
+    @Benchmark
+    public MapRows valueRows() {
+        MapRows rows = new MapRows();
+        for (Sample sample : steps) {
+            SampleRows.writeValue(sample, rows, dayFormat);
+        }
+        return rows;
+    }
+
+    @Benchmark
+    public ColumnTable valueColumns() {
+        ColumnTable table = new ColumnTable();
+        for (Sample sample : steps) {
+            SampleRows.writeValue(sample, table, dayFormat);
+        }
+        return table;
+    }
+
+    /**
+     * A map per row, shaped like the bridge maps of the "rows" format.
+     */
+    public static class MapRows extends RowWriter
+    {
+        private final List<Map<String, Object>> rows = new ArrayList<>();
+        private Map<String, Object> row = new HashMap<>();
+
+        public MapRows() {
+        }
+
+        private MapRows(MapRows parent) {
+            super(parent);
+        }
+
+        @Override
+        protected void writeDouble(String key, double value) {
+            row.put(key, value);
+        }
+
+        @Override
+        protected void writeString(String key, String value) {
+            row.put(key, value);
+        }
+
+        @Override
+        protected void writeBoolean(String key, boolean value) {
+            row.put(key, value);
+        }
+
+        @Override
+        protected RowWriter writeMap(String key) {
+            MapRows map = new MapRows(this);
+            row.put(key, map.row);
+            return map;
+        }
+
+        @Override
+        protected RowWriter writeArray(String key) {
+            MapRows array = new MapRows(this);
+            row.put(key, array.rows);
+            return array;
+        }
+
+        @Override
+        protected void writeRowEnd() {
+            rows.add(row);
+            row = new HashMap<>();
+        }
+
+        @Override
+        public int length() {
+            return rows.size();
+        }
+    }
+}
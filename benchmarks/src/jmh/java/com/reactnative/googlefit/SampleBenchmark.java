@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion, merging and aggregation of synthetic step series, shaped like one minute points from
+ * three sources.
+ */
+@State(Scope.Benchmark)
+public class SampleBenchmark
+{
+    private static final long START = 1546300800000L;
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final int SOURCES = 3;
+
+    @Param({"1000", "100000", "1000000"})
+    public int points;
+
+    private List<List<Sample>> runs;
+    private List<Sample> unsorted;
+    private List<Sample> samples;
+    private List<byte[]> blobs;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[] origins = {"estimated_steps", "merge_step_deltas", "user_input"};
+
+        runs = new ArrayList<>();
+        for (int source = 0; source < SOURCES; source++) {
+            List<Sample> run = new ArrayList<>(points / SOURCES);
+            for (int i = 0; i < points / SOURCES; i++) {
+                long start = START + (i * SOURCES + source) * MINUTE;
+                run.add(new Sample(start - (start - START) % DAY, start, start + MINUTE, origins[source],
+                        new float[]{random.nextInt(200)}));
+            }
+            runs.add(run);
+        }
+
+        samples = Samples.merge(runs);
+        unsorted = new ArrayList<>();
+        for (List<Sample> run : runs) {
+            unsorted.addAll(run);
+        }
+
+        blobs = new ArrayList<>(samples.size());
+        for (Sample sample : samples) {
+            blobs.add(Samples.pack(sample.values));
+        }
+    }
+
+    @Benchmark
+    public List<byte[]> pack() {
+        List<byte[]> packed = new ArrayList<>(samples.size());
+        for (Sample sample : samples) {
+            packed.add(Samples.pack(sample.values));
+        }
+        return packed;
+    }
+
+    @Benchmark
+    public float unpack() {
+        float total = 0;
+        for (byte[] blob : blobs) {
+            total += Samples.unpack(blob)[0];
+        }
+        return total;
+    }
+
+    @Benchmark
+    public List<Sample> merge() {
+        return Samples.merge(runs);
+    }
+
+    @Benchmark
+    public List<Sample> sortByStart() {
+        List<Sample> copy = new ArrayList<>(unsorted);
+        Samples.sortByStart(copy);
+        return copy;
+    }
+
+    @Benchmark
+    public float[] dailyTrailingAverages() {
+        long end = samples.get(samples.size() - 1).end;
+        int days = Samples.bucketCount(START, end, DAY);
+        int[] counts = new int[days];
+        float[] sums = Samples.sumByBucket(samples, 0, START, DAY, days, counts);
+        return Samples.trailingAverages(sums, counts, 7);
+    }
+
+    @Benchmark
+    public List<Sample> downsampleLttb() {
+        return Samples.downsampleLttb(samples, 0, 1000);
+    }
+
+    @Benchmark
+    public List<Sample> downsampleMinMax() {
+        return Samples.downsampleMinMax(samples, 0, START, samples.get(samples.size() - 1).end, 1000);
+    }
+}
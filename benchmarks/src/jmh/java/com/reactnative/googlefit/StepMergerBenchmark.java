@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deduplication of three step sources that report the same walks with shifted, overlapping intervals.
+ */
+@State(Scope.Benchmark)
+public class StepMergerBenchmark
+{
+    private static final long START = 1546300800000L;
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Param({"1000", "100000", "1000000"})
+    public int points;
+
+    private List<List<Sample>> sources;
+    private StepMerger merger;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[] origins = {"raw:phone", "estimated_steps", "user_input"};
+        long[] lengths = {MINUTE, 3 * MINUTE, 30 * MINUTE};
+
+        sources = new ArrayList<>();
+        for (int source = 0; source < origins.length; source++) {
+            List<Sample> run = new ArrayList<>();
+            long start = START + source * MINUTE / 2;
+            for (int i = 0; i < points / origins.length; i++) {
+                run.add(new Sample(start - (start - START) % DAY, start, start + lengths[source], origins[source],
+                        new float[]{random.nextInt(200)}));
+                start += lengths[source] + (random.nextInt(4) == 0 ? lengths[source] : 0);
+            }
+            sources.add(run);
+        }
+        merger = new StepMerger(StepMerger.DEFAULT_PRIORITY, true);
+    }
+
+    @Benchmark
+    public List<Sample> merge() {
+        return merger.merge(sources);
+    }
+}
@@ -9,6 +9,34 @@ declare module 'react-native-google-fit' {
 
     removeListeners: () => void
 
+    /**
+     * Select the shape of the results of the read methods: 'rows' (default) for one object per sample,
+     * 'columnar' for parallel column arrays with repeated strings sent once, or 'packed' which additionally
+     * delivers number columns as Float64Arrays.
+     */
+    setResponseFormat(format: 'rows' | 'columnar' | 'packed'): void
+
+    /**
+     * How many Google Fit reads one long range query runs in parallel (default 4).
+     */
+    setReadFanOut(fanOut: number): void
+
+    /**
+     * Get latency and size histograms of the native read methods, keyed by method.
+     * @param {Object} options optional reset: true to start over after this snapshot.
+     */
+    getPerformanceMetrics(options?: { reset?: boolean }): Promise<{ [method: string]: MethodMetrics }>
+
+    /**
+     * Read a long history range in chunks; onChunk may return a promise to hold back the next chunks.
+     * Resolves with the number of samples read.
+     */
+    streamHistory(
+      method: 'heartRate' | 'bloodPressure' | 'activity' | 'dailySteps',
+      options: { startDate: string, endDate: string, chunkSize?: number, window?: number },
+      onChunk: (rows: any[]) => void | Promise<void>
+    ): Promise<number> & { cancel(): void }
+
     /**
      * Start recording fitness data (steps, distance)
      * This function relies on sending events to signal the RecordingAPI status
@@ -31,6 +59,20 @@ declare module 'react-native-google-fit' {
       callback?: (isError: boolean, result: any) => void
     ) => Promise<any> | void
 
+    /**
+     * One deduplicated daily step series merged natively from every step source.
+     */
+    getMergedDailySteps: (
+      options: {
+        startDate?: string,
+        endDate?: string,
+        priority?: string[],
+        userInput?: 'include' | 'exclude',
+        provenance?: boolean,
+      },
+      callback?: (isError: boolean, result: Array<{ date: string, value: number, isUserInput: boolean, sources?: Array<{ source: string, steps: number }> }>) => void
+    ) => Promise<Array<{ date: string, value: number, isUserInput: boolean, sources?: Array<{ source: string, steps: number }> }>> | void
+
     getDailyStepTotal: (
         callback?: (isError: boolean, result: any) => void
     ) => Promise<any> | void
@@ -84,6 +126,50 @@ declare module 'react-native-google-fit' {
       callback: (isError: boolean, result: any) => void
     ): void
 
+    /**
+     * Get several daily metrics over a specified date range with a single Google Fit read.
+     * @param {Object} options getDailySummary accepts an options object containing required startDate: ISO8601Timestamp,
+     *                         endDate: ISO8601Timestamp and metrics: an array of 'steps', 'distance', 'calories' and 'nutrition'.
+     * @callback {Function} callback The function will be called with an array of elements, one per day.
+     */
+    getDailySummary(
+      options: {
+        startDate: string,
+        endDate: string,
+        metrics?: Array<'steps' | 'distance' | 'calories' | 'nutrition'>,
+      },
+      callback: (isError: boolean, result: any) => void
+    ): void
+
+    /**
+     * Raw points added or changed since the sync that returned token; null starts a first sync.
+     * Pass the resolved token to the next call.
+     */
+    syncSince(
+      dataTypes: Array<'steps' | 'distance' | 'calories' | 'weight' | 'height' | 'heartRate' | 'bloodPressure' | 'food'>,
+      token: string | null,
+      options?: { overlap?: number, initialLookback?: number }
+    ): Promise<{
+      token: string,
+      reset: boolean,
+      points: Array<{ type: string, stream: string, startDate: number, endDate: number, values: { [field: string]: any } }>
+    }>
+
+    /**
+     * Totals per period of the range; settled periods are read from the device.
+     */
+    getAggregates(
+      options: {
+        metric: 'steps' | 'distance' | 'calories' | 'nutrition',
+        granularity?: 'hour' | 'day' | 'week' | 'month',
+        startDate: string,
+        endDate?: string,
+        timeZone?: string,
+        dayStartHour?: number,
+        weekStart?: 0 | 1 | 2 | 3 | 4 | 5 | 6,
+      }
+    ): Promise<Array<{ startDate: string, endDate: string, value: number }>>
+
     /**
      * Query for weight samples. the options object is used to setup a query to retrieve relevant samples.
      * @param {Object} options  getWeightSamples accepts an options object containing unit: "pound"/"kg",
@@ -106,8 +192,19 @@ declare module 'react-native-google-fit' {
       callback: (isError: boolean, result: WeightSample[]) => void
     ) => void
 
+    /**
+     * Raw heart rate samples by default; with bucketInterval min/avg/max per bucket, with maxPoints raw
+     * samples downsampled on the device.
+     */
     getHeartRateSamples: (
-      options: any,
+      options: {
+        startDate: string,
+        endDate: string,
+        bucketInterval?: number,
+        bucketUnit?: 'SECOND' | 'MINUTE' | 'HOUR' | 'DAY',
+        maxPoints?: number,
+        downsample?: 'lttb' | 'minmax'
+      },
       callback: (isError: boolean, result: any) => void
     ) => void
 
@@ -126,18 +223,89 @@ declare module 'react-native-google-fit' {
       callback: (isError: boolean, result: any) => void
     ) => void
 
+    /**
+     * Batched versions of the save methods; the callback gets one result per sample, in order.
+     */
+    saveWeights(
+      samples: Array<{ value: number, date: string, unit?: 'kg' | 'pound' }>,
+      callback: (isError: boolean, result: WriteResult[]) => void
+    ): void
+
+    saveHeights(
+      samples: Array<{ value: number, date: string }>,
+      callback: (isError: boolean, result: WriteResult[]) => void
+    ): void
+
+    saveFoods(
+      samples: FoodIntake[],
+      callback: (isError: boolean, result: WriteResult[]) => void
+    ): void
+
+    saveBloodPressures(
+      samples: Array<{ value: number, value2: number, date: string }>,
+      callback: (isError: boolean, result: WriteResult[]) => void
+    ): void
+
     deleteWeight: (
       options: any,
       callback: (isError: boolean, result: any) => void
     ) => void
 
+    /**
+     * Deletes many ranges; overlapping ranges of a type are merged. One result per range, in order.
+     */
+    deleteData(
+      ranges: Array<{ type: 'weight' | 'height' | 'food' | 'bloodPressure' | 'heartRate', startDate: string, endDate: string }>,
+      callback: (isError: boolean, result: WriteResult[]) => void
+    ): void
+
     isAvailable(callback: (isError: boolean, result: boolean) => void): void
 
     isEnabled(callback: (isError: boolean, result: boolean) => void): void
 
     openFit(): void
 
-    observeSteps: (callback: (isError: boolean, result: any) => void) => void
+    /**
+     * Batched live step updates, at most one per options.interval ms (default 1000).
+     */
+    /**
+     * Count today's steps from the hardware step counter, without Google Fit reads.
+     * Resolves false if the device has no step counter.
+     */
+    startStepSensor: (
+      callback?: (result: { steps: number, dayStart: number }) => void,
+      options?: { interval?: number }
+    ) => Promise<boolean>
+
+    stopStepSensor(): void
+
+    /**
+     * Today's steps as last counted by startStepSensor, returned synchronously.
+     */
+    getLocalStepCount(): number
+
+    /**
+     * Saves and deletes are queued on the device and written in the background.
+     */
+    getPendingWriteCount(): Promise<number>
+
+    /**
+     * Background warm-up of the read path after the first render.
+     */
+    prewarm(
+      options?: { delay?: number, prefetchToday?: boolean }
+    ): Promise<{ authorized: boolean, elapsedMs: number, today?: { steps?: number, distance?: number, calories?: number } }>
+
+    flushPendingWrites(): void
+
+    onWriteFailed: (
+      callback: (failure: { kind: 'insert' | 'delete', type: string, startDate: number, endDate: number, error?: string }) => void
+    ) => void
+
+    observeSteps: (
+      callback: (result: { steps: number, cumulative?: number, points: number, startDate: number, endDate: number }) => void | Promise<void>,
+      options?: { interval?: number }
+    ) => void
 
     observeHistory: (callback: (isError: boolean, result: any) => void) => void
 
@@ -154,6 +322,45 @@ declare module 'react-native-google-fit' {
     KgToLbs(metric: any): any
   }
 
+  export interface MetricsHistogram {
+    count: number
+    sum: number
+    max: number
+    p50: number
+    p95: number
+    p99: number
+    bounds: Array<number | null>
+    counts: number[]
+  }
+
+  export interface MethodMetrics {
+    calls: number
+    errors: number
+    coalesced: number
+    queueWaitMs: MetricsHistogram
+    readMs: MetricsHistogram
+    conversionMs: MetricsHistogram
+    buckets: MetricsHistogram
+    points: MetricsHistogram
+    payloadBytes: MetricsHistogram
+  }
+
+  export interface ColumnarTable {
+    length: number
+    types: { [column: string]: 'number' | 'float64' | 'string' | 'boolean' | 'map' | 'array' }
+    columns: { [column: string]: any }
+  }
+
+  export interface ColumnarResponse extends ColumnarTable {
+    format: 'columnar' | 'packed'
+    strings: string[]
+  }
+
+  /**
+   * Expands a result returned in the 'columnar' response format back into an array of objects.
+   */
+  export function fromColumnar(response: ColumnarResponse): any[]
+
   export interface WeightSample {
     day: string
     value: number
@@ -161,6 +368,13 @@ declare module 'react-native-google-fit' {
     endDate: string
   }
 
+  export interface WriteResult {
+    success: boolean
+    error?: string
+    /** The sample is not valid for its type; writing it again cannot succeed. */
+    invalid?: boolean
+  }
+
   export interface FoodIntake {
     mealType: MealType
     foodName: string
@@ -1,10 +1,11 @@
 'use strict'
-import { DeviceEventEmitter, NativeModules } from 'react-native';
+import { DeviceEventEmitter, InteractionManager, NativeModules } from 'react-native';
 
 import PossibleScopes from './src/scopes';
-import { buildDailySteps, isNil, KgToLbs, lbsAndOzToK, prepareDailyResponse, prepareResponse } from './src/utils';
+import { buildDailySteps, fromColumnar, isColumnar, isNil, KgToLbs, lbsAndOzToK, prepareDailyResponse, prepareResponse, unpackColumns } from './src/utils';
 
 const googleFit = NativeModules.RNGoogleFit
+let streamHandle = 0
 
 class RNGoogleFit {
   eventListeners = []
@@ -83,6 +84,94 @@ class RNGoogleFit {
     this.eventListeners.push(...eventListeners)
   }
 
+  /**
+   * Select the shape of the results of the read methods.
+   * @param {string} format 'rows' (default) for one object per sample, 'columnar' for parallel column
+   * arrays with repeated strings sent once, or 'packed' which additionally delivers number columns as
+   * Float64Arrays; use fromColumnar() to turn such a result back into rows.
+   */
+  setResponseFormat(format) {
+    googleFit.setResponseFormat(format)
+  }
+
+  /**
+   * Set how many Google Fit reads one long range query runs in parallel (default 4).
+   * @param {Number} fanOut at least 1
+   */
+  setReadFanOut(fanOut) {
+    googleFit.setReadFanOut(fanOut)
+  }
+
+  /**
+   * Get latency and size histograms of the native read methods, keyed by method.
+   * @param {Object} options optional reset: true to start over after this snapshot.
+   * @return {Promise} resolves with queue wait, read and conversion times in ms, bucket and point
+   * counts and approximate payload bytes per method.
+   */
+  getPerformanceMetrics(options = {}) {
+    return googleFit.getPerformanceMetrics(options.reset === true)
+  }
+
+  /**
+   * Read a long history range in chunks instead of one result array.
+   * @param {String} method one of 'heartRate', 'bloodPressure', 'activity' or 'dailySteps'.
+   * @param {Object} options required startDate and endDate: ISO8601Timestamp, optional chunkSize
+   * (samples per chunk, default 500) and window (chunks in flight before native waits, default 2).
+   * @param {Function} onChunk called with the rows of every chunk in order; may return a promise,
+   * the next chunks are held back until it settles.
+   * @return {Promise} resolves with the number of samples read, rejects with the error message.
+   * Call cancel() on the returned promise to stop reading.
+   */
+  streamHistory(method, options, onChunk) {
+    const handle = ++streamHandle
+    const subscriptions = []
+    const unsubscribe = () => subscriptions.forEach(subscription => subscription.remove())
+    let pending = Promise.resolve()
+
+    const result = new Promise((resolve, reject) => {
+      subscriptions.push(
+        DeviceEventEmitter.addListener('GoogleFitStreamChunk', event => {
+          if (event.handle !== handle) {
+            return
+          }
+          const rows =
+            method === 'heartRate' || method === 'bloodPressure'
+              ? prepareResponse(event.rows, 'value')
+              : event.rows
+          pending = pending
+            .then(() => onChunk(rows))
+            .then(() => googleFit.ackStreamChunk(handle, event.sequence))
+            .catch(error => {
+              googleFit.closeStream(handle)
+              unsubscribe()
+              reject(error)
+            })
+        })
+      )
+      subscriptions.push(
+        DeviceEventEmitter.addListener('GoogleFitStreamEnd', event => {
+          if (event.handle !== handle) {
+            return
+          }
+          unsubscribe()
+          pending.then(() => (event.error ? reject(event.error) : resolve(event.count)))
+        })
+      )
+    })
+
+    googleFit.startStream(
+      handle,
+      method,
+      Date.parse(options.startDate),
+      Date.parse(options.endDate),
+      { chunkSize: options.chunkSize, window: options.window }
+    )
+    result.cancel = () => {
+      googleFit.closeStream(handle)
+    }
+    return result
+  }
+
   // Will be deprecated in future releases
   getSteps(dayStart, dayEnd) {
     googleFit.getDailySteps(Date.parse(dayStart), Date.parse(dayEnd))
@@ -99,7 +188,9 @@ class RNGoogleFit {
       endDate,
       msg => callback(msg, false),
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(
             false,
             res.map(function(dev) {
@@ -122,7 +213,9 @@ class RNGoogleFit {
     googleFit.getDailyStepTotal(
       msg => callback(msg, false),
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(
             false,
             res.map(function(dev) {
@@ -172,6 +265,54 @@ class RNGoogleFit {
     this._retrieveDailyStepCountSamples(startDate, endDate, callback)
   }
 
+  /**
+   * Get one deduplicated daily step series merged natively from every step source, instead of one series per source.
+   * @param {Object} options startDate and endDate: ISO8601Timestamp; optional priority: source name patterns, best
+   *                         first (default ['user_input', 'estimated_steps', 'merge_step_deltas']), userInput:
+   *                         'include' (default) or 'exclude', provenance: true to add the {source, steps} per day.
+   * @param {Function} callback optional, called with [{date, value, isUserInput, sources}]; a promise is returned without it.
+   */
+  getMergedDailySteps = (options, callback) => {
+    const startDate = !isNil(options.startDate)
+      ? Date.parse(options.startDate)
+      : new Date().setHours(0, 0, 0, 0)
+    const endDate = !isNil(options.endDate)
+      ? Date.parse(options.endDate)
+      : new Date().valueOf()
+    const mergeOptions = {}
+    if (!isNil(options.priority)) {
+      mergeOptions.priority = options.priority
+    }
+    if (!isNil(options.userInput)) {
+      mergeOptions.userInput = options.userInput
+    }
+    if (options.provenance) {
+      mergeOptions.provenance = true
+    }
+    const run = done => googleFit.getMergedDailySteps(
+      startDate,
+      endDate,
+      mergeOptions,
+      msg => done(msg, false),
+      res => {
+        const rows = isColumnar(res) ? fromColumnar(res) : res
+        done(false, prepareDailyResponse(rows.map(row => {
+          const day = { date: row.startDate, value: row.steps, isUserInput: row.isUserInput }
+          if (!isNil(row.sources)) {
+            day.sources = row.sources
+          }
+          return day
+        })))
+      }
+    )
+    if (!callback || typeof callback !== 'function') {
+      return new Promise((resolve, reject) => {
+        run((error, result) => (error ? reject(error) : resolve(result)))
+      })
+    }
+    run(callback)
+  }
+
   /**
    * Get the total steps for today.
    * @param {Function} callback The function will be called with an object having source and steps info.
@@ -239,7 +380,9 @@ class RNGoogleFit {
         callback(msg, false)
       },
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(false, prepareResponse(res, 'distance'))
         } else {
           callback('There is no any distance data for this period', false)
@@ -256,7 +399,9 @@ class RNGoogleFit {
         callback(error, false)
       },
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(false, res)
         } else {
           callback('There is no any distance data for this period', false)
@@ -285,7 +430,9 @@ class RNGoogleFit {
         callback(msg, false)
       },
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(false, prepareResponse(res, 'calorie'))
         } else {
           callback('There is no any calorie data for this period', false)
@@ -304,7 +451,9 @@ class RNGoogleFit {
         callback(msg, false)
       },
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(false, prepareDailyResponse(res))
         } else {
           callback('There is no any nutrition data for this period', false)
@@ -313,6 +462,110 @@ class RNGoogleFit {
     )
   }
 
+  /**
+   * Get several daily metrics over a specified date range with a single Google Fit read.
+   * @param {Object} options getDailySummary accepts an options object containing required startDate: ISO8601Timestamp,
+   * endDate: ISO8601Timestamp and metrics: an array of 'steps', 'distance', 'calories' and 'nutrition'.
+   * @param {Function} callback The function will be called with an array of elements, one per day.
+   */
+
+  getDailySummary(options, callback) {
+    const startDate = Date.parse(options.startDate)
+    const endDate = Date.parse(options.endDate)
+    const metrics = options.metrics || ['steps', 'distance', 'calories']
+    googleFit.getDailySummary(
+      startDate,
+      endDate,
+      metrics,
+      msg => {
+        callback(msg, false)
+      },
+      res => {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+          return
+        }
+        callback(false, res.map(el => {
+          el.startDate = new Date(el.startDate).toISOString()
+          el.endDate = new Date(el.endDate).toISOString()
+          return el
+        }))
+      }
+    )
+  }
+
+  /**
+   * Read only the raw points added or changed since an earlier sync.
+   * @param {Array} dataTypes 'steps', 'distance', 'calories', 'weight', 'height', 'heartRate', 'bloodPressure', 'food'.
+   * @param {String} token the token of the previous sync, or null for the first one.
+   * @param {Object} options optional overlap: ms re-read before the last high-water mark for late uploads
+   *                         (default 1 hour), initialLookback: ms read by a first sync (default 30 days).
+   * @return {Promise} resolves with {token, reset, points}; pass token to the next call. reset is true when
+   *                   the token was unknown and the whole initial lookback was returned.
+   */
+  syncSince(dataTypes, token, options = {}) {
+    const syncOptions = {}
+    if (!isNil(options.overlap)) {
+      syncOptions.overlap = options.overlap
+    }
+    if (!isNil(options.initialLookback)) {
+      syncOptions.initialLookback = options.initialLookback
+    }
+    return new Promise((resolve, reject) => {
+      googleFit.syncSince(
+        dataTypes,
+        isNil(token) ? null : token,
+        syncOptions,
+        msg => reject(msg),
+        res => resolve(res)
+      )
+    })
+  }
+
+  /**
+   * Totals per hour, day, week or month, kept on the device once a period has settled.
+   * @param {Object} options metric: 'steps', 'distance', 'calories' or 'nutrition' (kcal eaten),
+   *                         granularity: 'hour', 'day', 'week' or 'month' (default 'day'),
+   *                         startDate: ISO8601Timestamp and endDate: ISO8601Timestamp. Optional calendar:
+   *                         timeZone (IANA id, default the device's), dayStartHour (0-23, default 0) and
+   *                         weekStart (0 = Sunday ... 6 = Saturday, default the locale's).
+   * @return {Promise} resolves with [{startDate, endDate, value}] for every period of the range, in time order.
+   */
+  getAggregates(options) {
+    const startDate = Date.parse(options.startDate)
+    const endDate = !isNil(options.endDate)
+      ? Date.parse(options.endDate)
+      : new Date().valueOf()
+    const calendar = {}
+    if (!isNil(options.timeZone)) {
+      calendar.timeZone = options.timeZone
+    }
+    if (!isNil(options.dayStartHour)) {
+      calendar.dayStartHour = options.dayStartHour
+    }
+    if (!isNil(options.weekStart)) {
+      calendar.firstDayOfWeek = options.weekStart + 1
+    }
+    return new Promise((resolve, reject) => {
+      googleFit.getAggregates(
+        options.metric,
+        options.granularity || 'day',
+        startDate,
+        endDate,
+        calendar,
+        msg => reject(msg),
+        res => {
+          const rows = isColumnar(res) ? fromColumnar(res) : res
+          resolve(rows.map(row => ({
+            startDate: new Date(row.startDate).toISOString(),
+            endDate: new Date(row.endDate).toISOString(),
+            value: row.value,
+          })))
+        }
+      )
+    })
+  }
+
   saveFood(options, callback) {
     options.date = Date.parse(options.date)
     googleFit.saveFood(
@@ -347,7 +600,9 @@ class RNGoogleFit {
         callback(msg, false)
       },
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           res = res.map(el => {
             if (el.value) {
               if (options.unit === 'pound') {
@@ -376,7 +631,9 @@ class RNGoogleFit {
         callback(msg, false)
       },
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(false, prepareResponse(res, 'value'))
         } else {
           callback('There is no any height data for this period', false)
@@ -414,6 +671,62 @@ class RNGoogleFit {
     )
   }
 
+  /**
+   * Save many weights with a few batched inserts.
+   * @param {Array} samples objects like the options of saveWeight: value, date and optional unit.
+   * @param {Function} callback called with one {success, error} per sample, in order.
+   */
+  saveWeights(samples, callback) {
+    googleFit.saveWeights(
+      samples.map(sample => ({
+        value:
+          sample.unit == 'pound'
+            ? lbsAndOzToK({ pounds: sample.value, ounces: 0 })
+            : sample.value,
+        date: Date.parse(sample.date),
+      })),
+      msg => callback(msg, false),
+      res => callback(false, res)
+    )
+  }
+
+  /**
+   * Save many heights (in meters) with a few batched inserts.
+   */
+  saveHeights(samples, callback) {
+    googleFit.saveHeights(
+      samples.map(sample => ({ value: sample.value, date: Date.parse(sample.date) })),
+      msg => callback(msg, false),
+      res => callback(false, res)
+    )
+  }
+
+  /**
+   * Save many food intakes, shaped like the options of saveFood, with a few batched inserts.
+   */
+  saveFoods(samples, callback) {
+    googleFit.saveFoods(
+      samples.map(sample => ({ ...sample, date: Date.parse(sample.date) })),
+      msg => callback(msg, false),
+      res => callback(false, res)
+    )
+  }
+
+  /**
+   * Save many blood pressures, value: systolic and value2: diastolic in mmHg, with a few batched inserts.
+   */
+  saveBloodPressures(samples, callback) {
+    googleFit.saveBloodPressures(
+      samples.map(sample => ({
+        value: sample.value,
+        value2: sample.value2,
+        date: Date.parse(sample.date),
+      })),
+      msg => callback(msg, false),
+      res => callback(false, res)
+    )
+  }
+
   deleteWeight = (options, callback) => {
     if (options.unit === 'pound') {
       options.value = lbsAndOzToK({ pounds: options.value, ounces: 0 }) //convert pounds and ounces to kg
@@ -432,7 +745,7 @@ class RNGoogleFit {
 
   deleteHeight = (options, callback) => {
     options.date = Date.parse(options.date)
-    googleFit.deleteWeight(
+    googleFit.deleteHeight(
       options,
       msg => {
         callback(msg, false)
@@ -443,6 +756,24 @@ class RNGoogleFit {
     )
   }
 
+  /**
+   * Delete many ranges at once; overlapping ranges of a type are merged into as few requests as possible.
+   * @param {Array} ranges objects with type ('weight', 'height', 'food', 'bloodPressure' or 'heartRate'),
+   *                       startDate and endDate.
+   * @param {Function} callback called with one {success, error} per range, in order.
+   */
+  deleteData(ranges, callback) {
+    googleFit.deleteData(
+      ranges.map(range => ({
+        type: range.type,
+        startDate: Date.parse(range.startDate),
+        endDate: Date.parse(range.endDate),
+      })),
+      msg => callback(msg, false),
+      res => callback(false, res)
+    )
+  }
+
   isAvailable(callback) {
     // true if GoogleFit installed
     googleFit.isAvailable(
@@ -471,15 +802,98 @@ class RNGoogleFit {
     googleFit.openFit()
   }
 
-  observeSteps = callback => {
+  /**
+   * Subscribe to live step updates. Updates are batched: each event carries the steps added since the
+   * previous one (steps), the latest cumulative count if known (cumulative) and the number of sensor
+   * points it covers (points).
+   * @param {Function} callback called with every batch; may return a promise, the next batch waits for it.
+   * @param {Object} options optional interval: minimum ms between two events (default 1000, 16 for every frame).
+   */
+  observeSteps = (callback, options = {}) => {
     const stepsObserver = DeviceEventEmitter.addListener(
       'StepChangedEvent',
-      steps => callback(steps)
+      steps => {
+        Promise.resolve(callback(steps)).then(
+          () => googleFit.ackStepEvent(),
+          () => googleFit.ackStepEvent()
+        )
+      }
     )
-    googleFit.observeSteps()
+    googleFit.observeSteps(isNil(options.interval) ? {} : { interval: options.interval })
     this.eventListeners.push(stepsObserver)
   }
 
+  /**
+   * Count today's steps on the device from the hardware step counter, without Google Fit reads.
+   * @param {Function} callback optional, called with {steps, dayStart} at most once per options.interval ms.
+   * @param {Object} options optional interval in ms (default 1000).
+   * @return {Promise} resolves false if the device has no step counter.
+   */
+  startStepSensor = (callback, options = {}) => {
+    if (callback) {
+      this.eventListeners.push(
+        DeviceEventEmitter.addListener('StepSensorChangedEvent', steps => callback(steps))
+      )
+    }
+    return googleFit.startStepSensor(isNil(options.interval) ? {} : { interval: options.interval })
+  }
+
+  stopStepSensor() {
+    googleFit.stopStepSensor()
+  }
+
+  /**
+   * Today's steps as last counted by startStepSensor, returned synchronously.
+   */
+  getLocalStepCount() {
+    return googleFit.getLocalStepCount()
+  }
+
+  /**
+   * Number of saves and deletes queued on the device and not yet written to Google Fit.
+   * @return {Promise}
+   */
+  getPendingWriteCount() {
+    return googleFit.getPendingWriteCount()
+  }
+
+  /**
+   * Do the first-use work of Google Fit reads in the background once the first render has settled:
+   * resolve the account, build the clients and readers, open the on-device caches and send the writes a
+   * previous run left pending.
+   * @param {Object} options delay: ms to wait after interactions finish (default 0),
+   *                         prefetchToday: also read today's steps, distance and calories.
+   * @return {Promise} resolves with {authorized, elapsedMs, today?: {steps, distance, calories}}
+   */
+  prewarm(options = {}) {
+    const prewarmOptions = { prefetchToday: !!options.prefetchToday }
+    return new Promise((resolve, reject) => {
+      InteractionManager.runAfterInteractions(() => {
+        setTimeout(() => {
+          googleFit.prewarm(prewarmOptions).then(resolve, reject)
+        }, options.delay || 0)
+      })
+    })
+  }
+
+  /**
+   * Retry the queued writes now instead of waiting for their backoff.
+   */
+  flushPendingWrites() {
+    googleFit.flushPendingWrites()
+  }
+
+  /**
+   * Called with {kind, type, startDate, endDate, error} for a queued write given up after repeated failures.
+   */
+  onWriteFailed = callback => {
+    const writeFailedObserver = DeviceEventEmitter.addListener(
+      'GoogleFitWriteFailed',
+      failure => callback(failure)
+    )
+    this.eventListeners.push(writeFailedObserver)
+  }
+
   observeHistory = callback => {
     const historyObserver = DeviceEventEmitter.addListener(
       'StepHistoryChangedEvent',
@@ -511,14 +925,26 @@ class RNGoogleFit {
   getHeartRateSamples(options, callback) {
     const startDate = Date.parse(options.startDate)
     const endDate = Date.parse(options.endDate)
+    const heartRateOptions = {}
+    if (!isNil(options.bucketInterval)) {
+      heartRateOptions.bucketInterval = options.bucketInterval
+      heartRateOptions.bucketUnit = options.bucketUnit || 'MINUTE'
+    }
+    if (!isNil(options.maxPoints)) {
+      heartRateOptions.maxPoints = options.maxPoints
+      heartRateOptions.downsample = options.downsample || 'lttb'
+    }
     googleFit.getHeartRateSamples(
       startDate,
       endDate,
+      heartRateOptions,
       msg => {
         callback(msg, false)
       },
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(false, prepareResponse(res, 'value'))
         } else {
           callback('There is no any heart rate data for this period', false)
@@ -537,7 +963,9 @@ class RNGoogleFit {
         callback(msg, false)
       },
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          callback(false, unpackColumns(res))
+        } else if (res.length > 0) {
           callback(false, prepareResponse(res, 'value'))
         } else {
           callback('There is no any heart rate data for this period', false)
@@ -549,6 +977,8 @@ class RNGoogleFit {
 
 export default new RNGoogleFit()
 
+export { fromColumnar }
+
 // Possible Scopes
 export const Scopes = Object.freeze(PossibleScopes)
 
@@ -33,6 +33,105 @@ export function isNil(value) {
   return value == null
 }
 
+export function isColumnar(response) {
+  return !isNil(response) && (response.format === 'columnar' || response.format === 'packed')
+}
+
+const BASE64_ALPHABET = 'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/'
+const BASE64_LOOKUP = new Uint8Array(128)
+for (let i = 0; i < BASE64_ALPHABET.length; i++) {
+  BASE64_LOOKUP[BASE64_ALPHABET.charCodeAt(i)] = i
+}
+
+/**
+ * Views a packed column, base64 of little-endian float64 values, as a Float64Array.
+ */
+export function decodeFloat64Column(encoded) {
+  const padding = encoded.endsWith('==') ? 2 : encoded.endsWith('=') ? 1 : 0
+  const bytes = new Uint8Array((encoded.length * 3) / 4 - padding)
+  let j = 0
+  for (let i = 0; i < encoded.length; i += 4) {
+    const chunk =
+      (BASE64_LOOKUP[encoded.charCodeAt(i)] << 18) |
+      (BASE64_LOOKUP[encoded.charCodeAt(i + 1)] << 12) |
+      (BASE64_LOOKUP[encoded.charCodeAt(i + 2)] << 6) |
+      BASE64_LOOKUP[encoded.charCodeAt(i + 3)]
+    bytes[j++] = (chunk >> 16) & 0xff
+    if (j < bytes.length) bytes[j++] = (chunk >> 8) & 0xff
+    if (j < bytes.length) bytes[j++] = chunk & 0xff
+  }
+  return new Float64Array(bytes.buffer)
+}
+
+/**
+ * Replaces the packed number columns of a columnar result with Float64Arrays, NaN marks missing values.
+ */
+export function unpackColumns(table) {
+  for (const key in table.columns) {
+    const column = table.columns[key]
+    switch (table.types[key]) {
+      case 'float64':
+        if (typeof column === 'string') {
+          table.columns[key] = decodeFloat64Column(column)
+        }
+        break
+      case 'map':
+        unpackColumns(column)
+        break
+      case 'array':
+        column.forEach(nested => {
+          if (!isNil(nested) && !Array.isArray(nested)) {
+            unpackColumns(nested)
+          }
+        })
+        break
+    }
+  }
+  return table
+}
+
+/**
+ * Expands a result returned in the 'columnar' response format back into an array of objects.
+ */
+export function fromColumnar(response, strings = response.strings) {
+  unpackColumns(response)
+  const columns = {}
+  for (const key in response.columns) {
+    columns[key] = response.types[key] === 'map'
+      ? fromColumnar(response.columns[key], strings)
+      : response.columns[key]
+  }
+  const rows = []
+  for (let i = 0; i < response.length; i++) {
+    const row = {}
+    for (const key in columns) {
+      const value = decodeColumnValue(response.types[key], columns[key], i, strings)
+      if (!isNil(value)) {
+        row[key] = value
+      }
+    }
+    rows.push(row)
+  }
+  return rows
+}
+
+function decodeColumnValue(type, column, index, strings) {
+  switch (type) {
+    case 'map':
+      return column[index]
+    case 'float64':
+      return isNaN(column[index]) ? null : column[index]
+    case 'string':
+      return isNil(column[index]) ? null : strings[column[index]]
+    case 'array':
+      return !isNil(column[index]) && !Array.isArray(column[index])
+        ? fromColumnar(column[index], strings)
+        : column[index]
+    default:
+      return column[index]
+  }
+}
+
 export function prepareResponse(response, byKey = 'value') {
   return response
     .map(el => {